@@ -1,7 +1,6 @@
 package nz.ac.aut.hss.network;
 
 import nz.ac.aut.hss.network.mail.*;
-import sun.misc.BASE64Encoder;
 
 import javax.mail.Message;
 import javax.mail.MessagingException;
@@ -11,7 +10,10 @@ import java.io.UnsupportedEncodingException;
 import java.security.*;
 import java.security.cert.CertificateException;
 import java.text.SimpleDateFormat;
+import java.util.Base64;
 import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * @author Martin Schrimpf
@@ -35,7 +37,7 @@ public class Application {
 		System.out.println("OK");
 
 		System.out.println("Starting mail receiver...");
-		Thread t = app.startReceiverThread();
+		Future<?> receiver = app.startReceiver();
 		System.out.println("OK");
 
 		System.out.println("Sending mail");
@@ -43,7 +45,7 @@ public class Application {
 		System.out.println("OK");
 
 		System.out.println("Waiting for mail-server");
-		t.join();
+		receiver.get();
 
 		System.out.println("Disconnecting...");
 		app.exit();
@@ -59,6 +61,10 @@ public class Application {
 
 	private MailSender mailSender;
 	private MailReceiver mailReceiver;
+	/**
+	 * Runs the receive loop, on virtual threads if the system property smns.executionMode is virtual.
+	 */
+	private final ExecutorService executor = ExecutionMode.DEFAULT.newExecutor("mail receiver");
 
 	public Application(final String keyStore, final String alias, final String keyStorePassword,
 					   final String keyPassword) {
@@ -81,8 +87,7 @@ public class Application {
 		KeyFetcher keyFetch = new KeyFetcher("keystoreA", "password".toCharArray());
 		//Test getting private key from key store works
 		Key key = keyFetch.getPrivateKey( alias, keyPassword.toCharArray());
-		BASE64Encoder encoder = new BASE64Encoder();
-		System.out.println(encoder.encode(key.getEncoded()));
+		System.out.println(Base64.getMimeEncoder().encodeToString(key.getEncoded()));
 		//Test getting public key from file works
 		PublicKey publicKey = (PublicKey) keyFetch.getPublicKey("certA.cer");
 		System.out.println("\nPublic key of A from file system of B\n" + publicKey);
@@ -103,8 +108,8 @@ public class Application {
 		mailSender.connect();
 	}
 
-	private Thread startReceiverThread() {
-		Thread t = new Thread() {
+	private Future<?> startReceiver() {
+		return executor.submit(new Runnable() {
 			@Override
 			public void run() {
 				try {
@@ -125,9 +130,7 @@ public class Application {
 					e.printStackTrace();
 				}
 			}
-		};
-		t.start();
-		return t;
+		});
 	}
 
 	private void sendMailToSelf(final String subject, final String content)
@@ -138,5 +141,6 @@ public class Application {
 	private void exit() throws ConnectionException {
 		mailSender.disconnect();
 		mailReceiver.disconnect();
+		executor.shutdown();
 	}
 }
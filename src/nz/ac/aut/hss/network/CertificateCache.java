@@ -0,0 +1,222 @@
+package nz.ac.aut.hss.network;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of certificates parsed from files (e.g. certA.cer), so that looking up a public key does not read and
+ * parse the file again. Entries are kept per file together with a SHA-256 hash of its content. A file is only read
+ * again when its modification time or size changes, which is checked at most once per
+ * {@link Defaults#RECHECK_MILLIS}; if the content turns out to be unchanged the parsed certificate is kept.
+ */
+public class CertificateCache {
+	public static interface Defaults {
+		public final int CAPACITY = 1024;
+		public final long RECHECK_MILLIS = 1000;
+		public final int THREADS = Runtime.getRuntime().availableProcessors();
+		/**
+		 * File name pattern of the certificates loaded by {@link #preload(Path)}.
+		 */
+		public final String CERTIFICATE_FILES = "*.{cer,crt,pem,der}";
+	}
+
+	private static final CertificateCache DEFAULT = new CertificateCache(Defaults.CAPACITY, Defaults.RECHECK_MILLIS);
+	private static final ThreadLocal<CertificateFactory> FACTORIES = new ThreadLocal<CertificateFactory>() {
+		@Override
+		protected CertificateFactory initialValue() {
+			try {
+				return CertificateFactory.getInstance("X.509");
+			} catch (CertificateException e) {
+				throw new IllegalStateException("X.509 certificates not supported: " + e, e);
+			}
+		}
+	};
+	private static final ThreadLocal<MessageDigest> DIGESTS = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("Digest algorithm not available: " + e, e);
+			}
+		}
+	};
+
+	private final LruCache<Path, Entry> entries;
+	private final long recheckNanos;
+	private final AtomicLong parses = new AtomicLong();
+
+	/**
+	 * @param capacity      the maximum number of certificate files kept
+	 * @param recheckMillis how long a parsed certificate is used before its file is checked for changes, 0 checks
+	 *                      on every access
+	 */
+	public CertificateCache(final int capacity, final long recheckMillis) {
+		if (recheckMillis < 0)
+			throw new IllegalArgumentException("recheckMillis must not be negative");
+		this.entries = new LruCache<>(capacity);
+		this.recheckNanos = TimeUnit.MILLISECONDS.toNanos(recheckMillis);
+	}
+
+	/**
+	 * @return the cache shared by all {@link KeyFetcher}s that are not given their own
+	 */
+	public static CertificateCache getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * @return the certificate in the file, which may be DER or PEM encoded
+	 * @throws FileNotFoundException if there is no such file
+	 */
+	public X509Certificate getCertificate(final String certificateFileName) throws IOException, CertificateException {
+		return getCertificate(Paths.get(certificateFileName));
+	}
+
+	/**
+	 * @return the certificate in the file, which may be DER or PEM encoded
+	 * @throws FileNotFoundException if there is no such file
+	 */
+	public X509Certificate getCertificate(final Path file) throws IOException, CertificateException {
+		final Path path = file.toAbsolutePath().normalize();
+		final Entry cached = entries.get(path);
+		if (cached != null && System.nanoTime() - cached.checkedAt < recheckNanos)
+			return cached.certificate;
+
+		final BasicFileAttributes attributes;
+		final byte[] content;
+		try { // the attributes are read first, so a change while reading is noticed on the next check
+			attributes = Files.readAttributes(path, BasicFileAttributes.class);
+			final long modified = attributes.lastModifiedTime().toMillis(), size = attributes.size();
+			if (cached != null && cached.modified == modified && cached.size == size) {
+				cached.checkedAt = System.nanoTime();
+				return cached.certificate;
+			}
+			content = Files.readAllBytes(path);
+		} catch (NoSuchFileException e) {
+			entries.remove(path);
+			throw (FileNotFoundException) new FileNotFoundException(path.toString()).initCause(e);
+		}
+		final byte[] hash = DIGESTS.get().digest(content);
+		final X509Certificate certificate;
+		if (cached != null && Arrays.equals(hash, cached.hash)) {
+			certificate = cached.certificate; // touched but not changed
+		} else {
+			final Certificate parsed = FACTORIES.get().generateCertificate(new ByteArrayInputStream(content));
+			if (!(parsed instanceof X509Certificate))
+				throw new CertificateException("Not an X.509 certificate: " + path);
+			certificate = (X509Certificate) parsed;
+			parses.incrementAndGet();
+		}
+		entries.put(path, new Entry(attributes.lastModifiedTime().toMillis(), attributes.size(), hash,
+				certificate));
+		return certificate;
+	}
+
+	/**
+	 * Loads all certificate files ({@link Defaults#CERTIFICATE_FILES}) of a directory concurrently.
+	 * @return the files which could not be loaded and why, empty if all were loaded
+	 */
+	public Map<Path, Exception> preload(final Path directory) throws IOException, InterruptedException {
+		return preload(directory, Defaults.THREADS);
+	}
+
+	/**
+	 * Loads all certificate files ({@link Defaults#CERTIFICATE_FILES}) of a directory using the given number of
+	 * threads. Loading more files than the capacity of the cache evicts the ones loaded first.
+	 * @return the files which could not be loaded and why, empty if all were loaded
+	 */
+	public Map<Path, Exception> preload(final Path directory, final int threads)
+			throws IOException, InterruptedException {
+		if (threads < 1)
+			throw new IllegalArgumentException("threads must be greater than zero");
+		final List<Path> files = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, Defaults.CERTIFICATE_FILES)) {
+			for (Path file : stream)
+				if (Files.isRegularFile(file))
+					files.add(file);
+		}
+		final Map<Path, Exception> failures = new LinkedHashMap<>();
+		final ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, files.size())));
+		try {
+			final List<Future<?>> futures = new ArrayList<>(files.size());
+			for (final Path file : files)
+				futures.add(executor.submit(() -> getCertificate(file)));
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					futures.get(i).get();
+				} catch (ExecutionException e) {
+					failures.put(files.get(i), e.getCause() instanceof Exception
+							? (Exception) e.getCause() : new IllegalStateException(e.getCause()));
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		return failures;
+	}
+
+	/**
+	 * Drops all cached certificates, they are parsed again on their next use.
+	 */
+	public void clear() {
+		entries.clear();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return how many certificates were parsed so far
+	 */
+	public long getParses() {
+		return parses.get();
+	}
+
+	@Override
+	public String toString() {
+		return "CertificateCache{" +
+				"entries=" + entries +
+				", parses=" + parses +
+				'}';
+	}
+
+	private static class Entry {
+		private final long modified, size;
+		private final byte[] hash;
+		private final X509Certificate certificate;
+		private volatile long checkedAt = System.nanoTime();
+
+		private Entry(final long modified, final long size, final byte[] hash, final X509Certificate certificate) {
+			this.modified = modified;
+			this.size = size;
+			this.hash = hash;
+			this.certificate = certificate;
+		}
+	}
+}
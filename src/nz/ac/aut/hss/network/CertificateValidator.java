@@ -0,0 +1,295 @@
+package nz.ac.aut.hss.network;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CRL;
+import java.security.cert.CRLException;
+import java.security.cert.CertPathBuilder;
+import java.security.cert.CertPathValidator;
+import java.security.cert.CertStore;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.CollectionCertStoreParameters;
+import java.security.cert.PKIXBuilderParameters;
+import java.security.cert.PKIXCertPathBuilderResult;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509CRL;
+import java.security.cert.X509CertSelector;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Validates certificates with PKIX: a chain is built from the certificate to one of the trusted certificates, and
+ * every certificate in it is checked for expiry and, if CRLs are given, revocation. Certificates which are themselves
+ * trusted only have their validity period and revocation checked; a CRL counts for them only if it is current and
+ * signed by a trusted certificate of their issuer, which is the certificate itself if it is self-issued.
+ * <p>
+ * Verdicts are cached by the certificate's SHA-256 fingerprint, so validating the same certificate again costs a hash
+ * and a map lookup. A verdict is kept for {@link Defaults#TTL_MILLIS} at most, and never past the earliest expiry
+ * in the chain or the next update of a CRL. Failures are cached the same way.
+ * <p>
+ * With CRLs every certificate in the chain below the trusted certificate it ends in, and a certificate validated
+ * that is itself trusted, needs a CRL from its issuer, otherwise its revocation status is unknown and validation
+ * fails. The trusted certificate a longer chain ends in is not checked for revocation. Without CRLs revocation is not
+ * checked.
+ */
+public class CertificateValidator {
+	public static interface Defaults {
+		public final long TTL_MILLIS = 10 * 60 * 1000;
+		/**
+		 * The number of cached verdicts from which on expired verdicts are purged.
+		 */
+		public final int CAPACITY = 10000;
+	}
+
+	private static final ThreadLocal<MessageDigest> DIGESTS = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("Digest algorithm not available: " + e, e);
+			}
+		}
+	};
+
+	private final Set<TrustAnchor> anchors;
+	private final Set<X509Certificate> anchorCertificates;
+	private final CertStore certStore;
+	private final List<X509CRL> crls;
+	private final long ttlMillis;
+	private final Map<String, Verdict> verdicts = new ConcurrentHashMap<>();
+	private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+	/**
+	 * @param trustStore the trusted certificates
+	 * @param crls       revocation lists of the issuers, or an empty collection not to check revocation
+	 */
+	public CertificateValidator(final KeyStore trustStore, final Collection<? extends X509CRL> crls)
+			throws KeyStoreException {
+		this(trustStore, Collections.<X509Certificate>emptyList(), crls, Defaults.TTL_MILLIS);
+	}
+
+	/**
+	 * @param trustStore    the trusted certificates
+	 * @param intermediates untrusted certificates chains may be built with
+	 * @param crls          revocation lists of the issuers, or an empty collection not to check revocation
+	 * @param ttlMillis     how long a verdict is cached at most
+	 */
+	public CertificateValidator(final KeyStore trustStore, final Collection<? extends X509Certificate> intermediates,
+								final Collection<? extends X509CRL> crls, final long ttlMillis)
+			throws KeyStoreException {
+		if (ttlMillis < 0)
+			throw new IllegalArgumentException("ttlMillis must not be negative");
+		final Set<TrustAnchor> anchors = new HashSet<>();
+		final Set<X509Certificate> anchorCertificates = new HashSet<>();
+		for (Enumeration<String> e = trustStore.aliases(); e.hasMoreElements(); ) {
+			final Certificate certificate = trustStore.getCertificate(e.nextElement());
+			if (certificate instanceof X509Certificate) {
+				anchors.add(new TrustAnchor((X509Certificate) certificate, null));
+				anchorCertificates.add((X509Certificate) certificate);
+			}
+		}
+		if (anchors.isEmpty())
+			throw new KeyStoreException("Trust store contains no certificates");
+		this.anchors = anchors;
+		this.anchorCertificates = anchorCertificates;
+		this.crls = new ArrayList<>(crls);
+		final List<Object> storeContent = new ArrayList<Object>(intermediates);
+		storeContent.addAll(crls);
+		try {
+			this.certStore = CertStore.getInstance("Collection", new CollectionCertStoreParameters(storeContent));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Collection cert store not available: " + e, e);
+		}
+		this.ttlMillis = ttlMillis;
+	}
+
+	/**
+	 * Reads CRLs (DER or PEM, several per file are allowed) from local files, for offline revocation checks.
+	 */
+	public static List<X509CRL> loadCrls(final Collection<Path> files) throws IOException, CRLException {
+		final List<X509CRL> crls = new ArrayList<>();
+		final CertificateFactory factory;
+		try {
+			factory = CertificateFactory.getInstance("X.509");
+		} catch (CertificateException e) {
+			throw new IllegalStateException("X.509 certificates not supported: " + e, e);
+		}
+		for (Path file : files) {
+			try (InputStream is = Files.newInputStream(file)) {
+				for (CRL crl : factory.generateCRLs(is))
+					crls.add((X509CRL) crl);
+			}
+		}
+		return crls;
+	}
+
+	/**
+	 * @throws CertificateException if no valid chain to a trusted certificate could be built, with the reason as
+	 *                              cause
+	 */
+	public void validate(final X509Certificate certificate) throws CertificateException {
+		final String fingerprint = Base64.getEncoder().encodeToString(
+				DIGESTS.get().digest(certificate.getEncoded()));
+		final long now = System.currentTimeMillis();
+		Verdict verdict = verdicts.get(fingerprint);
+		if (verdict != null && now < verdict.expiresAt) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+			verdict = check(certificate, now);
+			if (verdicts.size() >= Defaults.CAPACITY)
+				purge(now);
+			verdicts.put(fingerprint, verdict);
+		}
+		if (verdict.failure != null)
+			throw new CertificateException("Certificate of " + certificate.getSubjectX500Principal()
+					+ " is not valid: " + verdict.failure.getMessage(), verdict.failure);
+	}
+
+	private Verdict check(final X509Certificate certificate, final long now) {
+		final Date date = new Date(now);
+		long expiresAt = now + ttlMillis;
+		for (X509CRL crl : crls)
+			if (crl.getNextUpdate() != null)
+				expiresAt = Math.min(expiresAt, crl.getNextUpdate().getTime());
+		try {
+			final List<X509Certificate> chain = new ArrayList<>();
+			if (anchorCertificates.contains(certificate)) {
+				certificate.checkValidity(date);
+				if (!crls.isEmpty())
+					checkRevocation(certificate, date);
+				chain.add(certificate);
+			} else {
+				final X509CertSelector target = new X509CertSelector();
+				target.setCertificate(certificate);
+				final PKIXBuilderParameters parameters = new PKIXBuilderParameters(anchors, target);
+				parameters.addCertStore(certStore);
+				parameters.setRevocationEnabled(false);
+				parameters.setDate(date);
+				final PKIXCertPathBuilderResult result =
+						(PKIXCertPathBuilderResult) CertPathBuilder.getInstance("PKIX").build(parameters);
+				if (!crls.isEmpty()) { // checked separately, the builder would only report that there is no path
+					parameters.setRevocationEnabled(true);
+					CertPathValidator.getInstance("PKIX").validate(result.getCertPath(), parameters);
+				}
+				for (Certificate element : result.getCertPath().getCertificates())
+					chain.add((X509Certificate) element);
+				chain.add(result.getTrustAnchor().getTrustedCert());
+			}
+			for (X509Certificate element : chain)
+				expiresAt = Math.min(expiresAt, element.getNotAfter().getTime() + 1);
+			return new Verdict(expiresAt, null);
+		} catch (GeneralSecurityException e) {
+			return new Verdict(expiresAt, e);
+		}
+	}
+
+	/**
+	 * Checks a trusted certificate against the CRLs of its issuer, which PKIX does not do for trust anchors.
+	 * @throws CertificateException if it has been revoked or there is no valid CRL from its issuer
+	 */
+	private void checkRevocation(final X509Certificate certificate, final Date date) throws CertificateException {
+		boolean checked = false;
+		for (X509CRL crl : crls) {
+			if (!crl.getIssuerX500Principal().equals(certificate.getIssuerX500Principal())
+					|| crl.getThisUpdate().after(date)
+					|| (crl.getNextUpdate() != null && !crl.getNextUpdate().after(date))
+					|| !isSignedByAnchor(crl))
+				continue;
+			if (crl.isRevoked(certificate))
+				throw new CertificateException("Certificate has been revoked");
+			checked = true;
+		}
+		if (!checked)
+			throw new CertificateException("No valid CRL from " + certificate.getIssuerX500Principal()
+					+ ", revocation status unknown");
+	}
+
+	private boolean isSignedByAnchor(final X509CRL crl) {
+		for (X509Certificate issuer : anchorCertificates) {
+			if (!issuer.getSubjectX500Principal().equals(crl.getIssuerX500Principal()))
+				continue;
+			try {
+				crl.verify(issuer.getPublicKey());
+				return true;
+			} catch (GeneralSecurityException e) {
+				// signed with another key of the same name, try the next one
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Removes expired verdicts, or all of them if none has expired.
+	 */
+	private void purge(final long now) {
+		final int size = verdicts.size();
+		for (Iterator<Verdict> i = verdicts.values().iterator(); i.hasNext(); )
+			if (now >= i.next().expiresAt)
+				i.remove();
+		if (verdicts.size() == size)
+			verdicts.clear();
+	}
+
+	/**
+	 * Drops all cached verdicts, e.g. after new CRLs were published.
+	 */
+	public void clear() {
+		verdicts.clear();
+	}
+
+	public int size() {
+		return verdicts.size();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	@Override
+	public String toString() {
+		return "CertificateValidator{" +
+				"anchors=" + anchors.size() +
+				", crls=" + crls.size() +
+				", verdicts=" + verdicts.size() +
+				", hits=" + hits +
+				", misses=" + misses +
+				'}';
+	}
+
+	private static class Verdict {
+		private final long expiresAt;
+		private final GeneralSecurityException failure;
+
+		private Verdict(final long expiresAt, final GeneralSecurityException failure) {
+			this.expiresAt = expiresAt;
+			this.failure = failure;
+		}
+	}
+}
@@ -0,0 +1,448 @@
+package nz.ac.aut.hss.network;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A read-only trust store for large numbers of certificates. The store file is memory-mapped and carries a sorted
+ * alias index and a sorted SHA-256 fingerprint index, so opening it does not read the certificates and a lookup
+ * decodes only the certificate requested. Startup time and heap use do not grow with the number of entries.
+ * <p>
+ * Every entry is protected by an HMAC-SHA256 over its alias and certificate, keyed with a key derived from the store
+ * password (PBKDF2), which is verified whenever the entry is read. A modified index can therefore make entries
+ * unreachable, but cannot make an alias resolve to a different certificate. Files are limited to 2 GB.
+ * <p>
+ * Layout: a 64 byte header, the entries (alias length, alias, certificate length, DER certificate, HMAC), the alias
+ * index (entry offsets sorted by alias) and the fingerprint index (fingerprint and entry offset, sorted by
+ * fingerprint).
+ */
+public class IndexedTrustStore implements Closeable {
+	public static interface Defaults {
+		public final int PBKDF2_ITERATIONS = 100000;
+		public final int DECODED_CACHE_CAPACITY = 1024;
+	}
+
+	private static final byte[] MAGIC = "SMNSITS1".getBytes(StandardCharsets.US_ASCII);
+	private static final int HEADER_SIZE = 64, SALT_SIZE = 16, MAC_SIZE = 32, FINGERPRINT_SIZE = 32;
+	private static final int FINGERPRINT_ENTRY_SIZE = FINGERPRINT_SIZE + 8;
+	/**
+	 * The largest iteration count accepted from a store header; a tampered count must not stall the key derivation.
+	 */
+	private static final int MAX_PBKDF2_ITERATIONS = 10 * Defaults.PBKDF2_ITERATIONS;
+	private static final String MAC_ALGORITHM = "HmacSHA256", KDF_ALGORITHM = "PBKDF2WithHmacSHA256";
+	private static final ThreadLocal<CertificateFactory> CERTIFICATE_FACTORIES = new ThreadLocal<CertificateFactory>() {
+		@Override
+		protected CertificateFactory initialValue() {
+			try {
+				return CertificateFactory.getInstance("X.509");
+			} catch (CertificateException e) {
+				throw new IllegalStateException("X.509 certificates not supported: " + e, e);
+			}
+		}
+	};
+	private static final Comparator<byte[]> UNSIGNED_ORDER = new Comparator<byte[]>() {
+		@Override
+		public int compare(final byte[] b1, final byte[] b2) {
+			return compareUnsigned(b1, b2);
+		}
+	};
+
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	private final int count, aliasIndex, fingerprintIndex;
+	private final ThreadLocal<Mac> macs;
+	private final LruCache<Integer, Certificate> decoded = new LruCache<>(Defaults.DECODED_CACHE_CAPACITY);
+
+	/**
+	 * Opens a store written by {@link #write}.
+	 * @throws KeyStoreException if the file is not an indexed trust store
+	 */
+	public IndexedTrustStore(final Path file, final char[] storepw) throws IOException, KeyStoreException {
+		channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			final long size = channel.size();
+			if (size > Integer.MAX_VALUE)
+				throw new KeyStoreException("Indexed trust store larger than 2 GB: " + file);
+			if (size < HEADER_SIZE)
+				throw new KeyStoreException("Not an indexed trust store: " + file);
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			final byte[] magic = new byte[MAGIC.length];
+			for (int i = 0; i < magic.length; i++)
+				magic[i] = buffer.get(i);
+			if (!Arrays.equals(magic, MAGIC))
+				throw new KeyStoreException("Not an indexed trust store: " + file);
+			count = buffer.getInt(8);
+			final int iterations = buffer.getInt(12);
+			final byte[] salt = new byte[SALT_SIZE];
+			for (int i = 0; i < SALT_SIZE; i++)
+				salt[i] = buffer.get(16 + i);
+			final long aliasIndexOffset = buffer.getLong(32), fingerprintIndexOffset = buffer.getLong(40);
+			if (count < 0 || aliasIndexOffset < HEADER_SIZE
+					|| aliasIndexOffset + 8L * count != fingerprintIndexOffset
+					|| fingerprintIndexOffset + (long) FINGERPRINT_ENTRY_SIZE * count != size)
+				throw new KeyStoreException("Corrupt indexed trust store: " + file);
+			aliasIndex = (int) aliasIndexOffset;
+			fingerprintIndex = (int) fingerprintIndexOffset;
+			final SecretKeySpec macKey = deriveKey(storepw, salt, iterations);
+			macs = new ThreadLocal<Mac>() {
+				@Override
+				protected Mac initialValue() {
+					try {
+						final Mac mac = Mac.getInstance(MAC_ALGORITHM);
+						mac.init(macKey);
+						return mac;
+					} catch (GeneralSecurityException e) {
+						throw new IllegalStateException("MAC algorithm not available: " + e, e);
+					}
+				}
+			};
+		} catch (IOException | KeyStoreException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return whether the file starts like an indexed trust store
+	 */
+	public static boolean isIndexedTrustStore(final Path file) throws IOException {
+		final byte[] magic = new byte[MAGIC.length];
+		try (InputStream is = Files.newInputStream(file)) {
+			int read = 0, n;
+			while (read < magic.length && (n = is.read(magic, read, magic.length - read)) != -1)
+				read += n;
+			return read == magic.length && Arrays.equals(magic, MAGIC);
+		}
+	}
+
+	/**
+	 * @return the certificate stored under the alias (case-insensitive as in JKS stores) or null if there is none
+	 * @throws KeyStoreException if the entry has been tampered with or the password is wrong
+	 */
+	public Certificate getCertificate(final String alias) throws KeyStoreException {
+		final byte[] key = normalize(alias).getBytes(StandardCharsets.UTF_8);
+		int low = 0, high = count - 1;
+		while (low <= high) {
+			final int middle = (low + high) >>> 1;
+			final int entry = entryOffset(buffer.getLong(aliasIndex + 8 * middle));
+			final int result = compareAlias(entry, key);
+			if (result < 0)
+				low = middle + 1;
+			else if (result > 0)
+				high = middle - 1;
+			else
+				return readEntry(entry);
+		}
+		return null;
+	}
+
+	/**
+	 * @param fingerprint the SHA-256 hash of the DER encoded certificate
+	 * @return the certificate or null if there is none with this fingerprint
+	 * @throws KeyStoreException if the entry has been tampered with or the password is wrong
+	 */
+	public Certificate getCertificateByFingerprint(final byte[] fingerprint) throws KeyStoreException {
+		if (fingerprint.length != FINGERPRINT_SIZE)
+			throw new IllegalArgumentException("SHA-256 fingerprint expected, got " + fingerprint.length + " bytes");
+		int low = 0, high = count - 1;
+		while (low <= high) {
+			final int middle = (low + high) >>> 1;
+			final int position = fingerprintIndex + FINGERPRINT_ENTRY_SIZE * middle;
+			int result = 0;
+			for (int i = 0; i < FINGERPRINT_SIZE && result == 0; i++)
+				result = (buffer.get(position + i) & 0xff) - (fingerprint[i] & 0xff);
+			if (result < 0)
+				low = middle + 1;
+			else if (result > 0)
+				high = middle - 1;
+			else {
+				final Certificate certificate = readEntry(entryOffset(buffer.getLong(position + FINGERPRINT_SIZE)));
+				try {
+					if (!MessageDigest.isEqual(fingerprint, sha256(certificate.getEncoded())))
+						throw new KeyStoreException("Fingerprint index does not match entry");
+				} catch (CertificateException e) {
+					throw new KeyStoreException(e);
+				}
+				return certificate;
+			}
+		}
+		return null;
+	}
+
+	public boolean containsAlias(final String alias) throws KeyStoreException {
+		return getCertificate(alias) != null;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Closes the file. The mapping is released once the store is garbage collected.
+	 */
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * @return the offset read from an index, checked to lie in the entries
+	 * @throws KeyStoreException if the index has been corrupted or truncated
+	 */
+	private int entryOffset(final long offset) throws KeyStoreException {
+		if (offset < HEADER_SIZE || offset + 4 > aliasIndex)
+			throw new KeyStoreException("Corrupt index entry pointing to " + offset);
+		return (int) offset;
+	}
+
+	private int compareAlias(final int entry, final byte[] key) throws KeyStoreException {
+		final int length = buffer.getInt(entry);
+		if (length < 0 || entry + 4L + length > aliasIndex)
+			throw new KeyStoreException("Corrupt entry at " + entry);
+		for (int i = 0; i < length && i < key.length; i++) {
+			final int result = (buffer.get(entry + 4 + i) & 0xff) - (key[i] & 0xff);
+			if (result != 0)
+				return result;
+		}
+		return length - key.length;
+	}
+
+	/**
+	 * Verifies and decodes the entry at the offset, decoded certificates are cached.
+	 */
+	private Certificate readEntry(final int entry) throws KeyStoreException {
+		Certificate certificate = decoded.get(entry);
+		if (certificate != null)
+			return certificate;
+		final int aliasLength = buffer.getInt(entry);
+		if (aliasLength < 0 || entry + 8L + aliasLength > aliasIndex)
+			throw new KeyStoreException("Corrupt entry at " + entry);
+		final int derOffset = entry + 4 + aliasLength + 4;
+		final int derLength = buffer.getInt(derOffset - 4);
+		if (derLength < 0 || (long) derOffset + derLength + MAC_SIZE > aliasIndex)
+			throw new KeyStoreException("Corrupt entry at " + entry);
+		final int macOffset = derOffset + derLength;
+
+		final ByteBuffer signed = buffer.duplicate();
+		signed.limit(macOffset).position(entry);
+		final Mac mac = macs.get();
+		mac.update(signed);
+		final byte[] expected = mac.doFinal(), actual = new byte[MAC_SIZE];
+		final ByteBuffer stored = buffer.duplicate();
+		stored.position(macOffset);
+		stored.get(actual);
+		if (!MessageDigest.isEqual(expected, actual))
+			throw new KeyStoreException("Trust store entry has been tampered with, or password was incorrect");
+
+		final byte[] der = new byte[derLength];
+		final ByteBuffer data = buffer.duplicate();
+		data.position(derOffset);
+		data.get(der);
+		try {
+			certificate = CERTIFICATE_FACTORIES.get().generateCertificate(new ByteArrayInputStream(der));
+		} catch (CertificateException e) {
+			throw new KeyStoreException(e);
+		}
+		decoded.put(entry, certificate);
+		return certificate;
+	}
+
+	/**
+	 * Writes all certificate entries of a key store (e.g. a JKS trust store) as an indexed trust store.
+	 * The file is replaced atomically.
+	 */
+	public static void write(final Path file, final KeyStore source, final char[] storepw)
+			throws IOException, KeyStoreException {
+		final List<String> aliases = new ArrayList<>();
+		final List<Certificate> certificates = new ArrayList<>();
+		for (Enumeration<String> e = source.aliases(); e.hasMoreElements(); ) {
+			final String alias = e.nextElement();
+			final Certificate certificate = source.getCertificate(alias);
+			if (certificate != null) {
+				aliases.add(alias);
+				certificates.add(certificate);
+			}
+		}
+		write(file, aliases, certificates, storepw);
+	}
+
+	/**
+	 * Writes the certificates under the aliases (case-insensitive, they are stored in lower case) as an indexed trust
+	 * store. The file is replaced atomically.
+	 */
+	public static void write(final Path file, final List<String> aliases, final List<Certificate> certificates,
+							 final char[] storepw) throws IOException, KeyStoreException {
+		if (aliases.size() != certificates.size())
+			throw new IllegalArgumentException("aliases and certificates differ in size");
+		final int count = aliases.size();
+		final byte[] salt = new byte[SALT_SIZE];
+		new SecureRandom().nextBytes(salt);
+		final Mac mac;
+		try {
+			mac = Mac.getInstance(MAC_ALGORITHM);
+			mac.init(deriveKey(storepw, salt, Defaults.PBKDF2_ITERATIONS));
+		} catch (GeneralSecurityException e) {
+			throw new KeyStoreException("MAC algorithm not available: " + e, e);
+		}
+
+		final byte[][] aliasBytes = new byte[count][], ders = new byte[count][], fingerprints = new byte[count][];
+		final long[] offsets = new long[count];
+		long offset = HEADER_SIZE;
+		for (int i = 0; i < count; i++) {
+			aliasBytes[i] = normalize(aliases.get(i)).getBytes(StandardCharsets.UTF_8);
+			try {
+				ders[i] = certificates.get(i).getEncoded();
+			} catch (CertificateException e) {
+				throw new KeyStoreException(e);
+			}
+			fingerprints[i] = sha256(ders[i]);
+			offsets[i] = offset;
+			offset += 4 + aliasBytes[i].length + 4 + ders[i].length + MAC_SIZE;
+		}
+		final Integer[] byAlias = sortedIndexes(aliasBytes), byFingerprint = sortedIndexes(fingerprints);
+		for (int i = 1; i < count; i++)
+			if (Arrays.equals(aliasBytes[byAlias[i - 1]], aliasBytes[byAlias[i]]))
+				throw new IllegalArgumentException("duplicate alias " + aliases.get(byAlias[i]));
+		if (offset + (8L + FINGERPRINT_ENTRY_SIZE) * count > Integer.MAX_VALUE)
+			throw new KeyStoreException("Indexed trust store would exceed 2 GB");
+
+		final Path directory = file.toAbsolutePath().getParent();
+		final Path temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+		try {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					Files.newOutputStream(temporary)))) {
+				out.write(MAGIC);
+				out.writeInt(count);
+				out.writeInt(Defaults.PBKDF2_ITERATIONS);
+				out.write(salt);
+				out.writeLong(offset);
+				out.writeLong(offset + 8L * count);
+				out.write(new byte[HEADER_SIZE - 48]);
+				for (int i = 0; i < count; i++) {
+					final ByteBuffer record = ByteBuffer.allocate(4 + aliasBytes[i].length + 4 + ders[i].length);
+					record.putInt(aliasBytes[i].length).put(aliasBytes[i]).putInt(ders[i].length).put(ders[i]);
+					out.write(record.array());
+					out.write(mac.doFinal(record.array()));
+				}
+				for (int i = 0; i < count; i++)
+					out.writeLong(offsets[byAlias[i]]);
+				for (int i = 0; i < count; i++) {
+					out.write(fingerprints[byFingerprint[i]]);
+					out.writeLong(offsets[byFingerprint[i]]);
+				}
+			}
+			Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+	}
+
+	/**
+	 * Converts a JKS trust store: <code>IndexedTrustStore &lt;trust store&gt; &lt;password&gt; &lt;output&gt;</code>
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length != 3) {
+			System.err.println("Usage: IndexedTrustStore <trust store> <password> <output>");
+			System.exit(1);
+		}
+		final char[] storepw = args[1].toCharArray();
+		final KeyStore source = KeyStore.getInstance(KeyStore.getDefaultType());
+		try (InputStream is = new FileInputStream(args[0])) {
+			source.load(is, storepw);
+		}
+		write(Paths.get(args[2]), source, storepw);
+		try (IndexedTrustStore store = new IndexedTrustStore(Paths.get(args[2]), storepw)) {
+			System.out.println("Wrote " + store.size() + " certificates to " + args[2]);
+		}
+	}
+
+	private static Integer[] sortedIndexes(final byte[][] keys) {
+		final Integer[] indexes = new Integer[keys.length];
+		for (int i = 0; i < indexes.length; i++)
+			indexes[i] = i;
+		Arrays.sort(indexes, new Comparator<Integer>() {
+			@Override
+			public int compare(final Integer i1, final Integer i2) {
+				return UNSIGNED_ORDER.compare(keys[i1], keys[i2]);
+			}
+		});
+		return indexes;
+	}
+
+	private static int compareUnsigned(final byte[] b1, final byte[] b2) {
+		for (int i = 0; i < b1.length && i < b2.length; i++) {
+			final int result = (b1[i] & 0xff) - (b2[i] & 0xff);
+			if (result != 0)
+				return result;
+		}
+		return b1.length - b2.length;
+	}
+
+	private static String normalize(final String alias) {
+		return alias.toLowerCase(Locale.ENGLISH);
+	}
+
+	private static SecretKeySpec deriveKey(final char[] storepw, final byte[] salt, final int iterations)
+			throws KeyStoreException {
+		if (iterations < 1 || iterations > MAX_PBKDF2_ITERATIONS)
+			throw new KeyStoreException("Invalid key derivation iteration count " + iterations);
+		final PBEKeySpec spec = new PBEKeySpec(storepw, salt, iterations, MAC_SIZE * 8);
+		try {
+			return new SecretKeySpec(SecretKeyFactory.getInstance(KDF_ALGORITHM).generateSecret(spec).getEncoded(),
+					MAC_ALGORITHM);
+		} catch (GeneralSecurityException e) {
+			throw new KeyStoreException("Key derivation not available: " + e, e);
+		} finally {
+			spec.clearPassword();
+		}
+	}
+
+	private static byte[] sha256(final byte[] data) {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(data);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("Digest algorithm not available: " + e, e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "IndexedTrustStore{" +
+				"count=" + count +
+				", decoded=" + decoded +
+				'}';
+	}
+}
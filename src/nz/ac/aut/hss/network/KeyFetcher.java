@@ -1,27 +1,67 @@
 package nz.ac.aut.hss.network;
 
-import java.io.FileInputStream;
+import com.sun.istack.internal.Nullable;
+
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.security.*;
+import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 
 public class KeyFetcher {
 	private final String keyStore;
 	private char[] storepw;
+	private final KeyStoreCache cache;
+	private final CertificateCache certificates;
+	private volatile CertificateValidator validator;
 
 	public KeyFetcher(String keyStore, char[] storepw) {
+		this(keyStore, storepw, KeyStoreCache.getDefault());
+	}
+
+	/**
+	 * @param cache the cache loaded key stores are kept in
+	 */
+	public KeyFetcher(String keyStore, char[] storepw, KeyStoreCache cache) {
+		this(keyStore, storepw, cache, CertificateCache.getDefault());
+	}
+
+	/**
+	 * @param cache        the cache loaded key stores are kept in
+	 * @param certificates the cache certificates read by {@link #getPublicKey(String)} are kept in
+	 */
+	public KeyFetcher(String keyStore, char[] storepw, KeyStoreCache cache, CertificateCache certificates) {
 		this.keyStore = keyStore;
 		this.storepw = storepw;
+		if (cache == null)
+			throw new IllegalArgumentException("cache must not be null");
+		this.cache = cache;
+		if (certificates == null)
+			throw new IllegalArgumentException("certificates must not be null");
+		this.certificates = certificates;
+	}
+
+	/**
+	 * @param validator validates every certificate a public key is taken from, or null not to validate them
+	 */
+	public void setCertificateValidator(@Nullable CertificateValidator validator) {
+		this.validator = validator;
 	}
 
 	/**
 	 * Loads the keystore. This can then be used to get the Private Key from the key Store. The keystore file e.g
 	 * keystoreA for UserA (which is a jks file) should be under the project file
 	 * directory for eclipse. E.g. ../workspace/Secure-Multiuser-Network-System/keystoreA
+	 * The keystore is only read from the file again once the file has changed, see {@link KeyStoreCache}; the returned
+	 * instance is shared and must not be modified.
 	 * @throws KeyStoreException
 	 * @throws IOException
 	 * @throws CertificateException
@@ -29,11 +69,7 @@ public class KeyFetcher {
 	 */
 	public KeyStore loadKeyStore(String keyStoreName, char[] storepw)
 			throws KeyStoreException, NoSuchAlgorithmException, CertificateException, IOException {
-		FileInputStream fis = new FileInputStream(keyStoreName);
-		KeyStore keystore = KeyStore.getInstance(KeyStore.getDefaultType());
-		keystore.load(fis, storepw);
-		fis.close();
-		return keystore;
+		return cache.getKeyStore(keyStoreName, storepw);
 	}
 
 	/**
@@ -47,21 +83,20 @@ public class KeyFetcher {
 	public Key getPrivateKey(String keyAlias, char[] keypw)
 			throws UnrecoverableKeyException, KeyStoreException, NoSuchAlgorithmException, CertificateException,
 			IOException {
-		KeyStore keystore = loadKeyStore(this.keyStore, this.storepw);
-		return keystore.getKey(keyAlias, keypw);
+		return cache.getKey(this.keyStore, this.storepw, keyAlias, keypw);
 	}
 
 	/**
 	 * Gets the other user's Public Key from the certificate that we have store (currently on file system).
+	 * The parsed certificate is cached until the file changes, see {@link CertificateCache}. It is validated if a
+	 * {@link #setCertificateValidator validator} is set.
 	 * @return
 	 * @throws FileNotFoundException
+	 * @throws IOException
 	 * @throws CertificateException
 	 */
-	public Key getPublicKey(String certificateFileName) throws FileNotFoundException, CertificateException {
-		InputStream is = new FileInputStream(certificateFileName); //byte stream of X.509 Cert
-		CertificateFactory certFactory = CertificateFactory.getInstance("X509");
-		X509Certificate certificate = (X509Certificate) certFactory.generateCertificate(is);
-		return certificate.getPublicKey();
+	public Key getPublicKey(String certificateFileName) throws IOException, CertificateException {
+		return validated(certificates.getCertificate(certificateFileName)).getPublicKey();
 	}
 
 	/**
@@ -72,6 +107,7 @@ public class KeyFetcher {
 	 * of
 	 * a multiuser OS with write access to that file to modify it and insert a malicious (the attackers own?)public
 	 * certificate.
+	 * The certificate is validated if a {@link #setCertificateValidator validator} is set.
 	 * @param trustStoreName The name of the truststore to load.
 	 * @return a public key
 	 * @throws IOException
@@ -81,9 +117,86 @@ public class KeyFetcher {
 	 */
 	public Key getPublicKeySecure(String trustStoreName, char[] storepw, String certAlias)
 			throws KeyStoreException, NoSuchAlgorithmException, CertificateException, IOException {
-		KeyStore truststore =
-				loadKeyStore(trustStoreName, storepw);//Truststore and Keystore implementation is identical in keytool
-		X509Certificate cert = (X509Certificate) truststore.getCertificate(certAlias);
-		return cert.getPublicKey();
+		X509Certificate cert = (X509Certificate) cache.getCertificate(trustStoreName, storepw,
+				certAlias);//Truststore and Keystore implementation is identical in keytool
+		return validated(cert).getPublicKey();
+	}
+
+	/**
+	 * Bulk version of {@link #getPublicKeySecure(String, char[], String)}, e.g. for all recipients of a distribution
+	 * list: the trust store is accessed once for all of them. Each name may be an alias or an e-mail address found in
+	 * a certificate, see {@link KeyStoreCache#getCertificates}.
+	 * @param names aliases or e-mail addresses
+	 * @return the keys found and the names that could not be resolved, which includes names of certificates rejected
+	 * by the {@link #setCertificateValidator validator}
+	 */
+	public ResolvedKeys getPublicKeysSecure(String trustStoreName, char[] storepw, Collection<String> names)
+			throws KeyStoreException, NoSuchAlgorithmException, CertificateException, IOException {
+		final Map<String, Certificate> certificates = cache.getCertificates(trustStoreName, storepw, names);
+		final Map<String, PublicKey> keys = new LinkedHashMap<>();
+		final List<String> unresolved = new ArrayList<>();
+		for (String name : new LinkedHashSet<>(names)) {
+			final Certificate certificate = certificates.get(name);
+			if (certificate != null && isValid(certificate))
+				keys.put(name, certificate.getPublicKey());
+			else
+				unresolved.add(name);
+		}
+		return new ResolvedKeys(keys, unresolved);
+	}
+
+	private X509Certificate validated(X509Certificate certificate) throws CertificateException {
+		final CertificateValidator validator = this.validator;
+		if (validator != null)
+			validator.validate(certificate);
+		return certificate;
+	}
+
+	private boolean isValid(Certificate certificate) {
+		try {
+			validated((X509Certificate) certificate);
+			return true;
+		} catch (CertificateException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * The result of {@link #getPublicKeysSecure(String, char[], Collection)}.
+	 */
+	public static class ResolvedKeys {
+		private final Map<String, PublicKey> keys;
+		private final List<String> unresolved;
+
+		private ResolvedKeys(final Map<String, PublicKey> keys, final List<String> unresolved) {
+			this.keys = Collections.unmodifiableMap(keys);
+			this.unresolved = Collections.unmodifiableList(unresolved);
+		}
+
+		/**
+		 * @return the public keys by the names they were requested with, in request order
+		 */
+		public Map<String, PublicKey> getKeys() {
+			return keys;
+		}
+
+		/**
+		 * @return the names without a certificate in the trust store, in request order
+		 */
+		public List<String> getUnresolved() {
+			return unresolved;
+		}
+
+		public boolean isComplete() {
+			return unresolved.isEmpty();
+		}
+
+		@Override
+		public String toString() {
+			return "ResolvedKeys{" +
+					"keys=" + keys.keySet() +
+					", unresolved=" + unresolved +
+					'}';
+		}
 	}
 }
@@ -0,0 +1,362 @@
+package nz.ac.aut.hss.network;
+
+import com.sun.istack.internal.Nullable;
+
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+import javax.security.auth.x500.X500Principal;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide cache of loaded key stores, so that looking up a key does not reopen the store file, check its
+ * integrity and parse every entry again. Stores are cached per file and password; keys and certificates read from a
+ * store are memoized as well. A store is loaded again when its file's modification time or size changes, which is
+ * checked at most once per {@link Defaults#RECHECK_MILLIS}.
+ * Files in the {@link IndexedTrustStore} format are opened as such; their certificates are looked up in the file's
+ * index instead of being loaded up front.
+ * The cached {@link KeyStore} instances are shared and must not be modified by callers.
+ */
+public class KeyStoreCache {
+	public static interface Defaults {
+		public final long RECHECK_MILLIS = 1000;
+	}
+
+	private static final String EMAIL_ADDRESS_OID = "1.2.840.113549.1.9.1";
+	private static final int RFC822_NAME = 1;
+	private static final KeyStoreCache DEFAULT = new KeyStoreCache(Defaults.RECHECK_MILLIS);
+	private static final ThreadLocal<MessageDigest> DIGESTS = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("Digest algorithm not available: " + e, e);
+			}
+		}
+	};
+
+	private final long recheckNanos;
+	private final Map<StoreKey, Slot> slots = new ConcurrentHashMap<>();
+	private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), reloads = new AtomicLong();
+
+	/**
+	 * @param recheckMillis how long a loaded store is used before its file is checked for changes, 0 checks on
+	 *                      every access
+	 */
+	public KeyStoreCache(final long recheckMillis) {
+		if (recheckMillis < 0)
+			throw new IllegalArgumentException("recheckMillis must not be negative");
+		this.recheckNanos = TimeUnit.MILLISECONDS.toNanos(recheckMillis);
+	}
+
+	/**
+	 * @return the cache shared by all {@link KeyFetcher}s that are not given their own
+	 */
+	public static KeyStoreCache getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * @return the loaded store, which must not be modified
+	 * @throws KeyStoreException if the file is an indexed trust store, which can only be used through
+	 *                           {@link #getCertificate}
+	 */
+	public KeyStore getKeyStore(final String keyStoreName, final char[] storepw)
+			throws KeyStoreException, NoSuchAlgorithmException, CertificateException, IOException {
+		return getKeyStore(getEntry(keyStoreName, storepw), keyStoreName);
+	}
+
+	/**
+	 * @return the key stored under the alias or null if there is none
+	 */
+	public Key getKey(final String keyStoreName, final char[] storepw, final String alias, final char[] keypw)
+			throws KeyStoreException, NoSuchAlgorithmException, CertificateException, IOException,
+			UnrecoverableKeyException {
+		final Entry entry = getEntry(keyStoreName, storepw);
+		final KeyStore keyStore = getKeyStore(entry, keyStoreName);
+		// the key password is part of the memo key so that a wrong password is never answered from the cache
+		final String memoKey = alias + '\u0000' + Base64.getEncoder().encodeToString(digest(keypw));
+		Key key = entry.keys.get(memoKey);
+		if (key == null) {
+			key = keyStore.getKey(alias, keypw);
+			if (key != null)
+				entry.keys.put(memoKey, key);
+		}
+		return key;
+	}
+
+	/**
+	 * @return the certificate stored under the alias or null if there is none
+	 */
+	public Certificate getCertificate(final String keyStoreName, final char[] storepw, final String alias)
+			throws KeyStoreException, NoSuchAlgorithmException, CertificateException, IOException {
+		final Entry entry = getEntry(keyStoreName, storepw);
+		return getCertificate(entry, alias);
+	}
+
+	/**
+	 * Looks up many certificates with one access to the store. Each name is tried as an alias first and then, if it
+	 * contains an '@', as an e-mail address in the certificates' subject (EMAILADDRESS) or subject alternative names
+	 * (rfc822Name), ignoring case. Indexed trust stores are only searched by alias, since finding addresses would
+	 * mean decoding every certificate.
+	 * @return the certificates found by name, in the iteration order of <code>names</code>; names which were not
+	 * found are left out
+	 */
+	public Map<String, Certificate> getCertificates(final String keyStoreName, final char[] storepw,
+													final Collection<String> names)
+			throws KeyStoreException, NoSuchAlgorithmException, CertificateException, IOException {
+		final Entry entry = getEntry(keyStoreName, storepw);
+		final Map<String, Certificate> certificates = new LinkedHashMap<>();
+		for (String name : names) {
+			Certificate certificate = getCertificate(entry, name);
+			if (certificate == null && entry.keyStore != null && name.indexOf('@') >= 0) {
+				final String alias = entry.getAliasesByEmail().get(name.toLowerCase(Locale.ENGLISH));
+				if (alias != null)
+					certificate = getCertificate(entry, alias);
+			}
+			if (certificate != null)
+				certificates.put(name, certificate);
+		}
+		return certificates;
+	}
+
+	/**
+	 * Drops all cached stores, they are loaded again on their next use.
+	 */
+	public void clear() {
+		slots.clear();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return how often a store was loaded again because its file changed
+	 */
+	public long getReloads() {
+		return reloads.get();
+	}
+
+	private static KeyStore getKeyStore(final Entry entry, final String keyStoreName) throws KeyStoreException {
+		if (entry.keyStore == null)
+			throw new KeyStoreException(keyStoreName + " is an indexed trust store and holds no keys");
+		return entry.keyStore;
+	}
+
+	private static Certificate getCertificate(final Entry entry, final String alias) throws KeyStoreException {
+		if (entry.indexed != null) // decodes just this certificate, the store keeps its own cache
+			return entry.indexed.getCertificate(alias);
+		Certificate certificate = entry.certificates.get(alias);
+		if (certificate == null) {
+			certificate = entry.keyStore.getCertificate(alias);
+			if (certificate != null)
+				entry.certificates.put(alias, certificate);
+		}
+		return certificate;
+	}
+
+	private Entry getEntry(final String keyStoreName, final char[] storepw)
+			throws KeyStoreException, NoSuchAlgorithmException, CertificateException, IOException {
+		final Path path = Paths.get(keyStoreName).toAbsolutePath().normalize();
+		final StoreKey key = new StoreKey(path, digest(storepw));
+		final Slot slot = slots.computeIfAbsent(key, k -> new Slot());
+		final Entry cached = slot.entry;
+		if (cached != null && System.nanoTime() - cached.checkedAt < recheckNanos) {
+			hits.incrementAndGet();
+			return cached;
+		}
+		synchronized (slot) { // only one thread loads a store, the others wait for its result
+			Entry entry = slot.entry;
+			final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+			final long modified = attributes.lastModifiedTime().toMillis(), size = attributes.size();
+			if (entry != null && entry.modified == modified && entry.size == size) {
+				entry.checkedAt = System.nanoTime();
+				hits.incrementAndGet();
+				return entry;
+			}
+			(entry == null ? misses : reloads).incrementAndGet();
+			final Entry previous = entry;
+			slot.entry = null;
+			try {
+				if (IndexedTrustStore.isIndexedTrustStore(path)) {
+					entry = new Entry(null, new IndexedTrustStore(path, storepw), modified, size);
+				} else {
+					final KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+					try (InputStream is = Files.newInputStream(path)) {
+						keyStore.load(is, storepw);
+					}
+					entry = new Entry(keyStore, null, modified, size);
+				}
+				slot.entry = entry;
+				return entry;
+			} finally {
+				if (previous != null && previous.indexed != null)
+					previous.indexed.close();
+				if (slot.entry == null) // e.g. a wrong password, nothing worth keeping
+					slots.remove(key, slot);
+			}
+		}
+	}
+
+	private static byte[] digest(final char[] password) {
+		final MessageDigest md = DIGESTS.get();
+		if (password != null) {
+			final ByteBuffer bytes = StandardCharsets.UTF_8.encode(CharBuffer.wrap(password));
+			md.update(bytes);
+			if (bytes.hasArray())
+				Arrays.fill(bytes.array(), (byte) 0);
+		}
+		return md.digest();
+	}
+
+	@Override
+	public String toString() {
+		return "KeyStoreCache{" +
+				"stores=" + slots.size() +
+				", hits=" + hits +
+				", misses=" + misses +
+				", reloads=" + reloads +
+				'}';
+	}
+
+	/**
+	 * Identifies a store by its file and a hash of its password, so a wrong password is never answered from the cache.
+	 */
+	private static class StoreKey {
+		private final Path path;
+		private final byte[] passwordHash;
+
+		private StoreKey(final Path path, final byte[] passwordHash) {
+			this.path = path;
+			this.passwordHash = passwordHash;
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+			if (this == o) return true;
+			if (o == null || getClass() != o.getClass()) return false;
+
+			final StoreKey storeKey = (StoreKey) o;
+
+			if (!path.equals(storeKey.path)) return false;
+			if (!Arrays.equals(passwordHash, storeKey.passwordHash)) return false;
+
+			return true;
+		}
+
+		@Override
+		public int hashCode() {
+			int result = path.hashCode();
+			result = 31 * result + Arrays.hashCode(passwordHash);
+			return result;
+		}
+	}
+
+	private static class Slot {
+		private volatile Entry entry;
+	}
+
+	private static class Entry {
+		@Nullable
+		private final KeyStore keyStore;
+		@Nullable
+		private final IndexedTrustStore indexed;
+		private final long modified, size;
+		private final Map<String, Key> keys = new ConcurrentHashMap<>();
+		private final Map<String, Certificate> certificates = new ConcurrentHashMap<>();
+		private volatile long checkedAt = System.nanoTime();
+		private volatile Map<String, String> aliasesByEmail;
+
+		private Entry(final KeyStore keyStore, final IndexedTrustStore indexed, final long modified,
+					  final long size) {
+			this.keyStore = keyStore;
+			this.indexed = indexed;
+			this.modified = modified;
+			this.size = size;
+		}
+
+		/**
+		 * @return the aliases of all certificates by their lower case e-mail addresses, built on first use
+		 */
+		private Map<String, String> getAliasesByEmail() throws KeyStoreException {
+			Map<String, String> aliases = aliasesByEmail;
+			if (aliases == null) {
+				aliases = new HashMap<>();
+				for (Enumeration<String> e = keyStore.aliases(); e.hasMoreElements(); ) {
+					final String alias = e.nextElement();
+					final Certificate certificate = keyStore.getCertificate(alias);
+					if (certificate instanceof X509Certificate)
+						for (String email : getEmailAddresses((X509Certificate) certificate))
+							aliases.putIfAbsent(email, alias);
+				}
+				aliasesByEmail = aliases;
+			}
+			return aliases;
+		}
+	}
+
+	/**
+	 * @return the lower case e-mail addresses in the certificate's subject and subject alternative names
+	 */
+	private static Set<String> getEmailAddresses(final X509Certificate certificate) {
+		final Set<String> emails = new LinkedHashSet<>();
+		final String subject = certificate.getSubjectX500Principal().getName(X500Principal.RFC2253,
+				Collections.singletonMap(EMAIL_ADDRESS_OID, "EMAILADDRESS"));
+		try {
+			for (Rdn rdn : new LdapName(subject).getRdns())
+				if ("EMAILADDRESS".equalsIgnoreCase(rdn.getType()))
+					emails.add(String.valueOf(rdn.getValue()).toLowerCase(Locale.ENGLISH));
+		} catch (InvalidNameException e) { // the principal's own RFC 2253 form, cannot happen
+			throw new IllegalStateException("Unparsable subject " + subject, e);
+		}
+		try {
+			final Collection<List<?>> alternativeNames = certificate.getSubjectAlternativeNames();
+			if (alternativeNames != null)
+				for (List<?> name : alternativeNames)
+					if (Integer.valueOf(RFC822_NAME).equals(name.get(0)))
+						emails.add(String.valueOf(name.get(1)).toLowerCase(Locale.ENGLISH));
+		} catch (CertificateParsingException e) {
+			// an undecodable extension, the subject is all there is
+		}
+		return emails;
+	}
+}
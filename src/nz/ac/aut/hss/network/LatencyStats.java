@@ -0,0 +1,107 @@
+package nz.ac.aut.hss.network;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe latency histogram. Recording is lock-free and does not allocate; values are counted in buckets
+ * that are at most 12.5% wide (eight per power of two), so percentiles are exact to within that. Values from one
+ * microsecond to about three days are distinguished, longer ones are counted in the last bucket.
+ */
+public class LatencyStats {
+	private static final int SUB_BUCKETS = 8, BUCKETS = 36 * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong(), totalNanos = new AtomicLong(), maxNanos = new AtomicLong();
+
+	public void record(final long nanos) {
+		final long value = Math.max(0, nanos);
+		counts.incrementAndGet(bucket(value));
+		count.incrementAndGet();
+		totalNanos.addAndGet(value);
+		long max;
+		while (value > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, value)) {
+			// retry
+		}
+	}
+
+	/**
+	 * Records the time elapsed since a {@link System#nanoTime()} timestamp.
+	 */
+	public void recordSince(final long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	private static int bucket(final long nanos) {
+		final long micros = nanos / 1000;
+		if (micros < SUB_BUCKETS)
+			return (int) micros;
+		final int exponent = 63 - Long.numberOfLeadingZeros(micros); // at least 3
+		final int subBucket = (int) (micros >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+		return Math.min(BUCKETS - 1, (exponent - 2) * SUB_BUCKETS + subBucket);
+	}
+
+	/**
+	 * @return the upper bound of the bucket in nanoseconds
+	 */
+	private static long upperBound(final int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return TimeUnit.MICROSECONDS.toNanos(bucket + 1);
+		final int exponent = bucket / SUB_BUCKETS + 2, subBucket = bucket % SUB_BUCKETS;
+		return TimeUnit.MICROSECONDS.toNanos((long) (SUB_BUCKETS + subBucket + 1) << (exponent - 3));
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public double getMeanNanos() {
+		final long n = count.get();
+		return n == 0 ? 0 : (double) totalNanos.get() / n;
+	}
+
+	public long getMaxNanos() {
+		return maxNanos.get();
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return the upper bound of the bucket the percentile falls into, at most the maximum, or 0 without values
+	 */
+	public long getPercentileNanos(final double percentile) {
+		long total = 0;
+		final long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++)
+			total += snapshot[i] = counts.get(i);
+		if (total == 0)
+			return 0;
+		final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank)
+				return Math.min(upperBound(i), maxNanos.get());
+		}
+		return maxNanos.get();
+	}
+
+	/**
+	 * Forgets all recorded values. Values recorded concurrently may be partly kept.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++)
+			counts.set(i, 0);
+		count.set(0);
+		totalNanos.set(0);
+		maxNanos.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.ENGLISH, "LatencyStats{count=%d, mean=%.1f ms, p50=%.1f ms, p99=%.1f ms, " +
+						"max=%.1f ms}", getCount(), getMeanNanos() / 1e6, getPercentileNanos(50) / 1e6,
+				getPercentileNanos(99) / 1e6, getMaxNanos() / 1e6);
+	}
+}
@@ -0,0 +1,111 @@
+package nz.ac.aut.hss.network;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe map bounded to a maximum number of entries which evicts the least recently used entry first and
+ * counts cache hits and misses.
+ */
+public class LruCache<K, V> {
+	private final int capacity;
+	private final Map<K, V> entries;
+	private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), evictions = new AtomicLong();
+
+	public LruCache(final int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity must be greater than zero");
+		this.capacity = capacity;
+		this.entries = new EvictingMap<>(capacity, evictions);
+	}
+
+	/**
+	 * @return the cached value or null if there is none, which is counted as a miss
+	 */
+	public V get(final K key) {
+		final V value;
+		synchronized (entries) {
+			value = entries.get(key);
+		}
+		(value != null ? hits : misses).incrementAndGet();
+		return value;
+	}
+
+	public void put(final K key, final V value) {
+		if (value == null)
+			throw new IllegalArgumentException("value must not be null");
+		synchronized (entries) {
+			entries.put(key, value);
+		}
+	}
+
+	public V remove(final K key) {
+		synchronized (entries) {
+			return entries.remove(key);
+		}
+	}
+
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	@Override
+	public String toString() {
+		return "LruCache{" +
+				"size=" + size() +
+				", capacity=" + capacity +
+				", hits=" + hits +
+				", misses=" + misses +
+				", evictions=" + evictions +
+				'}';
+	}
+
+	/**
+	 * An access-ordered map that drops its eldest entry once it holds more than <code>capacity</code> entries.
+	 */
+	private static class EvictingMap<K, V> extends LinkedHashMap<K, V> {
+		private static final long serialVersionUID = 1L;
+
+		private final int capacity;
+		private final AtomicLong evictions;
+
+		private EvictingMap(final int capacity, final AtomicLong evictions) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+			this.evictions = evictions;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<K, V> eldest) {
+			if (size() <= capacity)
+				return false;
+			evictions.incrementAndGet();
+			return true;
+		}
+	}
+}
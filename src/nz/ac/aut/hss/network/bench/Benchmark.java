@@ -0,0 +1,144 @@
+package nz.ac.aut.hss.network.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A minimal benchmark harness: warms an operation up, then times each invocation on the calling thread and reports
+ * throughput, latency percentiles and the bytes allocated per operation and per second.
+ * Results are only comparable between runs on the same machine and JVM.
+ */
+public class Benchmark {
+	public static interface Defaults {
+		public final long WARMUP_MILLIS = 2000;
+		public final long MEASURE_MILLIS = 5000;
+		public final int MAX_SAMPLES = 1000000;
+	}
+
+	/**
+	 * The code to benchmark.
+	 */
+	public static interface Operation {
+		void run() throws Exception;
+	}
+
+	private final long warmupNanos, measureNanos;
+
+	public Benchmark() {
+		this(Defaults.WARMUP_MILLIS, Defaults.MEASURE_MILLIS);
+	}
+
+	public Benchmark(final long warmupMillis, final long measureMillis) {
+		if (warmupMillis < 0 || measureMillis <= 0)
+			throw new IllegalArgumentException("invalid durations: " + warmupMillis + ", " + measureMillis);
+		this.warmupNanos = TimeUnit.MILLISECONDS.toNanos(warmupMillis);
+		this.measureNanos = TimeUnit.MILLISECONDS.toNanos(measureMillis);
+	}
+
+	/**
+	 * Runs the operation repeatedly for the warmup time and then for the measurement time.
+	 */
+	public Result run(final String name, final Operation operation) throws Exception {
+		final long warmupEnd = System.nanoTime() + warmupNanos;
+		while (System.nanoTime() < warmupEnd)
+			operation.run();
+
+		long[] samples = new long[1024];
+		int count = 0;
+		final long allocatedBefore = allocatedBytes();
+		final long start = System.nanoTime(), end = start + measureNanos;
+		long now = start;
+		while (now < end && count < Defaults.MAX_SAMPLES) {
+			operation.run();
+			final long finished = System.nanoTime();
+			if (count == samples.length)
+				samples = Arrays.copyOf(samples, count * 2);
+			samples[count++] = finished - now;
+			now = finished;
+		}
+		final long allocatedPerOp = allocatedBefore < 0 ? -1 : (allocatedBytes() - allocatedBefore) / count;
+		return new Result(name, Arrays.copyOf(samples, count), now - start, allocatedPerOp);
+	}
+
+	/**
+	 * @return the bytes allocated by the calling thread so far or -1 if the JVM does not count them
+	 */
+	@SuppressWarnings("deprecation") // Thread.getId(), its replacement threadId() needs Java 19
+	private static long allocatedBytes() {
+		final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+			if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled())
+				return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	public static class Result {
+		private final String name;
+		private final long[] sortedNanos;
+		private final long totalNanos;
+		private final long allocatedBytesPerOp;
+
+		private Result(final String name, final long[] nanos, final long totalNanos, final long allocatedBytesPerOp) {
+			this.name = name;
+			this.sortedNanos = nanos;
+			Arrays.sort(this.sortedNanos);
+			this.totalNanos = totalNanos;
+			this.allocatedBytesPerOp = allocatedBytesPerOp;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getOperations() {
+			return sortedNanos.length;
+		}
+
+		public double getOpsPerSecond() {
+			return sortedNanos.length * 1e9 / totalNanos;
+		}
+
+		public double getMeanNanos() {
+			return (double) totalNanos / sortedNanos.length;
+		}
+
+		/**
+		 * @param percentile between 0 and 100
+		 */
+		public long getPercentileNanos(final double percentile) {
+			final int index = (int) Math.ceil(percentile / 100 * sortedNanos.length) - 1;
+			return sortedNanos[Math.max(0, Math.min(sortedNanos.length - 1, index))];
+		}
+
+		/**
+		 * @return the bytes allocated per operation or -1 if unknown
+		 */
+		public long getAllocatedBytesPerOp() {
+			return allocatedBytesPerOp;
+		}
+
+		/**
+		 * @return the allocation rate in MB per second or -1 if unknown
+		 */
+		public double getAllocationRate() {
+			return allocatedBytesPerOp < 0 ? -1 : allocatedBytesPerOp * getOpsPerSecond() / (1 << 20);
+		}
+
+		public static String header() {
+			return String.format(Locale.ENGLISH, "%-40s %10s %12s %12s %12s %14s %12s",
+					"benchmark", "ops", "ops/s", "mean us", "p99 us", "alloc B/op", "alloc MB/s");
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.ENGLISH, "%-40s %10d %12.1f %12.1f %12.1f %14d %12.1f",
+					name, getOperations(), getOpsPerSecond(), getMeanNanos() / 1000,
+					getPercentileNanos(99) / 1000.0, allocatedBytesPerOp, getAllocationRate());
+		}
+	}
+}
@@ -0,0 +1,221 @@
+package nz.ac.aut.hss.network.bench;
+
+import nz.ac.aut.hss.network.KeyFetcher;
+import nz.ac.aut.hss.network.mail.CryptoService;
+import nz.ac.aut.hss.network.mail.MailReceiver;
+import nz.ac.aut.hss.network.mail.MailSender;
+import nz.ac.aut.hss.network.mail.MessageTemplate;
+import nz.ac.aut.hss.network.mail.SignatureAlgorithm;
+import nz.ac.aut.hss.network.mail.XMLSignerVerifier;
+
+import javax.activation.DataHandler;
+import javax.activation.FileDataSource;
+import javax.crypto.Cipher;
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.internet.MimeUtility;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Benchmarks signing and validation over a range of document sizes, key loading, raw signing and encryption and
+ * MIME building and parsing.
+ * Everything runs offline with the bundled key stores (keystoreA, truststoreB, certA.cer) and ComputerBooks.xml, so it has to be
+ * started from the project directory. Signing 100 MB documents needs a heap of about 4 GB (-Xmx4g).
+ * Usage: <code>BenchmarkSuite [name filter] [document sizes, e.g. 1k,1m,100m] [warmup ms] [measure ms]</code>
+ */
+public class BenchmarkSuite {
+	public static interface Defaults {
+		public final String TEMPLATE = "ComputerBooks.xml";
+		public final String SIZES = "1k,16k,1m,10m,100m";
+		public final String KEY_STORE = "keystoreA", TRUST_STORE = "truststoreB", ALIAS = "aliasA";
+		public final String CERTIFICATE = "certA.cer";
+		public final int LARGE_ATTACHMENT_MB = 16;
+		public final char[] PASSWORD = "password".toCharArray();
+	}
+
+	private final String filter;
+	private final Benchmark benchmark;
+
+	public BenchmarkSuite(final String filter, final Benchmark benchmark) {
+		this.filter = filter;
+		this.benchmark = benchmark;
+	}
+
+	public static void main(String[] args) throws Exception {
+		final BenchmarkSuite suite = new BenchmarkSuite(args.length > 0 ? args[0] : "", args.length > 3
+				? new Benchmark(Long.parseLong(args[2]), Long.parseLong(args[3])) : new Benchmark());
+		System.out.println(Benchmark.Result.header());
+		suite.runKeyFetcher();
+		suite.runCrypto();
+		suite.runSigning(args.length > 1 ? args[1] : Defaults.SIZES);
+		suite.runMime();
+	}
+
+	private void run(final String name, final Benchmark.Operation operation) throws Exception {
+		if (name.contains(filter))
+			System.out.println(benchmark.run(name, operation));
+	}
+
+	public void runKeyFetcher() throws Exception {
+		final KeyFetcher keyFetcher = new KeyFetcher(Defaults.KEY_STORE, Defaults.PASSWORD);
+		run("KeyFetcher.loadKeyStore", () -> keyFetcher.loadKeyStore(Defaults.KEY_STORE, Defaults.PASSWORD));
+		run("KeyFetcher.getPrivateKey", () -> keyFetcher.getPrivateKey(Defaults.ALIAS, Defaults.PASSWORD));
+		run("KeyFetcher.getPublicKey", () -> keyFetcher.getPublicKey(Defaults.CERTIFICATE));
+		run("KeyFetcher.getPublicKeySecure",
+				() -> keyFetcher.getPublicKeySecure(Defaults.TRUST_STORE, Defaults.PASSWORD, Defaults.ALIAS));
+	}
+
+	/**
+	 * Raw signing and encryption of a 1 KB payload, with a {@link Signature} or {@link Cipher} set up per operation
+	 * and with the instances kept by {@link CryptoService}.
+	 */
+	public void runCrypto() throws Exception {
+		final KeyFetcher keyFetcher = new KeyFetcher(Defaults.KEY_STORE, Defaults.PASSWORD);
+		final PrivateKey privateKey = (PrivateKey) keyFetcher.getPrivateKey(Defaults.ALIAS, Defaults.PASSWORD);
+		final PublicKey publicKey = (PublicKey) keyFetcher.getPublicKeySecure(Defaults.TRUST_STORE,
+				Defaults.PASSWORD, Defaults.ALIAS);
+		final CryptoService crypto = new CryptoService(keyFetcher);
+		final byte[] payload = Arrays.copyOf(Files.readAllBytes(Paths.get(Defaults.TEMPLATE)), 1024);
+		final byte[] signature = crypto.sign(privateKey, payload), sessionKey = Arrays.copyOf(payload, 32);
+		final String algorithm = crypto.getSignatureAlgorithm().getJcaName();
+		final String transformation = CryptoService.Defaults.CIPHER_TRANSFORMATION;
+
+		run("Signature.sign 1k", () -> {
+			final Signature signer = Signature.getInstance(algorithm);
+			signer.initSign(privateKey);
+			signer.update(payload);
+			signer.sign();
+		});
+		run("CryptoService.sign 1k", () -> crypto.sign(privateKey, payload));
+		run("Signature.verify 1k", () -> {
+			final Signature verifier = Signature.getInstance(algorithm);
+			verifier.initVerify(publicKey);
+			verifier.update(payload);
+			verifier.verify(signature);
+		});
+		run("CryptoService.verify 1k", () -> crypto.verify(publicKey, payload, signature));
+		run("Cipher.encrypt 32", () -> {
+			final Cipher cipher = Cipher.getInstance(transformation);
+			cipher.init(Cipher.ENCRYPT_MODE, publicKey);
+			cipher.doFinal(sessionKey);
+		});
+		run("CryptoService.encrypt 32", () -> crypto.encrypt(publicKey, sessionKey));
+	}
+
+	/**
+	 * @param sizes comma separated document sizes in bytes with an optional k or m suffix
+	 */
+	public void runSigning(final String sizes) throws Exception {
+		final KeyFetcher keyFetcher = new KeyFetcher(Defaults.KEY_STORE, Defaults.PASSWORD);
+		final PrivateKey privateKey = (PrivateKey) keyFetcher.getPrivateKey(Defaults.ALIAS, Defaults.PASSWORD);
+		final PublicKey publicKey = (PublicKey) keyFetcher.getPublicKeySecure(Defaults.TRUST_STORE,
+				Defaults.PASSWORD, Defaults.ALIAS);
+		final XMLSignerVerifier signer = new XMLSignerVerifier(privateKey, publicKey, Defaults.ALIAS,
+				SignatureAlgorithm.RSA_SHA256);
+		final BookDocuments documents = new BookDocuments(Paths.get(Defaults.TEMPLATE));
+		final OutputStream nowhere = OutputStream.nullOutputStream();
+
+		for (String size : sizes.split(",")) {
+			final String signName = "XMLSignerVerifier.sign " + size, validateName = "XMLSignerVerifier.validate " + size;
+			if (!signName.contains(filter) && !validateName.contains(filter))
+				continue;
+			final byte[] document = documents.generate(parseSize(size));
+			final ByteArrayOutputStream signed = new ByteArrayOutputStream(document.length + 4096);
+			signer.signDocument(new ByteArrayInputStream(document), signed);
+			final byte[] signedDocument = signed.toByteArray();
+			run(signName, () -> signer.signDocument(new ByteArrayInputStream(document), nowhere));
+			run(validateName, () -> {
+				if (!signer.validateDocument(new ByteArrayInputStream(signedDocument)))
+					throw new IllegalStateException("signature of the " + size + " document is not valid");
+			});
+		}
+	}
+
+	public void runMime() throws Exception {
+		final String text = new String(Files.readAllBytes(Paths.get(Defaults.TEMPLATE)), StandardCharsets.ISO_8859_1);
+		final File attachment = new File(Defaults.TEMPLATE);
+		final OutputStream nowhere = OutputStream.nullOutputStream();
+		run("MailSender.createBodyPart text", () -> MailSender.createBodyPart(text).writeTo(nowhere));
+		run("MailSender.createBodyPart file", () -> MailSender.createBodyPart(attachment).writeTo(nowhere));
+
+		final File large = File.createTempFile("attachment", ".bin");
+		large.deleteOnExit();
+		try (RandomAccessFile file = new RandomAccessFile(large, "rw")) {
+			file.setLength(Defaults.LARGE_ATTACHMENT_MB << 20);
+		}
+		final String largeName = " " + Defaults.LARGE_ATTACHMENT_MB + " MB";
+		run("FileDataSource part" + largeName, () -> {
+			// what JavaMail does for an attachment: determine the encoding when saving, then encode through streams
+			final MimeBodyPart part = new MimeBodyPart();
+			part.setDataHandler(new DataHandler(new FileDataSource(large)));
+			part.setHeader("Content-Transfer-Encoding", MimeUtility.getEncoding(part.getDataHandler()));
+			part.writeTo(nowhere);
+		});
+		run("MailSender.createBodyPart file" + largeName, () -> MailSender.createBodyPart(large).writeTo(nowhere));
+
+		final MailSender sender = new MailSender("localhost", 25, null, "bench@localhost", "Benchmark Sender");
+		final String recipients = "first@localhost, Second Recipient <second@localhost>";
+		run("MimeMessage notification", () -> {
+			// what every message cost before templates: parse, encode and save all headers per message
+			final MimeMessage plain = new MimeMessage(Session.getInstance(new Properties()));
+			plain.setFrom(new InternetAddress("bench@localhost", "Benchmark Sender"));
+			plain.setRecipients(Message.RecipientType.TO, InternetAddress.parse(recipients, false));
+			plain.setSubject("notification");
+			final MimeMultipart content = new MimeMultipart();
+			final MimeBodyPart part = new MimeBodyPart();
+			part.setText("short notification text");
+			content.addBodyPart(part);
+			plain.setContent(content);
+			plain.setSentDate(new Date());
+			plain.writeTo(nowhere);
+		});
+		run("MailSender.createMessage notification", () -> sender.createMessage(MailSender.parseRecipients(recipients),
+				"notification", MailSender.createBodyPart("short notification text")).writeTo(nowhere));
+		final MessageTemplate template = sender.createTemplate(recipients, "notification");
+		run("MessageTemplate notification",
+				() -> template.createMessage("short notification text").writeTo(nowhere));
+
+		final Session session = Session.getInstance(new Properties());
+		final MimeMessage message = new MimeMessage(session);
+		message.setSubject("benchmark");
+		final MimeMultipart multipart = new MimeMultipart();
+		multipart.addBodyPart(MailSender.createBodyPart(attachment));
+		multipart.addBodyPart(MailSender.createBodyPart(text));
+		message.setContent(multipart);
+		message.saveChanges();
+		final ByteArrayOutputStream raw = new ByteArrayOutputStream();
+		message.writeTo(raw);
+		final byte[] rawMessage = raw.toByteArray();
+		run("MailReceiver.extractText", () -> {
+			final Message received = new MimeMessage(session, new ByteArrayInputStream(rawMessage));
+			MailReceiver.extractText(received);
+		});
+	}
+
+	private static int parseSize(final String size) {
+		final String normalized = size.trim().toLowerCase(Locale.ENGLISH);
+		if (normalized.endsWith("k"))
+			return Integer.parseInt(normalized.substring(0, normalized.length() - 1)) << 10;
+		if (normalized.endsWith("m"))
+			return Integer.parseInt(normalized.substring(0, normalized.length() - 1)) << 20;
+		return Integer.parseInt(normalized);
+	}
+}
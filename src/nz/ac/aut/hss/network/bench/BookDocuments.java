@@ -0,0 +1,50 @@
+package nz.ac.aut.hss.network.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Generates test documents of a given size by repeating the <code>book</code> elements of a template such as
+ * ComputerBooks.xml.
+ */
+public class BookDocuments {
+	private static final String FIRST_BOOK = "<book ", LAST_BOOK = "</book>";
+
+	private final String head, books, tail;
+	private final Charset charset;
+
+	/**
+	 * @param template a document with at least one <code>book</code> element, encoded in ISO-8859-1 or UTF-8
+	 */
+	public BookDocuments(final Path template) throws IOException {
+		final byte[] bytes = Files.readAllBytes(template);
+		final String latin1 = new String(bytes, StandardCharsets.ISO_8859_1);
+		charset = latin1.contains("ISO-8859-1") ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8;
+		final String text = new String(bytes, charset);
+		final int start = text.indexOf(FIRST_BOOK), end = text.lastIndexOf(LAST_BOOK) + LAST_BOOK.length();
+		if (start < 0 || end < start)
+			throw new IllegalArgumentException("no book elements in " + template);
+		head = text.substring(0, start);
+		books = text.substring(start, end) + "\n   ";
+		tail = text.substring(end);
+	}
+
+	/**
+	 * @return a document of at least the given size (and at least one copy of the books) in the template's encoding
+	 */
+	public byte[] generate(final int minimumSize) {
+		final ByteArrayOutputStream document = new ByteArrayOutputStream(minimumSize + books.length() * 2);
+		final byte[] headBytes = head.getBytes(charset), booksBytes = books.getBytes(charset),
+				tailBytes = tail.getBytes(charset);
+		document.write(headBytes, 0, headBytes.length);
+		do {
+			document.write(booksBytes, 0, booksBytes.length);
+		} while (document.size() + tailBytes.length < minimumSize);
+		document.write(tailBytes, 0, tailBytes.length);
+		return document.toByteArray();
+	}
+}
@@ -0,0 +1,149 @@
+package nz.ac.aut.hss.network.bench;
+
+import nz.ac.aut.hss.network.LatencyStats;
+import nz.ac.aut.hss.network.mail.AsyncMailSender;
+import nz.ac.aut.hss.network.mail.ExecutionMode;
+import nz.ac.aut.hss.network.mail.MailAuthenticator;
+import nz.ac.aut.hss.network.mail.MailSender;
+import nz.ac.aut.hss.network.mail.OutboundSpool;
+import nz.ac.aut.hss.network.mail.PooledMailSender;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures how many messages concurrent threads send per second against a {@link StandInSmtpServer} with STARTTLS
+ * (using keystoreA) and a configurable response delay: with a new connection per message, sharing one
+ * {@link MailSender}, with a {@link PooledMailSender} of one connection per thread and with an {@link AsyncMailSender}
+ * on top of it, whose callers only wait for the message to be queued, and with an {@link OutboundSpool} in a
+ * temporary directory, whose callers wait for the message to be on disk.
+ * Usage: <code>MailSenderBenchmark [threads] [messages per thread] [response delay ms]</code>
+ */
+public class MailSenderBenchmark {
+	public static interface Defaults {
+		public final int THREADS = 8;
+		public final int MESSAGES = 100;
+		public final long RESPONSE_DELAY_MILLIS = 1;
+		public final String KEY_STORE = "keystoreA";
+		public final char[] PASSWORD = "password".toCharArray();
+		public final String ADDRESS = "bench@localhost";
+	}
+
+	/**
+	 * Sends one message, may be called by many threads at once.
+	 */
+	private static interface Send {
+		void send() throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		final int threads = args.length > 0 ? Integer.parseInt(args[0]) : Defaults.THREADS;
+		final int messages = args.length > 1 ? Integer.parseInt(args[1]) : Defaults.MESSAGES;
+		final long delay = args.length > 2 ? Long.parseLong(args[2]) : Defaults.RESPONSE_DELAY_MILLIS;
+		System.setProperty("mail.smtp.ssl.trust", "*");
+		System.setProperty("mail.smtp.ssl.protocols", "TLSv1.2"); // JavaMail 1.4 asks for TLSv1 otherwise
+
+		try (StandInSmtpServer server = new StandInSmtpServer(
+				StandInSmtpServer.tlsContext(Defaults.KEY_STORE, Defaults.PASSWORD), delay)) {
+			final MailAuthenticator authenticator = new MailAuthenticator("bench", "bench");
+			final String text = "benchmark message";
+			System.out.println(threads + " threads, " + messages + " messages each, " + delay + " ms response delay");
+
+			run("connection per message", threads, messages, server, () -> {
+				final MailSender sender = new MailSender(server.getHost(), server.getPort(), authenticator,
+						Defaults.ADDRESS, null);
+				sender.connect();
+				sender.sendMail(Defaults.ADDRESS, "benchmark", text);
+				sender.disconnect();
+			});
+
+			final MailSender shared = new MailSender(server.getHost(), server.getPort(), authenticator,
+					Defaults.ADDRESS, null);
+			shared.connect();
+			run("one shared MailSender", threads, messages, server, () -> {
+				synchronized (shared) { // a MailSender's transport must not be used concurrently
+					shared.sendMail(Defaults.ADDRESS, "benchmark", text);
+				}
+			});
+			shared.disconnect();
+
+			final PooledMailSender pooled = new PooledMailSender(server.getHost(), server.getPort(), authenticator,
+					Defaults.ADDRESS, null, threads, 60000);
+			pooled.connect();
+			run("PooledMailSender", threads, messages, server,
+					() -> pooled.sendMail(Defaults.ADDRESS, "benchmark", text));
+			System.out.println(pooled.getPool());
+
+			final AsyncMailSender async = new AsyncMailSender(pooled, threads, threads * messages,
+					AsyncMailSender.OverflowPolicy.BLOCK);
+			final LatencyStats callerLatency = new LatencyStats();
+			final Queue<CompletableFuture<Void>> futures = new ConcurrentLinkedQueue<>();
+			run("AsyncMailSender", threads, messages, server, () -> {
+				final long start = System.nanoTime();
+				futures.add(async.sendMailAsync(Defaults.ADDRESS, "benchmark", text));
+				callerLatency.recordSince(start);
+				if (futures.size() >= threads * messages) // the last message, wait for all of them
+					CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+			});
+			System.out.println("caller " + callerLatency);
+			System.out.println(async);
+			async.shutdown();
+			async.awaitTermination(1, TimeUnit.MINUTES);
+
+			final Path directory = Files.createTempDirectory("spool");
+			final OutboundSpool spool = new OutboundSpool(directory, pooled, threads, OutboundSpool.Defaults.SEGMENT_BYTES,
+					ExecutionMode.PLATFORM.newThreadFactory("spool worker"));
+			final LatencyStats spoolLatency = new LatencyStats();
+			run("OutboundSpool", threads, messages, server, () -> {
+				final long start = System.nanoTime();
+				spool.spoolMail(Defaults.ADDRESS, "benchmark", text);
+				spoolLatency.recordSince(start);
+			});
+			while (spool.getPending() > 0) // the rate above counts the messages delivered while spooling
+				Thread.sleep(10);
+			System.out.println("caller " + spoolLatency);
+			System.out.println(spool);
+			spool.close();
+			try (Stream<Path> files = Files.walk(directory)) {
+				files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+			}
+			pooled.disconnect();
+		}
+	}
+
+	private static void run(final String name, final int threads, final int messages,
+							final StandInSmtpServer server, final Send send) throws Exception {
+		final long connectionsBefore = server.getConnections(), messagesBefore = server.getMessages();
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			final long start = System.nanoTime();
+			final List<Future<?>> futures = new ArrayList<>();
+			for (int t = 0; t < threads; t++)
+				futures.add(executor.submit(() -> {
+					for (int i = 0; i < messages; i++)
+						send.send();
+					return null;
+				}));
+			for (Future<?> future : futures)
+				future.get();
+			final double seconds = (System.nanoTime() - start) / 1e9;
+			final long sent = server.getMessages() - messagesBefore;
+			System.out.println(String.format(Locale.ENGLISH, "%-28s %8d messages %10.1f msg/s %6d connections",
+					name, sent, sent / seconds, server.getConnections() - connectionsBefore));
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package nz.ac.aut.hss.network.bench;
+
+import nz.ac.aut.hss.network.mail.ExecutionMode;
+import nz.ac.aut.hss.network.mail.MailAuthenticator;
+import nz.ac.aut.hss.network.mail.MailReceiver;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connects a growing number of mailboxes to a {@link StandInImapServer}, each polled by its own
+ * {@link MailReceiver#waitForMessages()} loop, and reports the platform threads and heap used once all of them are
+ * polling, for each {@link ExecutionMode}. The stand-in server runs in the same JVM on platform threads, which
+ * are not counted: JavaMail 1.4 pins carrier threads during its round trips, and a server sharing them with the
+ * mailboxes would starve. Virtual threads need Java 21 or later, before that both modes use platform threads. Usage: <code>MailboxScalingBenchmark [mailbox counts, e.g. 100,1000] [modes, e.g. platform,virtual]</code>
+ */
+public class MailboxScalingBenchmark {
+	public static interface Defaults {
+		public final String MAILBOXES = "100,500,1000";
+		public final String MODES = "platform,virtual";
+		public final String KEY_STORE = "keystoreA";
+		public final char[] PASSWORD = "password".toCharArray();
+		/**
+		 * How long the mailboxes poll before threads and memory are measured.
+		 */
+		public final long SETTLE_MILLIS = 3000;
+	}
+
+	public static void main(String[] args) throws Exception {
+		final String[] counts = (args.length > 0 ? args[0] : Defaults.MAILBOXES).split(",");
+		final String[] modes = (args.length > 1 ? args[1] : Defaults.MODES).split(",");
+		System.setProperty("mail.imaps.ssl.trust", "*");
+		System.setProperty("mail.imaps.ssl.protocols", "TLSv1.2"); // JavaMail 1.4 asks for TLSv1 otherwise
+
+		System.out.println(String.format(Locale.ENGLISH, "%-10s %10s %10s %16s %14s %16s", "mode", "mailboxes",
+				"failed", "client threads", "heap MB", "connect s"));
+		for (String name : modes) {
+			final ExecutionMode mode = ExecutionMode.valueOf(name.trim().toUpperCase(Locale.ENGLISH));
+			if (!mode.isAvailable())
+				System.out.println(mode + " threads are not available in this JVM, measuring "
+						+ mode.effective() + " threads");
+			for (String count : counts)
+				run(mode, Integer.parseInt(count.trim()));
+		}
+	}
+
+	private static void run(final ExecutionMode mode, final int mailboxes) throws Exception {
+		final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		final ExecutorService serverExecutor = ExecutionMode.PLATFORM.newExecutor("imap server");
+		final ExecutorService executor = mode.newExecutor("mailbox");
+		final MailAuthenticator authenticator = new MailAuthenticator("bench", "bench");
+		final Queue<MailReceiver> receivers = new ConcurrentLinkedQueue<>();
+		final AtomicInteger failed = new AtomicInteger();
+		try (StandInImapServer server = new StandInImapServer(
+				StandInSmtpServer.tlsContext(Defaults.KEY_STORE, Defaults.PASSWORD), serverExecutor)) {
+			final CountDownLatch connected = new CountDownLatch(mailboxes);
+			final long start = System.nanoTime();
+			for (int i = 0; i < mailboxes; i++)
+				executor.execute(() -> {
+					final MailReceiver receiver;
+					try {
+						receiver = new MailReceiver(server.getHost(), server.getPort(), authenticator);
+						receivers.add(receiver);
+					} catch (Exception e) {
+						failed.incrementAndGet();
+						return;
+					} finally {
+						connected.countDown();
+					}
+					try {
+						receiver.waitForMessages(); // polls the empty INBOX until interrupted
+					} catch (InterruptedException e) {
+						// stopped
+					} catch (Exception e) {
+						failed.incrementAndGet();
+					}
+				});
+			connected.await();
+			final double connectSeconds = (System.nanoTime() - start) / 1e9;
+			Thread.sleep(Defaults.SETTLE_MILLIS);
+			System.gc();
+			final long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+			final long clientThreads = threads.getThreadCount() - server.getOpenConnections() - 1; // - accept loop
+			System.out.println(String.format(Locale.ENGLISH, "%-10s %10d %10d %16d %14.1f %16.2f",
+					mode.effective(), mailboxes, failed.get(), clientThreads, heap / 1048576.0, connectSeconds));
+		} finally {
+			executor.shutdownNow();
+			executor.awaitTermination(10, TimeUnit.SECONDS);
+			final List<MailReceiver> stopped = new ArrayList<>(receivers);
+			for (MailReceiver receiver : stopped)
+				receiver.disconnect();
+			serverExecutor.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package nz.ac.aut.hss.network.bench;
+
+import nz.ac.aut.hss.network.LatencyStats;
+import nz.ac.aut.hss.network.mail.AsyncMailSender;
+import nz.ac.aut.hss.network.mail.MailAuthenticator;
+import nz.ac.aut.hss.network.mail.MailSender;
+import nz.ac.aut.hss.network.mail.OutboundScheduler;
+import nz.ac.aut.hss.network.mail.PooledMailSender;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queues a burst of large attachments and then a steady stream of short notifications, and measures how long the
+ * notifications take from submission until they are sent: once through an {@link AsyncMailSender} with one FIFO
+ * queue and once through an {@link OutboundScheduler} with the same number of connections and workers, two of the
+ * workers reserved for the express lane.
+ * Usage: <code>OutboundSchedulerBenchmark [attachments] [attachment MB] [notifications] [notification interval ms]</code>
+ */
+public class OutboundSchedulerBenchmark {
+	public static interface Defaults {
+		public final int ATTACHMENTS = 12;
+		public final int ATTACHMENT_MB = 4;
+		public final int NOTIFICATIONS = 200;
+		public final long INTERVAL_MILLIS = 20;
+		public final int CONNECTIONS = 4;
+		public final String KEY_STORE = "keystoreA";
+		public final char[] PASSWORD = "password".toCharArray();
+		public final String ADDRESS = "bench@localhost";
+	}
+
+	/**
+	 * Queues one message.
+	 */
+	private static interface Submit {
+		CompletableFuture<Void> submit(boolean notification) throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		final int attachments = args.length > 0 ? Integer.parseInt(args[0]) : Defaults.ATTACHMENTS;
+		final int megabytes = args.length > 1 ? Integer.parseInt(args[1]) : Defaults.ATTACHMENT_MB;
+		final int notifications = args.length > 2 ? Integer.parseInt(args[2]) : Defaults.NOTIFICATIONS;
+		final long interval = args.length > 3 ? Long.parseLong(args[3]) : Defaults.INTERVAL_MILLIS;
+		System.setProperty("mail.smtp.ssl.trust", "*");
+		System.setProperty("mail.smtp.ssl.protocols", "TLSv1.2"); // JavaMail 1.4 asks for TLSv1 otherwise
+
+		final File attachment = File.createTempFile("attachment", ".bin");
+		attachment.deleteOnExit();
+		try (RandomAccessFile file = new RandomAccessFile(attachment, "rw")) {
+			file.setLength(megabytes * (1L << 20));
+		}
+		try (StandInSmtpServer server = new StandInSmtpServer(
+				StandInSmtpServer.tlsContext(Defaults.KEY_STORE, Defaults.PASSWORD), 0)) {
+			final PooledMailSender sender = new PooledMailSender(server.getHost(), server.getPort(),
+					new MailAuthenticator("bench", "bench"), Defaults.ADDRESS, null, Defaults.CONNECTIONS, 60000);
+			sender.connect();
+			System.out.println(attachments + " attachments of " + megabytes + " MB, then " + notifications
+					+ " notifications every " + interval + " ms, " + Defaults.CONNECTIONS + " connections");
+
+			final AsyncMailSender fifo = new AsyncMailSender(sender, Defaults.CONNECTIONS,
+					attachments + notifications, AsyncMailSender.OverflowPolicy.BLOCK);
+			run("FIFO AsyncMailSender", attachments, notifications, interval, notification -> notification
+					? fifo.sendMailAsync(Defaults.ADDRESS, "notification", "short text")
+					: fifo.sendMailAsync(Defaults.ADDRESS, "attachment", MailSender.createBodyPart(attachment)));
+			fifo.shutdown();
+			fifo.awaitTermination(1, TimeUnit.MINUTES);
+
+			final OutboundScheduler scheduler = new OutboundScheduler(sender, 2, Defaults.CONNECTIONS - 2,
+					OutboundScheduler.Defaults.SMALL_MESSAGE_BYTES, attachments + notifications,
+					AsyncMailSender.OverflowPolicy.BLOCK, r -> {
+						final Thread thread = new Thread(r, "scheduler worker");
+						thread.setDaemon(true);
+						return thread;
+					});
+			run("OutboundScheduler", attachments, notifications, interval, notification -> notification
+					? scheduler.sendMail(OutboundScheduler.Priority.NORMAL, Defaults.ADDRESS, "notification",
+					"short text")
+					: scheduler.sendMail(OutboundScheduler.Priority.NORMAL, Defaults.ADDRESS, "attachment",
+					MailSender.createBodyPart(attachment)));
+			for (OutboundScheduler.Lane lane : OutboundScheduler.Lane.values())
+				System.out.println("  " + lane + " queue wait " + scheduler.getQueueWait(lane));
+			scheduler.shutdown();
+			scheduler.awaitTermination(1, TimeUnit.MINUTES);
+			sender.disconnect();
+		}
+	}
+
+	private static void run(final String name, final int attachments, final int notifications, final long interval,
+							final Submit submit) throws Exception {
+		final long start = System.nanoTime();
+		final List<CompletableFuture<Void>> bulk = new ArrayList<>();
+		for (int i = 0; i < attachments; i++)
+			bulk.add(submit.submit(false));
+		final LatencyStats notificationLatency = new LatencyStats();
+		final List<CompletableFuture<Void>> small = new ArrayList<>();
+		for (int i = 0; i < notifications; i++) {
+			final long submitted = System.nanoTime();
+			small.add(submit.submit(true).thenRun(() -> notificationLatency.recordSince(submitted)));
+			Thread.sleep(interval);
+		}
+		CompletableFuture.allOf(small.toArray(new CompletableFuture<?>[0])).join();
+		CompletableFuture.allOf(bulk.toArray(new CompletableFuture<?>[0])).join();
+		System.out.println(String.format(Locale.ENGLISH, "%-22s notifications %s, all sent after %.1f s", name,
+				notificationLatency, (System.nanoTime() - start) / 1e9));
+	}
+}
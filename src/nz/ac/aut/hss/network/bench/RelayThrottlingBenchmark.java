@@ -0,0 +1,91 @@
+package nz.ac.aut.hss.network.bench;
+
+import nz.ac.aut.hss.network.mail.MailAuthenticator;
+import nz.ac.aut.hss.network.mail.PooledMailSender;
+import nz.ac.aut.hss.network.mail.RelayRateLimiter;
+
+import javax.mail.MessagingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends as fast as concurrent threads can to a {@link StandInSmtpServer} that defers messages above a rate limit with
+ * 451, once without pacing, where every deferral is an exception for the caller, and once through a
+ * {@link RelayRateLimiter}, whose target and achieved rate are printed every second.
+ * Usage: <code>RelayThrottlingBenchmark [threads] [seconds] [relay limit msg/s]</code>
+ */
+public class RelayThrottlingBenchmark {
+	public static interface Defaults {
+		public final int THREADS = 8;
+		public final int SECONDS = 15;
+		public final double RELAY_LIMIT = 100;
+		public final String KEY_STORE = "keystoreA";
+		public final char[] PASSWORD = "password".toCharArray();
+		public final String ADDRESS = "bench@localhost";
+	}
+
+	public static void main(String[] args) throws Exception {
+		final int threads = args.length > 0 ? Integer.parseInt(args[0]) : Defaults.THREADS;
+		final int seconds = args.length > 1 ? Integer.parseInt(args[1]) : Defaults.SECONDS;
+		final double limit = args.length > 2 ? Double.parseDouble(args[2]) : Defaults.RELAY_LIMIT;
+		System.setProperty("mail.smtp.ssl.trust", "*");
+		System.setProperty("mail.smtp.ssl.protocols", "TLSv1.2"); // JavaMail 1.4 asks for TLSv1 otherwise
+
+		try (StandInSmtpServer server = new StandInSmtpServer(
+				StandInSmtpServer.tlsContext(Defaults.KEY_STORE, Defaults.PASSWORD), 0)) {
+			server.setRateLimit(limit);
+			final PooledMailSender sender = new PooledMailSender(server.getHost(), server.getPort(),
+					new MailAuthenticator("bench", "bench"), Defaults.ADDRESS, null, threads, 60000);
+			sender.connect();
+			System.out.println(threads + " threads, " + seconds + " s, relay limit " + limit + " msg/s");
+
+			run("unpaced", threads, seconds, server, sender, null);
+			final RelayRateLimiter limiter = new RelayRateLimiter(server.getHost() + ":" + server.getPort());
+			sender.setRateLimiter(limiter);
+			run("RelayRateLimiter", threads, seconds, server, sender, limiter);
+			System.out.println(limiter);
+			sender.disconnect();
+		}
+	}
+
+	private static void run(final String name, final int threads, final int seconds, final StandInSmtpServer server,
+							final PooledMailSender sender, final RelayRateLimiter limiter) throws Exception {
+		final long messagesBefore = server.getMessages(), deferredBefore = server.getDeferred();
+		final AtomicLong failures = new AtomicLong();
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+		try {
+			final List<Future<?>> futures = new ArrayList<>();
+			for (int t = 0; t < threads; t++)
+				futures.add(executor.submit(() -> {
+					while (System.nanoTime() < end) {
+						try {
+							sender.sendMail(Defaults.ADDRESS, "benchmark", "benchmark message");
+						} catch (MessagingException e) {
+							failures.incrementAndGet();
+						}
+					}
+					return null;
+				}));
+			for (int second = 1; limiter != null && second <= seconds; second++) {
+				Thread.sleep(1000);
+				System.out.println(String.format(Locale.ENGLISH, "  %3d s: target %7.1f msg/s, achieved %7.1f msg/s",
+						second, limiter.getTargetRate(), limiter.getAchievedRate()));
+			}
+			for (Future<?> future : futures)
+				future.get();
+			final long sent = server.getMessages() - messagesBefore;
+			System.out.println(String.format(Locale.ENGLISH,
+					"%-20s %8d messages %8.1f msg/s %8d deferred by the relay %8d failed sends",
+					name, sent, sent / (double) seconds, server.getDeferred() - deferredBefore, failures.get()));
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
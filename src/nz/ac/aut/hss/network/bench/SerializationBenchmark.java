@@ -0,0 +1,154 @@
+package nz.ac.aut.hss.network.bench;
+
+import nz.ac.aut.hss.network.mail.SignatureAlgorithm;
+import nz.ac.aut.hss.network.mail.Utf8Writer;
+import nz.ac.aut.hss.network.mail.XMLCanonicalizer;
+import nz.ac.aut.hss.network.mail.XMLSignerVerifier;
+import org.w3c.dom.Document;
+
+import javax.xml.crypto.dsig.CanonicalizationMethod;
+import javax.xml.crypto.dsig.DigestMethod;
+import javax.xml.crypto.dsig.Reference;
+import javax.xml.crypto.dsig.SignatureMethod;
+import javax.xml.crypto.dsig.Transform;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.crypto.dsig.dom.DOMSignContext;
+import javax.xml.crypto.dsig.spec.C14NMethodParameterSpec;
+import javax.xml.crypto.dsig.spec.TransformParameterSpec;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.util.Collections;
+
+/**
+ * Compares the ways of getting a DOM document into a digest and into an output: canonicalizing through an
+ * OutputStreamWriter and DigestOutputStream against {@link Utf8Writer}, and serializing with a Transformer against the
+ * canonical serializer writing to a stream or a FileChannel. Signing a whole document with
+ * {@link XMLSignerVerifier} is measured as well.
+ * <p>
+ * Before measuring, the canonical form {@link XMLCanonicalizer} writes for the document, and for a small one that
+ * declares the <code>xml</code> prefix explicitly, is checked against the one the JDK's XML Signature implementation
+ * digests when validating, as the signer precomputes its digest with the former.
+ * Usage: <code>SerializationBenchmark [template] [document size] [warmup ms] [measure ms]</code>
+ */
+public class SerializationBenchmark {
+	public static interface Defaults {
+		public final String TEMPLATE = "ComputerBooks.xml";
+		public final int DOCUMENT_SIZE = 1 << 20;
+		public final String XML_PREFIX_DOCUMENT = "<catalog xmlns:xml=\"http://www.w3.org/XML/1998/namespace\" "
+				+ "xml:lang=\"en\"><book xmlns:xml=\"http://www.w3.org/XML/1998/namespace\" xml:space=\"preserve\">"
+				+ " Java </book></catalog>";
+	}
+
+	public static void main(String[] args) throws Exception {
+		final byte[] bytes = new BookDocuments(Paths.get(args.length > 0 ? args[0] : Defaults.TEMPLATE))
+				.generate(args.length > 1 ? Integer.parseInt(args[1]) : Defaults.DOCUMENT_SIZE);
+		final Benchmark benchmark = args.length > 3
+				? new Benchmark(Long.parseLong(args[2]), Long.parseLong(args[3])) : new Benchmark();
+
+		final DocumentBuilderFactory builderFactory = DocumentBuilderFactory.newInstance();
+		builderFactory.setNamespaceAware(true);
+		final Document document = builderFactory.newDocumentBuilder().parse(new ByteArrayInputStream(bytes));
+		final MessageDigest md = MessageDigest.getInstance("SHA-256");
+		final OutputStream nowhere = OutputStream.nullOutputStream();
+		final Transformer transformer = TransformerFactory.newInstance().newTransformer();
+		final Path file = Files.createTempFile("serialization", ".xml");
+		final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		final KeyPair keys = generator.generateKeyPair();
+		final XMLSignerVerifier signer = new XMLSignerVerifier(keys.getPrivate(), keys.getPublic(), null,
+				SignatureAlgorithm.RSA_SHA256);
+
+		checkCanonicalForm(builderFactory, bytes, keys);
+		checkCanonicalForm(builderFactory, Defaults.XML_PREFIX_DOCUMENT.getBytes(StandardCharsets.UTF_8), keys);
+
+		System.out.println("document: " + bytes.length + " bytes");
+		System.out.println(Benchmark.Result.header());
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			System.out.println(benchmark.run("digest OutputStreamWriter", () -> {
+				final Writer writer = new OutputStreamWriter(new DigestOutputStream(nowhere, md),
+						StandardCharsets.UTF_8);
+				new XMLCanonicalizer(writer, false).canonicalize(document);
+				writer.flush();
+				md.digest();
+			}));
+			System.out.println(benchmark.run("digest Utf8Writer", () -> {
+				final Writer writer = Utf8Writer.toDigest(md);
+				new XMLCanonicalizer(writer, false).canonicalize(document);
+				writer.close();
+				md.digest();
+			}));
+			System.out.println(benchmark.run("serialize Transformer", () -> {
+				transformer.transform(new DOMSource(document), new StreamResult(nowhere));
+			}));
+			System.out.println(benchmark.run("serialize Utf8Writer stream", () -> {
+				final Writer writer = Utf8Writer.toStream(nowhere);
+				new XMLCanonicalizer(writer, true).canonicalize(document);
+				writer.close();
+			}));
+			System.out.println(benchmark.run("serialize Utf8Writer FileChannel", () -> {
+				channel.position(0);
+				final Writer writer = Utf8Writer.toChannel(channel);
+				new XMLCanonicalizer(writer, true).canonicalize(document);
+				writer.close();
+			}));
+			System.out.println(benchmark.run("sign RSA_SHA256", () -> {
+				signer.signDocument(new ByteArrayInputStream(bytes), nowhere);
+			}));
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	/**
+	 * Canonicalizes the document with {@link XMLCanonicalizer}, from a DOM and from a StAX reader, and compares both
+	 * with what the JDK digests for an enveloped signature over the whole document.
+	 * @param keys an RSA key pair to sign with
+	 * @throws IllegalStateException if the canonical forms differ
+	 */
+	private static void checkCanonicalForm(final DocumentBuilderFactory builderFactory, final byte[] bytes,
+										   final KeyPair keys) throws Exception {
+		final StringWriter fromDom = new StringWriter();
+		new XMLCanonicalizer(fromDom, false).canonicalize(
+				builderFactory.newDocumentBuilder().parse(new ByteArrayInputStream(bytes)));
+		final StringWriter fromStax = new StringWriter();
+		new XMLCanonicalizer(fromStax, false).canonicalize(
+				XMLInputFactory.newInstance().createXMLStreamReader(new ByteArrayInputStream(bytes)));
+
+		final Document document = builderFactory.newDocumentBuilder().parse(new ByteArrayInputStream(bytes));
+		final XMLSignatureFactory factory = XMLSignatureFactory.getInstance("DOM");
+		final Reference reference = factory.newReference("", factory.newDigestMethod(DigestMethod.SHA256, null),
+				Collections.singletonList(factory.newTransform(Transform.ENVELOPED, (TransformParameterSpec) null)),
+				null, null);
+		final DOMSignContext context = new DOMSignContext(keys.getPrivate(), document.getDocumentElement());
+		context.setProperty("javax.xml.crypto.dsig.cacheReference", Boolean.TRUE);
+		factory.newXMLSignature(factory.newSignedInfo(
+				factory.newCanonicalizationMethod(CanonicalizationMethod.INCLUSIVE, (C14NMethodParameterSpec) null),
+				factory.newSignatureMethod(SignatureMethod.RSA_SHA256, null),
+				Collections.singletonList(reference)), null).sign(context);
+		final String expected = new String(reference.getDigestInputStream().readAllBytes(), StandardCharsets.UTF_8);
+
+		if (!expected.equals(fromDom.toString()))
+			throw new IllegalStateException("Canonical form from the DOM differs from the JDK's");
+		if (!expected.equals(fromStax.toString()))
+			throw new IllegalStateException("Canonical form from the StAX reader differs from the JDK's");
+	}
+}
@@ -0,0 +1,117 @@
+package nz.ac.aut.hss.network.bench;
+
+import nz.ac.aut.hss.network.KeyFetcher;
+import nz.ac.aut.hss.network.mail.AsyncMailSender;
+import nz.ac.aut.hss.network.mail.MailAuthenticator;
+import nz.ac.aut.hss.network.mail.MailSender;
+import nz.ac.aut.hss.network.mail.PooledMailSender;
+import nz.ac.aut.hss.network.mail.SignAndSendPipeline;
+import nz.ac.aut.hss.network.mail.SignatureAlgorithm;
+import nz.ac.aut.hss.network.mail.XMLSignerVerifier;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Paths;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Signs XML documents and mails them to a {@link StandInSmtpServer}, once as before, signing each document into a
+ * temporary file which is then attached, by as many threads as there are connections, and once through a
+ * {@link SignAndSendPipeline} with the same connections, which signs into memory.
+ * It has to be started from the project directory for the key stores and ComputerBooks.xml.
+ * Usage: <code>SignAndSendBenchmark [documents] [document KB] [connections]</code>
+ */
+public class SignAndSendBenchmark {
+	public static interface Defaults {
+		public final int DOCUMENTS = 400;
+		public final int DOCUMENT_KB = 64;
+		public final int CONNECTIONS = 4;
+		public final int WARMUP = 200;
+		public final String TEMPLATE = "ComputerBooks.xml";
+		public final String KEY_STORE = "keystoreA", TRUST_STORE = "truststoreB", ALIAS = "aliasA";
+		public final char[] PASSWORD = "password".toCharArray();
+		public final String ADDRESS = "bench@localhost";
+	}
+
+	public static void main(String[] args) throws Exception {
+		final int documents = args.length > 0 ? Integer.parseInt(args[0]) : Defaults.DOCUMENTS;
+		final int kilobytes = args.length > 1 ? Integer.parseInt(args[1]) : Defaults.DOCUMENT_KB;
+		final int connections = args.length > 2 ? Integer.parseInt(args[2]) : Defaults.CONNECTIONS;
+		System.setProperty("mail.smtp.ssl.trust", "*");
+		System.setProperty("mail.smtp.ssl.protocols", "TLSv1.2"); // JavaMail 1.4 asks for TLSv1 otherwise
+
+		final KeyFetcher keyFetcher = new KeyFetcher(Defaults.KEY_STORE, Defaults.PASSWORD);
+		final XMLSignerVerifier signer = new XMLSignerVerifier(
+				(PrivateKey) keyFetcher.getPrivateKey(Defaults.ALIAS, Defaults.PASSWORD),
+				(PublicKey) keyFetcher.getPublicKeySecure(Defaults.TRUST_STORE, Defaults.PASSWORD, Defaults.ALIAS),
+				Defaults.ALIAS, SignatureAlgorithm.RSA_SHA256);
+		final byte[] document = new BookDocuments(Paths.get(Defaults.TEMPLATE)).generate(kilobytes << 10);
+		for (int i = 0; i < Defaults.WARMUP; i++) // so that neither variant pays for the JIT compiling the signer
+			signer.signDocument(new ByteArrayInputStream(document), OutputStream.nullOutputStream());
+
+		try (StandInSmtpServer server = new StandInSmtpServer(
+				StandInSmtpServer.tlsContext(Defaults.KEY_STORE, Defaults.PASSWORD), 0)) {
+			final PooledMailSender sender = new PooledMailSender(server.getHost(), server.getPort(),
+					new MailAuthenticator("bench", "bench"), Defaults.ADDRESS, null, connections, 60000);
+			sender.connect();
+			System.out.println(documents + " documents of " + kilobytes + " KB, " + connections + " connections");
+
+			long start = System.nanoTime(), messages = server.getMessages();
+			final ExecutorService executor = Executors.newFixedThreadPool(connections);
+			final List<Future<?>> futures = new ArrayList<>();
+			for (int i = 0; i < documents; i++)
+				futures.add(executor.submit(() -> {
+					final File signed = File.createTempFile("signed", ".xml");
+					try {
+						try (OutputStream os = new FileOutputStream(signed)) {
+							signer.signDocument(new ByteArrayInputStream(document), os);
+						}
+						sender.sendMail(Defaults.ADDRESS, "signed document",
+								MailSender.createBodyPart("see attachment"), MailSender.createBodyPart(signed, "document.xml"));
+					} finally {
+						signed.delete();
+					}
+					return null;
+				}));
+			for (Future<?> future : futures)
+				future.get();
+			executor.shutdown();
+			print("temporary files", documents, server.getMessages() - messages, start);
+
+			start = System.nanoTime();
+			messages = server.getMessages();
+			final AsyncMailSender async = new AsyncMailSender(sender, connections, connections * 2,
+					AsyncMailSender.OverflowPolicy.BLOCK);
+			final SignAndSendPipeline pipeline = new SignAndSendPipeline(signer, async, connections, connections * 4);
+			final List<CompletableFuture<Void>> sends = new ArrayList<>();
+			for (int i = 0; i < documents; i++)
+				sends.add(pipeline.submit(Defaults.ADDRESS, "signed document", "see attachment",
+						new ByteArrayInputStream(document), "document.xml"));
+			CompletableFuture.allOf(sends.toArray(new CompletableFuture<?>[0])).join();
+			print("SignAndSendPipeline", documents, server.getMessages() - messages, start);
+			System.out.println("  " + pipeline);
+			pipeline.shutdown();
+			pipeline.awaitTermination(1, TimeUnit.MINUTES);
+			async.shutdown();
+			async.awaitTermination(1, TimeUnit.MINUTES);
+			sender.disconnect();
+		}
+	}
+
+	private static void print(final String name, final int documents, final long sent, final long start) {
+		final double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format(Locale.ENGLISH, "%-20s %6d sent %8.1f documents/s %8.2f s", name, sent,
+				documents / seconds, seconds));
+	}
+}
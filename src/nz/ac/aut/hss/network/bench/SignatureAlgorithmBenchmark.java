@@ -0,0 +1,77 @@
+package nz.ac.aut.hss.network.bench;
+
+import nz.ac.aut.hss.network.mail.SignatureAlgorithm;
+import nz.ac.aut.hss.network.mail.XMLSignerVerifier;
+
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+
+/**
+ * Compares signing and validation throughput of the supported signature algorithms with freshly generated keys
+ * (RSA 2048 bit, EC P-256, Ed25519), as well as the length of the Base64 encoded signature values.
+ * Usage: <code>SignatureAlgorithmBenchmark [document] [warmup ms] [measure ms]</code>
+ */
+public class SignatureAlgorithmBenchmark {
+	public static interface Defaults {
+		public final String DOCUMENT = "ComputerBooks.xml";
+		public final int RSA_KEY_SIZE = 2048;
+		public final int EC_KEY_SIZE = 256;
+	}
+
+	public static void main(String[] args) throws Exception {
+		final byte[] document = Files.readAllBytes(Paths.get(args.length > 0 ? args[0] : Defaults.DOCUMENT));
+		final Benchmark benchmark = args.length > 2
+				? new Benchmark(Long.parseLong(args[1]), Long.parseLong(args[2])) : new Benchmark();
+		final XMLSignatureFactory sigFactory = XMLSignatureFactory.getInstance("DOM");
+
+		System.out.println(Benchmark.Result.header() + String.format(" %12s", "sig chars"));
+		for (SignatureAlgorithm algorithm : SignatureAlgorithm.values()) {
+			if (!algorithm.isSupported(sigFactory)) {
+				System.out.println(algorithm + " is not supported by the XML signature provider, skipped");
+				continue;
+			}
+			final KeyPair keys = generateKeyPair(algorithm);
+			final XMLSignerVerifier signer = new XMLSignerVerifier(keys.getPrivate(), keys.getPublic(), null,
+					algorithm);
+			final ByteArrayOutputStream signed = new ByteArrayOutputStream();
+			signer.signDocument(new ByteArrayInputStream(document), signed);
+			final byte[] signedDocument = signed.toByteArray();
+			if (!signer.validateDocument(new ByteArrayInputStream(signedDocument)))
+				throw new IllegalStateException(algorithm + " signature does not validate");
+
+			final Benchmark.Result signing = benchmark.run(algorithm + " sign", () -> {
+				signed.reset();
+				signer.signDocument(new ByteArrayInputStream(document), signed);
+			});
+			System.out.println(signing + String.format(" %12d", signatureValueLength(signedDocument)));
+			final Benchmark.Result validation = benchmark.run(algorithm + " validate", () -> {
+				signer.validateDocument(new ByteArrayInputStream(signedDocument));
+			});
+			System.out.println(validation);
+		}
+	}
+
+	private static KeyPair generateKeyPair(final SignatureAlgorithm algorithm) throws Exception {
+		final KeyPairGenerator generator = KeyPairGenerator.getInstance(algorithm.getKeyAlgorithm());
+		if ("RSA".equals(algorithm.getKeyAlgorithm()))
+			generator.initialize(Defaults.RSA_KEY_SIZE);
+		else if ("EC".equals(algorithm.getKeyAlgorithm()))
+			generator.initialize(Defaults.EC_KEY_SIZE);
+		return generator.generateKeyPair();
+	}
+
+	/**
+	 * @return the length of the Base64 encoded SignatureValue
+	 */
+	private static int signatureValueLength(final byte[] signedDocument) {
+		final String text = new String(signedDocument, StandardCharsets.UTF_8);
+		final int start = text.indexOf('>', text.indexOf("SignatureValue")) + 1;
+		return text.indexOf('<', start) - start;
+	}
+}
@@ -0,0 +1,182 @@
+package nz.ac.aut.hss.network.bench;
+
+import javax.net.ssl.SSLContext;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local IMAPS server for benchmarks with one empty INBOX, which accepts every login. It implements just what
+ * {@link nz.ac.aut.hss.network.mail.MailReceiver} needs to connect, open the INBOX and poll it for new messages.
+ * Clients have to trust its certificate, e.g. with the system property <code>mail.imaps.ssl.trust=*</code>.
+ */
+public class StandInImapServer implements Closeable {
+	private final ServerSocket serverSocket;
+	private final ExecutorService connections;
+	private final AtomicLong accepted = new AtomicLong(), open = new AtomicLong(), commands = new AtomicLong();
+
+	/**
+	 * Starts listening on a free port of the loopback interface.
+	 * @param tls         the context connections are secured with
+	 * @param connections runs the accept loop and one task per connection
+	 */
+	public StandInImapServer(final SSLContext tls, final ExecutorService connections) throws IOException {
+		if (tls == null)
+			throw new IllegalArgumentException("tls must not be null");
+		this.connections = connections;
+		this.serverSocket = tls.getServerSocketFactory().createServerSocket(0, 4096, InetAddress.getLoopbackAddress());
+		connections.execute(this::acceptLoop);
+	}
+
+	public String getHost() {
+		return serverSocket.getInetAddress().getHostAddress();
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * @return how many connections were accepted so far
+	 */
+	public long getConnections() {
+		return accepted.get();
+	}
+
+	/**
+	 * @return how many connections are currently open
+	 */
+	public long getOpenConnections() {
+		return open.get();
+	}
+
+	/**
+	 * @return how many commands were answered so far
+	 */
+	public long getCommands() {
+		return commands.get();
+	}
+
+	private void acceptLoop() {
+		while (!serverSocket.isClosed()) {
+			try {
+				final Socket socket = serverSocket.accept();
+				accepted.incrementAndGet();
+				connections.execute(() -> serve(socket));
+			} catch (IOException e) {
+				if (!serverSocket.isClosed())
+					System.err.println(e.getClass().getName() + " while accepting: " + e.getMessage());
+			}
+		}
+	}
+
+	private void serve(final Socket socket) {
+		open.incrementAndGet();
+		try {
+			final InputStream in = new BufferedInputStream(socket.getInputStream());
+			final OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+			respond(out, "* OK [CAPABILITY IMAP4rev1] stand-in ready");
+			String line;
+			while ((line = readLine(in)) != null) {
+				commands.incrementAndGet();
+				final String[] words = line.split(" ", 3);
+				final String tag = words[0], command = words.length > 1 ? words[1].toUpperCase(Locale.ENGLISH) : "";
+				switch (command) {
+					case "CAPABILITY":
+						respond(out, "* CAPABILITY IMAP4rev1\r\n" + tag + " OK CAPABILITY completed");
+						break;
+					case "LOGIN":
+						respond(out, tag + " OK [CAPABILITY IMAP4rev1] LOGIN completed");
+						break;
+					case "LIST":
+					case "LSUB":
+						respond(out, "* " + command + " (\\HasNoChildren) \"/\" INBOX\r\n" + tag + " OK "
+								+ command + " completed");
+						break;
+					case "SELECT":
+					case "EXAMINE":
+						respond(out, "* FLAGS (\\Seen)\r\n* 0 EXISTS\r\n* 0 RECENT\r\n* OK [UIDVALIDITY 1]\r\n"
+								+ tag + " OK [" + ("SELECT".equals(command) ? "READ-WRITE" : "READ-ONLY") + "] "
+								+ command + " completed");
+						break;
+					case "SEARCH":
+						respond(out, "* SEARCH\r\n" + tag + " OK SEARCH completed");
+						break;
+					case "LOGOUT":
+						respond(out, "* BYE logging out\r\n" + tag + " OK LOGOUT completed");
+						return;
+					case "NOOP":
+					case "CHECK":
+					case "CLOSE":
+						respond(out, tag + " OK " + command + " completed");
+						break;
+					default:
+						respond(out, tag + " BAD command not supported");
+				}
+			}
+		} catch (IOException e) {
+			// the client went away
+		} finally {
+			open.decrementAndGet();
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// closing anyway
+			}
+		}
+	}
+
+	private static void respond(final OutputStream out, final String response) throws IOException {
+		out.write(response.getBytes(StandardCharsets.US_ASCII));
+		out.write('\r');
+		out.write('\n');
+		out.flush();
+	}
+
+	/**
+	 * @return the next line without its line break, or null at the end of the stream
+	 */
+	private static String readLine(final InputStream in) throws IOException {
+		final ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+		int b;
+		while ((b = in.read()) != -1) {
+			if (b == '\n')
+				break;
+			if (b != '\r')
+				line.write(b);
+		}
+		if (b == -1 && line.size() == 0)
+			return null;
+		return new String(line.toByteArray(), StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Stops accepting connections. Open connections are served until their clients disconnect.
+	 */
+	@Override
+	public void close() throws IOException {
+		serverSocket.close();
+		connections.shutdown();
+	}
+
+	@Override
+	public String toString() {
+		return "StandInImapServer{" +
+				"port=" + getPort() +
+				", connections=" + accepted +
+				", open=" + open +
+				", commands=" + commands +
+				'}';
+	}
+}
@@ -0,0 +1,307 @@
+package nz.ac.aut.hss.network.bench;
+
+import com.sun.istack.internal.Nullable;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local SMTP server for benchmarks which accepts every login and every message and discards them.
+ * It offers STARTTLS if given an {@link SSLContext} and can delay every response and defer messages above a rate
+ * limit to simulate a remote relay.
+ * Clients have to trust its certificate, e.g. with the system property <code>mail.smtp.ssl.trust=*</code>.
+ */
+public class StandInSmtpServer implements Closeable {
+	private static final byte[] CRLF = {'\r', '\n'};
+	/**
+	 * How far messages may run ahead of the rate limit, as relays count messages over a window.
+	 */
+	private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	@Nullable
+	private final SSLContext tls;
+	private final long responseDelayMillis;
+	private final ServerSocket serverSocket;
+	private final ExecutorService connections;
+	private final AtomicLong accepted = new AtomicLong(), messages = new AtomicLong(), bytes = new AtomicLong(),
+			deferred = new AtomicLong();
+	/**
+	 * The nanosecond interval between two messages, or 0 for no limit.
+	 */
+	private volatile long messageIntervalNanos;
+	/**
+	 * The time at which the next message is due; messages arriving more than {@link #BURST_NANOS} earlier are deferred.
+	 */
+	private final AtomicLong nextMessage = new AtomicLong(System.nanoTime());
+
+	/**
+	 * Starts listening on a free port of the loopback interface.
+	 * @param tls                 the context to offer STARTTLS with, or null not to offer it
+	 * @param responseDelayMillis how long every response is delayed
+	 */
+	public StandInSmtpServer(@Nullable final SSLContext tls, final long responseDelayMillis) throws IOException {
+		this(tls, responseDelayMillis, Executors.newCachedThreadPool(r -> {
+			final Thread thread = new Thread(r, "StandInSmtpServer connection");
+			thread.setDaemon(true);
+			return thread;
+		}));
+	}
+
+	/**
+	 * @param connections runs the accept loop and one task per connection
+	 */
+	public StandInSmtpServer(@Nullable final SSLContext tls, final long responseDelayMillis,
+							 final ExecutorService connections) throws IOException {
+		if (responseDelayMillis < 0)
+			throw new IllegalArgumentException("responseDelayMillis must not be negative");
+		this.tls = tls;
+		this.responseDelayMillis = responseDelayMillis;
+		this.connections = connections;
+		this.serverSocket = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+		connections.execute(this::acceptLoop);
+	}
+
+	/**
+	 * @return a context with the key pair of a key store, e.g. keystoreA
+	 */
+	public static SSLContext tlsContext(final String keyStoreName, final char[] password)
+			throws IOException, GeneralSecurityException {
+		final KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+		try (InputStream is = new FileInputStream(keyStoreName)) {
+			keyStore.load(is, password);
+		}
+		final KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keyManagers.init(keyStore, password);
+		final SSLContext context = SSLContext.getInstance("TLS");
+		context.init(keyManagers.getKeyManagers(), null, null);
+		return context;
+	}
+
+	public String getHost() {
+		return serverSocket.getInetAddress().getHostAddress();
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * @return how many connections were accepted so far
+	 */
+	public long getConnections() {
+		return accepted.get();
+	}
+
+	/**
+	 * @return how many messages were received so far
+	 */
+	public long getMessages() {
+		return messages.get();
+	}
+
+	/**
+	 * @return how many messages were deferred with 451 because of the rate limit
+	 */
+	public long getDeferred() {
+		return deferred.get();
+	}
+
+	/**
+	 * Makes the server answer MAIL FROM with 451 for messages beyond the rate, as throttling relays do.
+	 * @param messagesPerSecond the sustained rate or 0 for no limit
+	 */
+	public void setRateLimit(final double messagesPerSecond) {
+		if (messagesPerSecond < 0)
+			throw new IllegalArgumentException("messagesPerSecond must not be negative");
+		messageIntervalNanos = messagesPerSecond == 0 ? 0 : (long) (1e9 / messagesPerSecond);
+	}
+
+	/**
+	 * @return whether a message may start now under the rate limit
+	 */
+	private boolean admit() {
+		final long interval = messageIntervalNanos;
+		if (interval == 0)
+			return true;
+		while (true) {
+			final long now = System.nanoTime(), next = nextMessage.get();
+			if (next - now > Math.max(interval, BURST_NANOS))
+				return false;
+			if (nextMessage.compareAndSet(next, Math.max(next, now) + interval))
+				return true;
+		}
+	}
+
+	/**
+	 * @return how many message bytes were received so far
+	 */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	private void acceptLoop() {
+		while (!serverSocket.isClosed()) {
+			try {
+				final Socket socket = serverSocket.accept();
+				accepted.incrementAndGet();
+				connections.execute(() -> serve(socket));
+			} catch (IOException e) {
+				if (!serverSocket.isClosed())
+					System.err.println(e.getClass().getName() + " while accepting: " + e.getMessage());
+			}
+		}
+	}
+
+	private void serve(Socket socket) {
+		try {
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+			boolean secure = false;
+			respond(out, "220 localhost stand-in ESMTP");
+			String line;
+			while ((line = readLine(in)) != null) {
+				final String command = (line.length() < 4 ? line : line.substring(0, 4)).toUpperCase(Locale.ENGLISH);
+				switch (command) {
+					case "EHLO":
+						respond(out, "250-localhost\r\n" + (tls != null && !secure ? "250-STARTTLS\r\n" : "")
+								+ "250-AUTH PLAIN LOGIN\r\n250-8BITMIME\r\n250 OK");
+						break;
+					case "HELO":
+						respond(out, "250 localhost");
+						break;
+					case "STAR":
+						if (tls == null || secure) {
+							respond(out, "454 TLS not available");
+							break;
+						}
+						respond(out, "220 Ready to start TLS");
+						final SSLSocket tlsSocket = (SSLSocket) tls.getSocketFactory().createSocket(socket,
+								socket.getInetAddress().getHostAddress(), socket.getPort(), true);
+						tlsSocket.setUseClientMode(false);
+						tlsSocket.startHandshake();
+						socket = tlsSocket;
+						in = new BufferedInputStream(socket.getInputStream());
+						out = new BufferedOutputStream(socket.getOutputStream());
+						secure = true;
+						break;
+					case "AUTH":
+						final String[] words = line.split(" ");
+						if (words.length > 1 && "LOGIN".equalsIgnoreCase(words[1])) {
+							respond(out, "334 VXNlcm5hbWU6");
+							readLine(in);
+							respond(out, "334 UGFzc3dvcmQ6");
+							readLine(in);
+						} else if (words.length == 2) {
+							respond(out, "334 ");
+							readLine(in);
+						}
+						respond(out, "235 2.7.0 Authentication successful");
+						break;
+					case "MAIL":
+						if (admit()) {
+							respond(out, "250 OK");
+						} else {
+							deferred.incrementAndGet();
+							respond(out, "451 4.7.1 Rate limit exceeded, try again later");
+						}
+						break;
+					case "RCPT":
+					case "RSET":
+					case "NOOP":
+						respond(out, "250 OK");
+						break;
+					case "DATA":
+						respond(out, "354 End data with <CR><LF>.<CR><LF>");
+						long size = 0;
+						while ((line = readLine(in)) != null && !".".equals(line))
+							size += line.length() + 2;
+						bytes.addAndGet(size);
+						messages.incrementAndGet();
+						respond(out, "250 OK queued");
+						break;
+					case "QUIT":
+						respond(out, "221 Bye");
+						return;
+					default:
+						respond(out, "500 Command not recognized");
+				}
+			}
+		} catch (IOException e) {
+			// the client went away
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// closing anyway
+			}
+		}
+	}
+
+	private void respond(final OutputStream out, final String response) throws IOException, InterruptedException {
+		if (responseDelayMillis > 0)
+			Thread.sleep(responseDelayMillis);
+		out.write(response.getBytes(StandardCharsets.US_ASCII));
+		out.write(CRLF);
+		out.flush();
+	}
+
+	/**
+	 * @return the next line without its line break, or null at the end of the stream
+	 */
+	private static String readLine(final InputStream in) throws IOException {
+		final ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+		int b;
+		while ((b = in.read()) != -1) {
+			if (b == '\n')
+				break;
+			if (b != '\r')
+				line.write(b);
+		}
+		if (b == -1 && line.size() == 0)
+			return null;
+		return new String(line.toByteArray(), StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Stops accepting connections. Open connections are served until their clients disconnect.
+	 */
+	@Override
+	public void close() throws IOException {
+		serverSocket.close();
+		connections.shutdown();
+	}
+
+	@Override
+	public String toString() {
+		return "StandInSmtpServer{" +
+				"port=" + getPort() +
+				", tls=" + (tls != null) +
+				", responseDelayMillis=" + responseDelayMillis +
+				", connections=" + accepted +
+				", messages=" + messages +
+				", deferred=" + deferred +
+				'}';
+	}
+}
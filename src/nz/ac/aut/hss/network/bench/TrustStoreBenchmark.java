@@ -0,0 +1,89 @@
+package nz.ac.aut.hss.network.bench;
+
+import nz.ac.aut.hss.network.IndexedTrustStore;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Compares a JKS trust store with an {@link IndexedTrustStore} holding the same number of entries: the time and
+ * heap needed to open the store and look up one alias, and the lookup throughput once open.
+ * The entries are copies of the certificate in truststoreB under different aliases.
+ * Usage: <code>TrustStoreBenchmark [entries] [warmup ms] [measure ms]</code>
+ */
+public class TrustStoreBenchmark {
+	public static interface Defaults {
+		public final String TRUST_STORE = "truststoreB", ALIAS = "aliasa";
+		public final char[] PASSWORD = "password".toCharArray();
+		public final int ENTRIES = 50000;
+	}
+
+	public static void main(String[] args) throws Exception {
+		final int entries = args.length > 0 ? Integer.parseInt(args[0]) : Defaults.ENTRIES;
+		final Benchmark benchmark = args.length > 2
+				? new Benchmark(Long.parseLong(args[1]), Long.parseLong(args[2])) : new Benchmark();
+
+		final KeyStore template = KeyStore.getInstance(KeyStore.getDefaultType());
+		try (InputStream is = new FileInputStream(Defaults.TRUST_STORE)) {
+			template.load(is, Defaults.PASSWORD);
+		}
+		final Certificate certificate = template.getCertificate(Defaults.ALIAS);
+		final KeyStore large = KeyStore.getInstance(KeyStore.getDefaultType());
+		large.load(null, null);
+		for (int i = 0; i < entries; i++)
+			large.setCertificateEntry("peer-" + i, certificate);
+		final Path jks = Files.createTempFile("truststore", ".jks"), indexed = Files.createTempFile("truststore", ".its");
+		try {
+			try (OutputStream os = Files.newOutputStream(jks)) {
+				large.store(os, Defaults.PASSWORD);
+			}
+			IndexedTrustStore.write(indexed, large, Defaults.PASSWORD);
+			System.out.println(entries + " entries, JKS " + Files.size(jks) + " bytes, indexed " + Files.size(indexed)
+					+ " bytes");
+
+			long heap = usedHeap(), start = System.nanoTime();
+			final KeyStore loaded = KeyStore.getInstance(KeyStore.getDefaultType());
+			try (InputStream is = Files.newInputStream(jks)) {
+				loaded.load(is, Defaults.PASSWORD);
+			}
+			loaded.getCertificate("peer-1");
+			report("JKS open and first lookup", System.nanoTime() - start, usedHeap() - heap);
+
+			heap = usedHeap();
+			start = System.nanoTime();
+			final IndexedTrustStore store = new IndexedTrustStore(indexed, Defaults.PASSWORD);
+			store.getCertificate("peer-1");
+			report("indexed open and first lookup", System.nanoTime() - start, usedHeap() - heap);
+
+			System.out.println(Benchmark.Result.header());
+			System.out.println(benchmark.run("JKS getCertificate", () -> {
+				loaded.getCertificate("peer-" + ThreadLocalRandom.current().nextInt(entries));
+			}));
+			System.out.println(benchmark.run("indexed getCertificate", () -> {
+				store.getCertificate("peer-" + ThreadLocalRandom.current().nextInt(entries));
+			}));
+			store.close();
+		} finally {
+			Files.delete(jks);
+			Files.delete(indexed);
+		}
+	}
+
+	private static long usedHeap() {
+		System.gc();
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	private static void report(final String name, final long nanos, final long heapBytes) {
+		System.out.println(String.format(Locale.ENGLISH, "%-32s %10.1f ms %12d bytes heap", name, nanos / 1e6,
+				heapBytes));
+	}
+}
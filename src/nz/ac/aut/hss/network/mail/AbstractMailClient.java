@@ -20,6 +20,13 @@ public abstract class AbstractMailClient  {
 	}
 
 	public void connect() throws ConnectionException {
+		initSession();
+	}
+
+	/**
+	 * Creates the session unless it exists already.
+	 */
+	protected void initSession() {
 		if (session == null)
 			session = createSession();
 	}
@@ -0,0 +1,194 @@
+package nz.ac.aut.hss.network.mail;
+
+import nz.ac.aut.hss.network.LatencyStats;
+
+import javax.mail.Address;
+import javax.mail.BodyPart;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Sends mail in the background: messages are put into a bounded queue which worker threads drain through a
+ * {@link MailSender}, and the caller gets a {@link CompletableFuture} that completes once the message was sent.
+ * When the queue is full the {@link OverflowPolicy} decides whether the caller waits, gets an exception or a failed
+ * future. Queue depth, the time messages wait in the queue and the time sending takes are recorded.
+ * <p>
+ * With more than one worker the sender has to be a {@link PooledMailSender}, ideally with a connection per worker.
+ */
+public final class AsyncMailSender extends MailQueue<MailQueue.Task> {
+	public static interface Defaults {
+		public final int WORKERS = TransportPool.Defaults.SIZE;
+		public final int CAPACITY = 1000;
+		public final OverflowPolicy OVERFLOW_POLICY = OverflowPolicy.BLOCK;
+	}
+
+	/**
+	 * What happens to a message that is submitted while the queue is full.
+	 */
+	public static enum OverflowPolicy {
+		/** the caller waits until there is room */
+		BLOCK,
+		/** the caller gets a {@link RejectedExecutionException} */
+		FAIL_FAST,
+		/** the message is dropped, the returned future fails with a {@link RejectedExecutionException} */
+		DROP
+	}
+
+	private final MailSender sender;
+	private final Queue<Task> queue = new ArrayDeque<>();
+	private final Semaphore room;
+	private final LatencyStats queueWait = new LatencyStats(), sendLatency = new LatencyStats();
+
+	/**
+	 * @param sender a connected sender
+	 */
+	public AsyncMailSender(final MailSender sender) {
+		this(sender, sender instanceof PooledMailSender ? Defaults.WORKERS : 1, Defaults.CAPACITY,
+				Defaults.OVERFLOW_POLICY);
+	}
+
+	/**
+	 * @param sender   a connected sender
+	 * @param workers  the number of threads sending concurrently
+	 * @param capacity the number of messages that may wait to be sent
+	 */
+	public AsyncMailSender(final MailSender sender, final int workers, final int capacity,
+						   final OverflowPolicy overflowPolicy) {
+		this(sender, workers, capacity, overflowPolicy,
+				ExecutionMode.DEFAULT.newThreadFactory("AsyncMailSender worker"));
+	}
+
+	/**
+	 * @param sender        a connected sender
+	 * @param workers       the number of threads sending concurrently
+	 * @param capacity      the number of messages that may wait to be sent
+	 * @param threadFactory creates the worker threads, e.g. virtual threads, see {@link ExecutionMode}
+	 */
+	public AsyncMailSender(final MailSender sender, final int workers, final int capacity,
+						   final OverflowPolicy overflowPolicy, final ThreadFactory threadFactory) {
+		super("AsyncMailSender", overflowPolicy);
+		if (sender == null)
+			throw new IllegalArgumentException("sender must not be null");
+		this.sender = sender;
+		if (workers < 1)
+			throw new IllegalArgumentException("workers must be greater than zero");
+		if (workers > 1 && !(sender instanceof PooledMailSender))
+			throw new IllegalArgumentException("a MailSender cannot be used by several workers, use a PooledMailSender");
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity must be greater than zero");
+		this.room = new Semaphore(capacity);
+		start(workers, threadFactory);
+	}
+
+	/**
+	 * @see MailSender#sendMail(String, String, String)
+	 * @throws RejectedExecutionException if the queue is full and the policy is {@link OverflowPolicy#FAIL_FAST}, or
+	 *                                    after {@link #shutdown()}
+	 * @throws InterruptedException       if interrupted while waiting for room in the queue
+	 */
+	public CompletableFuture<Void> sendMailAsync(final String recipientsAddresslist, final String subject,
+												 final String text) throws InterruptedException {
+		return submit(() -> sender.sendMail(recipientsAddresslist, subject, text));
+	}
+
+	/**
+	 * @see MailSender#sendMail(String, String, BodyPart...)
+	 * @throws RejectedExecutionException if the queue is full and the policy is {@link OverflowPolicy#FAIL_FAST}, or
+	 *                                    after {@link #shutdown()}
+	 * @throws InterruptedException       if interrupted while waiting for room in the queue
+	 */
+	public CompletableFuture<Void> sendMailAsync(final String recipientsAddresslist, final String subject,
+												 final BodyPart... bodyParts) throws InterruptedException {
+		return submit(() -> sender.sendMail(recipientsAddresslist, subject, bodyParts));
+	}
+
+	/**
+	 * @see MailSender#sendMail(Address[], String, BodyPart...)
+	 * @throws RejectedExecutionException if the queue is full and the policy is {@link OverflowPolicy#FAIL_FAST}, or
+	 *                                    after {@link #shutdown()}
+	 * @throws InterruptedException       if interrupted while waiting for room in the queue
+	 */
+	public CompletableFuture<Void> sendMailAsync(final Address[] recipients, final String subject,
+												 final BodyPart... bodyParts) throws InterruptedException {
+		return submit(() -> sender.sendMail(recipients, subject, bodyParts));
+	}
+
+	private CompletableFuture<Void> submit(final Delivery delivery) throws InterruptedException {
+		return submit(new Task(delivery, room, "Send queue"));
+	}
+
+	@Override
+	protected void add(final Task task) {
+		queue.add(task);
+	}
+
+	@Override
+	protected Task poll(final int worker) {
+		return queue.poll();
+	}
+
+	@Override
+	protected Collection<Task> drain() {
+		final List<Task> drained = new ArrayList<>(queue);
+		queue.clear();
+		return drained;
+	}
+
+	@Override
+	protected LatencyStats queueWait(final Task task) {
+		return queueWait;
+	}
+
+	@Override
+	protected LatencyStats sendLatency(final Task task) {
+		return sendLatency;
+	}
+
+	/**
+	 * @return the number of messages waiting to be sent
+	 */
+	public int getQueueDepth() {
+		lock.lock();
+		try {
+			return queue.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return how long messages waited in the queue before a worker took them
+	 */
+	public LatencyStats getQueueWait() {
+		return queueWait;
+	}
+
+	/**
+	 * @return how long sending a message took, for the messages sent successfully
+	 */
+	public LatencyStats getSendLatency() {
+		return sendLatency;
+	}
+
+	@Override
+	public String toString() {
+		return "AsyncMailSender{" +
+				"workers=" + getWorkers() +
+				", overflowPolicy=" + getOverflowPolicy() +
+				", queueDepth=" + getQueueDepth() +
+				", submitted=" + getSubmitted() +
+				", sent=" + getSent() +
+				", failed=" + getFailed() +
+				", rejected=" + getRejected() +
+				", queueWait=" + queueWait +
+				", sendLatency=" + sendLatency +
+				'}';
+	}
+}
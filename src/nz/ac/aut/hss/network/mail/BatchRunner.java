@@ -0,0 +1,167 @@
+package nz.ac.aut.hss.network.mail;
+
+import com.sun.istack.internal.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs batches of document jobs on a fixed number of threads.
+ * Jobs are only opened once a worker picks them up and at most a bounded number of jobs is in flight,
+ * so batches of several hundred thousand files do not exhaust file handles or memory.
+ * @see XMLBatchSigner
+ * @see XMLBatchValidator
+ */
+public class BatchRunner {
+	public static interface Defaults {
+		public final int THREADS = Runtime.getRuntime().availableProcessors();
+		/**
+		 * Number of jobs that may be queued per worker thread before submitting blocks.
+		 */
+		public final int QUEUED_PER_THREAD = 4;
+	}
+
+	/**
+	 * Processes one job on a worker thread; failures, including runtime exceptions, have to be reported through the
+	 * result.
+	 */
+	public static interface Task<J extends Job, R extends Result<J>> {
+		R run(J job);
+	}
+
+	private final ExecutorService executor;
+	private final int maxInFlight;
+
+	public BatchRunner() {
+		this(Defaults.THREADS);
+	}
+
+	public BatchRunner(final int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("threads must be greater than zero");
+		this.executor = Executors.newFixedThreadPool(threads);
+		this.maxInFlight = threads * Defaults.QUEUED_PER_THREAD;
+	}
+
+	/**
+	 * Runs the task for all jobs concurrently and waits for them to finish.
+	 * @return one result per job in the iteration order of <code>jobs</code>
+	 * @throws InterruptedException if interrupted while waiting, unfinished jobs are cancelled
+	 * @throws IllegalStateException if a task failed instead of reporting it, unfinished jobs are cancelled
+	 */
+	public <J extends Job, R extends Result<J>> List<R> runAll(final Collection<? extends J> jobs,
+															   final Task<J, R> task) throws InterruptedException {
+		final Semaphore inFlight = new Semaphore(maxInFlight);
+		final List<Future<R>> futures = new ArrayList<>(jobs.size());
+		boolean finished = false;
+		try {
+			for (final J job : jobs) {
+				inFlight.acquire();
+				futures.add(executor.submit(() -> {
+					try {
+						return task.run(job);
+					} finally {
+						inFlight.release();
+					}
+				}));
+			}
+
+			final List<R> results = new ArrayList<>(futures.size());
+			for (Future<R> future : futures) {
+				try {
+					results.add(future.get());
+				} catch (ExecutionException e) { // tasks report errors through the result
+					throw new IllegalStateException("Unexpected failure while running a batch job", e.getCause());
+				}
+			}
+			finished = true;
+			return results;
+		} finally {
+			if (!finished) // so that no job goes on writing after the batch has failed
+				for (Future<R> future : futures)
+					future.cancel(true);
+		}
+	}
+
+	/**
+	 * Stops the worker threads once all submitted jobs have finished.
+	 */
+	public void shutdown() throws InterruptedException {
+		executor.shutdown();
+		executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * A single document. Its streams are opened by the worker that processes it and closed afterwards.
+	 */
+	public static abstract class Job {
+		private final String name;
+
+		protected Job(final String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public String toString() {
+			return "Job{" +
+					"name='" + name + '\'' +
+					'}';
+		}
+	}
+
+	public static class Result<J extends Job> {
+		private final J job;
+		@Nullable
+		private final SigningException error;
+		private final long durationNanos;
+
+		protected Result(final J job, @Nullable final SigningException error, final long durationNanos) {
+			this.job = job;
+			this.error = error;
+			this.durationNanos = durationNanos;
+		}
+
+		public J getJob() {
+			return job;
+		}
+
+		/**
+		 * @return whether the document could be processed
+		 */
+		public boolean isSuccess() {
+			return error == null;
+		}
+
+		/**
+		 * @return the reason the document could not be processed or null if it was processed
+		 */
+		@Nullable
+		public SigningException getError() {
+			return error;
+		}
+
+		public long getDurationNanos() {
+			return durationNanos;
+		}
+
+		@Override
+		public String toString() {
+			return "Result{" +
+					"job=" + job +
+					", error=" + error +
+					", durationNanos=" + durationNanos +
+					'}';
+		}
+	}
+}
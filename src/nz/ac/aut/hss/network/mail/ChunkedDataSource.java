@@ -0,0 +1,229 @@
+package nz.ac.aut.hss.network.mail;
+
+import javax.activation.DataSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An in-memory {@link DataSource} that is written once through {@link #getOutputStream()} and can then be read any
+ * number of times, e.g. again when a send is retried. The content is kept in fixed-size chunks, so it is never copied
+ * to grow or to be read, and the content transfer encoding JavaMail would choose for text is determined while the
+ * content is written instead of in an extra pass over it.
+ */
+public class ChunkedDataSource implements DataSource {
+	public static interface Defaults {
+		public final int CHUNK_BYTES = 64 << 10;
+	}
+
+	/**
+	 * The longest line allowed in a 7bit body, without its CRLF.
+	 */
+	private static final int MAX_LINE_LENGTH = 998;
+
+	private final String name, contentType;
+	private final int chunkBytes;
+	private final List<byte[]> chunks = new ArrayList<>();
+	private final AtomicBoolean opened = new AtomicBoolean();
+	private volatile boolean written;
+	private long length, nonAscii;
+	private int lineLength;
+	private boolean longLines;
+
+	/**
+	 * @param contentType the MIME type of the content, e.g. <code>text/xml; charset=UTF-8</code>
+	 */
+	public ChunkedDataSource(final String name, final String contentType) {
+		this(name, contentType, Defaults.CHUNK_BYTES);
+	}
+
+	public ChunkedDataSource(final String name, final String contentType, final int chunkBytes) {
+		if (name == null)
+			throw new IllegalArgumentException("name must not be null");
+		this.name = name;
+		if (contentType == null || contentType.isEmpty())
+			throw new IllegalArgumentException("contentType must not be null or empty");
+		this.contentType = contentType;
+		if (chunkBytes < 1)
+			throw new IllegalArgumentException("chunkBytes must be greater than zero");
+		this.chunkBytes = chunkBytes;
+	}
+
+	/**
+	 * @return the stream the content is written to once; the content can be read after the stream was closed
+	 * @throws IOException if the stream was requested before
+	 */
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		if (!opened.compareAndSet(false, true))
+			throw new IOException("ChunkedDataSource " + name + " has been written already");
+		return new ChunkOutputStream();
+	}
+
+	/**
+	 * @throws IOException if the content has not been written completely
+	 */
+	@Override
+	public InputStream getInputStream() throws IOException {
+		if (!written)
+			throw new IOException("ChunkedDataSource " + name + " has not been written yet");
+		return new ChunkInputStream();
+	}
+
+	@Override
+	public String getContentType() {
+		return contentType;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the number of bytes written so far
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * @return the content transfer encoding for the content as text, chosen as JavaMail chooses it: 7bit for short
+	 * lines of ASCII, quoted-printable for mostly ASCII and base64 otherwise
+	 * @throws IllegalStateException if the content has not been written completely
+	 * @see javax.mail.internet.MimeUtility#getEncoding(DataSource)
+	 */
+	public String getTextEncoding() {
+		if (!written)
+			throw new IllegalStateException("ChunkedDataSource " + name + " has not been written yet");
+		if (nonAscii == 0 && !longLines)
+			return "7bit";
+		return nonAscii < length - nonAscii ? "quoted-printable" : "base64";
+	}
+
+	@Override
+	public String toString() {
+		return "ChunkedDataSource{" +
+				"name='" + name + '\'' +
+				", contentType='" + contentType + '\'' +
+				", length=" + length +
+				", chunks=" + chunks.size() +
+				", written=" + written +
+				'}';
+	}
+
+	/**
+	 * Fills the chunks one after the other; only the writing thread touches them until the stream is closed.
+	 */
+	private class ChunkOutputStream extends OutputStream {
+		private byte[] chunk;
+		private int position;
+		private boolean closed;
+
+		@Override
+		public void write(final int b) throws IOException {
+			write(new byte[]{(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(final byte[] b, int off, int len) throws IOException {
+			if (closed)
+				throw new IOException("ChunkedDataSource " + name + " has been closed");
+			scan(b, off, len);
+			length += len;
+			while (len > 0) {
+				if (chunk == null || position == chunk.length) {
+					chunk = new byte[chunkBytes];
+					chunks.add(chunk);
+					position = 0;
+				}
+				final int n = Math.min(len, chunk.length - position);
+				System.arraycopy(b, off, chunk, position, n);
+				position += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		/**
+		 * Counts the bytes that are not ASCII and notes lines too long for 7bit.
+		 */
+		private void scan(final byte[] b, final int off, final int len) {
+			for (int i = off; i < off + len; i++) {
+				final int c = b[i] & 0xff;
+				if (c == '\r' || c == '\n') {
+					lineLength = 0;
+					continue;
+				}
+				if (c >= 0177 || c < 040 && c != '\t')
+					nonAscii++;
+				if (++lineLength > MAX_LINE_LENGTH)
+					longLines = true;
+			}
+		}
+
+		@Override
+		public void close() {
+			if (closed)
+				return;
+			closed = true;
+			written = true; // publishes the chunks to the readers
+		}
+	}
+
+	private class ChunkInputStream extends InputStream {
+		private int chunk, position;
+		private long remaining = length;
+
+		@Override
+		public int read() {
+			if (remaining == 0)
+				return -1;
+			nextChunkIfFull();
+			remaining--;
+			return chunks.get(chunk)[position++] & 0xff;
+		}
+
+		private void nextChunkIfFull() {
+			if (position == chunkBytes) {
+				chunk++;
+				position = 0;
+			}
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) {
+			if (len == 0)
+				return 0;
+			if (remaining == 0)
+				return -1;
+			nextChunkIfFull();
+			final int n = (int) Math.min(Math.min(len, chunkBytes - position), remaining);
+			System.arraycopy(chunks.get(chunk), position, b, off, n);
+			position += n;
+			remaining -= n;
+			return n;
+		}
+
+		@Override
+		public long skip(final long n) {
+			long skipped = 0;
+			while (skipped < n && remaining > 0) {
+				nextChunkIfFull();
+				final int step = (int) Math.min(Math.min(n - skipped, chunkBytes - position), remaining);
+				position += step;
+				remaining -= step;
+				skipped += step;
+			}
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return (int) Math.min(Integer.MAX_VALUE, remaining);
+		}
+	}
+}
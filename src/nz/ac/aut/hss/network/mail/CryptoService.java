@@ -0,0 +1,287 @@
+package nz.ac.aut.hss.network.mail;
+
+import nz.ac.aut.hss.network.KeyFetcher;
+
+import javax.crypto.Cipher;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Signs, verifies, encrypts and decrypts raw data such as mail bodies and receipts with keys from a
+ * {@link KeyFetcher}. Every thread keeps its {@link Signature} and {@link Cipher} instances initialized per key, so an
+ * operation neither looks up a provider nor sets up the key again; only the cryptographic work itself remains.
+ * Signatures are compatible with those of an {@link XMLSignerVerifier} using the same {@link SignatureAlgorithm}.
+ * Encryption is RSA, so only small payloads like session keys can be encrypted.
+ */
+public class CryptoService {
+	public static interface Defaults {
+		public final SignatureAlgorithm SIGNATURE_ALGORITHM = SignatureAlgorithm.RSA_SHA256;
+		public final String CIPHER_TRANSFORMATION = "RSA/ECB/OAEPWithSHA-256AndMGF1Padding";
+		/**
+		 * The number of keys a thread keeps initialized instances for, per operation.
+		 */
+		public final int KEYS_PER_THREAD = 32;
+	}
+
+	private enum Operation {
+		SIGN, VERIFY, ENCRYPT, DECRYPT
+	}
+
+	private final KeyFetcher keyFetcher;
+	private final SignatureAlgorithm signatureAlgorithm;
+	private final String cipherTransformation;
+	private final ThreadLocal<Map<Binding, Object>> bound = new ThreadLocal<Map<Binding, Object>>() {
+		@Override
+		protected Map<Binding, Object> initialValue() {
+			return new BoundMap();
+		}
+	};
+
+	public CryptoService(final KeyFetcher keyFetcher) {
+		this(keyFetcher, Defaults.SIGNATURE_ALGORITHM, Defaults.CIPHER_TRANSFORMATION);
+	}
+
+	public CryptoService(final KeyFetcher keyFetcher, final SignatureAlgorithm signatureAlgorithm,
+						 final String cipherTransformation) {
+		if (keyFetcher == null)
+			throw new IllegalArgumentException("keyFetcher must not be null");
+		this.keyFetcher = keyFetcher;
+		if (signatureAlgorithm == null)
+			throw new IllegalArgumentException("signatureAlgorithm must not be null");
+		this.signatureAlgorithm = signatureAlgorithm;
+		if (cipherTransformation == null)
+			throw new IllegalArgumentException("cipherTransformation must not be null");
+		this.cipherTransformation = cipherTransformation;
+	}
+
+	public SignatureAlgorithm getSignatureAlgorithm() {
+		return signatureAlgorithm;
+	}
+
+	/**
+	 * Signs with a private key of the key fetcher's key store.
+	 */
+	public byte[] sign(final String keyAlias, final char[] keypw, final byte[] data)
+			throws GeneralSecurityException, IOException {
+		return sign((PrivateKey) keyFetcher.getPrivateKey(keyAlias, keypw), data);
+	}
+
+	public byte[] sign(final PrivateKey key, final byte[] data) throws GeneralSecurityException {
+		final Binding binding = new Binding(Operation.SIGN, key);
+		final Signature signature = (Signature) get(binding);
+		try {
+			signature.update(data);
+			return signature.sign();
+		} catch (GeneralSecurityException | RuntimeException e) {
+			release(binding);
+			throw e;
+		}
+	}
+
+	/**
+	 * Signs the remaining bytes of the buffer, which is consumed.
+	 */
+	public byte[] sign(final PrivateKey key, final ByteBuffer data) throws GeneralSecurityException {
+		final Binding binding = new Binding(Operation.SIGN, key);
+		final Signature signature = (Signature) get(binding);
+		try {
+			signature.update(data);
+			return signature.sign();
+		} catch (GeneralSecurityException | RuntimeException e) {
+			release(binding);
+			throw e;
+		}
+	}
+
+	/**
+	 * Verifies with the public key stored under the alias in a trust store, see
+	 * {@link KeyFetcher#getPublicKeySecure}.
+	 */
+	public boolean verify(final String trustStoreName, final char[] storepw, final String alias, final byte[] data,
+						  final byte[] signatureValue) throws GeneralSecurityException, IOException {
+		return verify((PublicKey) keyFetcher.getPublicKeySecure(trustStoreName, storepw, alias), data,
+				signatureValue);
+	}
+
+	public boolean verify(final PublicKey key, final byte[] data, final byte[] signatureValue)
+			throws GeneralSecurityException {
+		final Binding binding = new Binding(Operation.VERIFY, key);
+		final Signature signature = (Signature) get(binding);
+		try {
+			signature.update(data);
+			return signature.verify(signatureValue);
+		} catch (GeneralSecurityException | RuntimeException e) {
+			release(binding);
+			throw e;
+		}
+	}
+
+	/**
+	 * Verifies the remaining bytes of the buffer, which is consumed.
+	 */
+	public boolean verify(final PublicKey key, final ByteBuffer data, final byte[] signatureValue)
+			throws GeneralSecurityException {
+		final Binding binding = new Binding(Operation.VERIFY, key);
+		final Signature signature = (Signature) get(binding);
+		try {
+			signature.update(data);
+			return signature.verify(signatureValue);
+		} catch (GeneralSecurityException | RuntimeException e) {
+			release(binding);
+			throw e;
+		}
+	}
+
+	public byte[] encrypt(final PublicKey key, final byte[] data) throws GeneralSecurityException {
+		return doFinal(new Binding(Operation.ENCRYPT, key), data);
+	}
+
+	/**
+	 * Encrypts the remaining bytes of the input into the output.
+	 * @return the number of bytes written to the output
+	 */
+	public int encrypt(final PublicKey key, final ByteBuffer input, final ByteBuffer output)
+			throws GeneralSecurityException {
+		return doFinal(new Binding(Operation.ENCRYPT, key), input, output);
+	}
+
+	/**
+	 * Decrypts with a private key of the key fetcher's key store.
+	 */
+	public byte[] decrypt(final String keyAlias, final char[] keypw, final byte[] data)
+			throws GeneralSecurityException, IOException {
+		return decrypt((PrivateKey) keyFetcher.getPrivateKey(keyAlias, keypw), data);
+	}
+
+	public byte[] decrypt(final PrivateKey key, final byte[] data) throws GeneralSecurityException {
+		return doFinal(new Binding(Operation.DECRYPT, key), data);
+	}
+
+	/**
+	 * Decrypts the remaining bytes of the input into the output.
+	 * @return the number of bytes written to the output
+	 */
+	public int decrypt(final PrivateKey key, final ByteBuffer input, final ByteBuffer output)
+			throws GeneralSecurityException {
+		return doFinal(new Binding(Operation.DECRYPT, key), input, output);
+	}
+
+	private byte[] doFinal(final Binding binding, final byte[] data) throws GeneralSecurityException {
+		final Cipher cipher = (Cipher) get(binding);
+		try {
+			return cipher.doFinal(data);
+		} catch (GeneralSecurityException | RuntimeException e) {
+			release(binding);
+			throw e;
+		}
+	}
+
+	private int doFinal(final Binding binding, final ByteBuffer input, final ByteBuffer output)
+			throws GeneralSecurityException {
+		final Cipher cipher = (Cipher) get(binding);
+		try {
+			return cipher.doFinal(input, output);
+		} catch (GeneralSecurityException | RuntimeException e) {
+			release(binding);
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the calling thread's instance initialized for the operation and key, created on first use
+	 */
+	private Object get(final Binding binding) throws GeneralSecurityException {
+		final Map<Binding, Object> instances = bound.get();
+		Object instance = instances.get(binding);
+		if (instance == null) {
+			switch (binding.operation) {
+				case SIGN:
+					final Signature signer = signatureAlgorithm.newSignature();
+					signer.initSign((PrivateKey) binding.key);
+					instance = signer;
+					break;
+				case VERIFY:
+					final Signature verifier = signatureAlgorithm.newSignature();
+					verifier.initVerify((PublicKey) binding.key);
+					instance = verifier;
+					break;
+				default:
+					final Cipher cipher = Cipher.getInstance(cipherTransformation);
+					cipher.init(binding.operation == Operation.ENCRYPT ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE,
+							binding.key);
+					instance = cipher;
+			}
+			instances.put(binding, instance);
+		}
+		return instance;
+	}
+
+	/**
+	 * Drops an instance whose state is unknown after a failed operation.
+	 */
+	private void release(final Binding binding) {
+		bound.get().remove(binding);
+	}
+
+	@Override
+	public String toString() {
+		return "CryptoService{" +
+				"signatureAlgorithm=" + signatureAlgorithm +
+				", cipherTransformation='" + cipherTransformation + '\'' +
+				'}';
+	}
+
+	/**
+	 * An operation and the key it is done with. Keys are compared by identity, which is cheap and sufficient since
+	 * the key fetcher hands out the same instance for a key until its store changes.
+	 */
+	private static class Binding {
+		private final Operation operation;
+		private final Key key;
+
+		private Binding(final Operation operation, final Key key) {
+			if (key == null)
+				throw new IllegalArgumentException("key must not be null");
+			this.operation = operation;
+			this.key = key;
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+			if (this == o) return true;
+			if (o == null || getClass() != o.getClass()) return false;
+
+			final Binding binding = (Binding) o;
+
+			return operation == binding.operation && key == binding.key;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * operation.hashCode() + System.identityHashCode(key);
+		}
+	}
+
+	/**
+	 * The instances bound on one thread, least recently used first; the eldest is dropped beyond the limit.
+	 */
+	private static class BoundMap extends LinkedHashMap<Binding, Object> {
+		private static final long serialVersionUID = 1L;
+
+		private BoundMap() {
+			super(16, 0.75f, true);
+		}
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<Binding, Object> eldest) {
+			return size() > Defaults.KEYS_PER_THREAD * Operation.values().length;
+		}
+	}
+}
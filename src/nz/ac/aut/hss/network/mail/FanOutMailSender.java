@@ -0,0 +1,328 @@
+package nz.ac.aut.hss.network.mail;
+
+import com.sun.istack.internal.Nullable;
+
+import javax.mail.Address;
+import javax.mail.BodyPart;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Sends one message to many recipients in parallel: the recipients are grouped by domain, each group is split into
+ * transactions of at most {@link Defaults#MAX_RECIPIENTS} recipients, and the transactions are sent concurrently over
+ * the connections of a {@link PooledMailSender}. At most as many transactions as the pool has connections are started
+ * at once, across all messages sent through this instance, so a transaction does not wait for a connection behind
+ * the others and run into the pool's borrow timeout. All transactions carry the same headers, so every recipient sees
+ * the full To list; only the SMTP envelope differs.
+ * The MIME message is encoded once; each transaction parses its headers from the shared bytes, the body is not
+ * copied.
+ */
+public class FanOutMailSender {
+	public static interface Defaults {
+		/**
+		 * The number of recipients RFC 5321 requires a server to accept per transaction.
+		 */
+		public final int MAX_RECIPIENTS = 100;
+	}
+
+	private static final ExecutorService DEFAULT_EXECUTOR = ExecutionMode.DEFAULT.newExecutor("FanOutMailSender");
+
+	private final PooledMailSender sender;
+	private final int maxRecipients;
+	private final Executor executor;
+	/**
+	 * A permit per connection of the sender's pool, held while a transaction runs.
+	 */
+	private final Semaphore connections;
+
+	/**
+	 * @param sender a connected sender, whose pool size limits how many transactions run at once
+	 */
+	public FanOutMailSender(final PooledMailSender sender) {
+		this(sender, Defaults.MAX_RECIPIENTS, DEFAULT_EXECUTOR);
+	}
+
+	/**
+	 * @param sender        a connected sender, whose pool size limits how many transactions run at once
+	 * @param maxRecipients the maximum number of recipients per transaction
+	 * @param executor      runs the transactions
+	 */
+	public FanOutMailSender(final PooledMailSender sender, final int maxRecipients, final Executor executor) {
+		if (sender == null)
+			throw new IllegalArgumentException("sender must not be null");
+		this.sender = sender;
+		if (maxRecipients < 1)
+			throw new IllegalArgumentException("maxRecipients must be greater than zero");
+		this.maxRecipients = maxRecipients;
+		if (executor == null)
+			throw new IllegalArgumentException("executor must not be null");
+		this.executor = executor;
+		this.connections = new Semaphore(sender.getPoolSize());
+	}
+
+	/**
+	 * @see MailSender#sendMail(String, String, String)
+	 */
+	public Result sendMail(final String recipientsAddresslist, final String subject, final String text)
+			throws UnsupportedEncodingException, MessagingException, InterruptedException {
+		return sendMail(recipientsAddresslist, subject, MailSender.createBodyPart(text));
+	}
+
+	/**
+	 * @see MailSender#sendMail(String, String, BodyPart...)
+	 */
+	public Result sendMail(final String recipientsAddresslist, final String subject, final BodyPart... bodyParts)
+			throws UnsupportedEncodingException, MessagingException, InterruptedException {
+		return sendMail(MailSender.parseRecipients(recipientsAddresslist), subject, bodyParts);
+	}
+
+	/**
+	 * Sends the message to all recipients and waits for every transaction.
+	 * @return the outcome of each transaction; failed transactions are reported there, not thrown
+	 * @throws javax.mail.MessagingException if the message cannot be created
+	 * @throws InterruptedException          if interrupted while waiting, the transactions started still finish
+	 */
+	public Result sendMail(final Address[] recipients, final String subject, final BodyPart... bodyParts)
+			throws UnsupportedEncodingException, MessagingException, InterruptedException {
+		if (recipients == null || recipients.length == 0)
+			throw new IllegalArgumentException("recipients must not be null or empty");
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+		try {
+			sender.createMessage(recipients, subject, bodyParts).writeTo(bytes);
+		} catch (IOException e) {
+			throw new MessagingException("Could not encode the message", e);
+		}
+		final SharedByteArrayInputStream encoded = new SharedByteArrayInputStream(bytes.toByteArray());
+
+		final List<Group> groups = group(recipients);
+		final List<FutureTask<Group>> tasks = new ArrayList<>(groups.size());
+		for (Group group : groups) {
+			connections.acquire();
+			final FutureTask<Group> task = new FutureTask<>(() -> {
+				try {
+					return send(group, encoded);
+				} finally {
+					connections.release();
+				}
+			});
+			try {
+				executor.execute(task);
+			} catch (RuntimeException e) {
+				connections.release();
+				throw e;
+			}
+			tasks.add(task);
+		}
+		final List<Group> results = new ArrayList<>(groups.size());
+		for (FutureTask<Group> task : tasks) {
+			try {
+				results.add(task.get());
+			} catch (ExecutionException e) { // send() reports failures in the group
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+		return new Result(results);
+	}
+
+	/**
+	 * Groups the recipients by domain, in order of first appearance, and splits groups larger than the maximum.
+	 */
+	private List<Group> group(final Address[] recipients) {
+		final Map<String, List<Address>> byDomain = new LinkedHashMap<>();
+		for (Address recipient : recipients) {
+			final String domain = domainOf(recipient);
+			List<Address> addresses = byDomain.get(domain);
+			if (addresses == null) {
+				addresses = new ArrayList<>();
+				byDomain.put(domain, addresses);
+			}
+			addresses.add(recipient);
+		}
+		final List<Group> groups = new ArrayList<>();
+		for (Map.Entry<String, List<Address>> entry : byDomain.entrySet()) {
+			final List<Address> addresses = entry.getValue();
+			for (int from = 0; from < addresses.size(); from += maxRecipients) {
+				final List<Address> chunk = addresses.subList(from, Math.min(addresses.size(), from + maxRecipients));
+				groups.add(new Group(entry.getKey(), chunk.toArray(new Address[chunk.size()])));
+			}
+		}
+		return groups;
+	}
+
+	/**
+	 * @return the lower case domain of an internet address or the empty string
+	 */
+	private static String domainOf(final Address address) {
+		if (!(address instanceof InternetAddress))
+			return "";
+		final String email = ((InternetAddress) address).getAddress();
+		final int at = email == null ? -1 : email.lastIndexOf('@');
+		return at < 0 ? "" : email.substring(at + 1).toLowerCase(Locale.ENGLISH);
+	}
+
+	private Group send(final Group group, final SharedByteArrayInputStream encoded) {
+		final long start = System.nanoTime();
+		try {
+			final MimeMessage message = new MimeMessage(sender.session, encoded.newStream(0, -1));
+			sender.send(message, group.recipients);
+			group.finish(start, null);
+		} catch (MessagingException | RuntimeException e) {
+			group.finish(start, e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			group.finish(start, e);
+		}
+		return group;
+	}
+
+	@Override
+	public String toString() {
+		return "FanOutMailSender{" +
+				"sender=" + sender +
+				", maxRecipients=" + maxRecipients +
+				'}';
+	}
+
+	/**
+	 * The recipients of one transaction and its outcome.
+	 */
+	public static class Group {
+		private final String domain;
+		private final Address[] recipients;
+		private long nanos;
+		@Nullable
+		private Exception failure;
+
+		private Group(final String domain, final Address[] recipients) {
+			this.domain = domain;
+			this.recipients = recipients;
+		}
+
+		private void finish(final long start, @Nullable final Exception failure) {
+			this.nanos = System.nanoTime() - start;
+			this.failure = failure;
+		}
+
+		/**
+		 * @return the lower case domain of the recipients or the empty string for addresses without one
+		 */
+		public String getDomain() {
+			return domain;
+		}
+
+		public List<Address> getRecipients() {
+			return Collections.unmodifiableList(Arrays.asList(recipients));
+		}
+
+		/**
+		 * @return whether the server accepted the message for all recipients of this group
+		 */
+		public boolean isSent() {
+			return failure == null;
+		}
+
+		/**
+		 * @return why the transaction failed or null if it was sent
+		 */
+		@Nullable
+		public Exception getFailure() {
+			return failure;
+		}
+
+		/**
+		 * @return the recipients the message was not delivered to; with a {@link SendFailedException} only the ones
+		 * the server did not accept
+		 */
+		public List<Address> getFailedRecipients() {
+			if (failure == null)
+				return Collections.emptyList();
+			if (failure instanceof SendFailedException) {
+				final Address[] sent = ((SendFailedException) failure).getValidSentAddresses();
+				if (sent != null && sent.length > 0) {
+					final List<Address> failed = new ArrayList<>(Arrays.asList(recipients));
+					failed.removeAll(Arrays.asList(sent));
+					return failed;
+				}
+			}
+			return getRecipients();
+		}
+
+		/**
+		 * @return how long the transaction took, including waiting for a connection
+		 */
+		public long getNanos() {
+			return nanos;
+		}
+
+		@Override
+		public String toString() {
+			return "Group{" +
+					"domain='" + domain + '\'' +
+					", recipients=" + recipients.length +
+					", sent=" + isSent() +
+					", millis=" + nanos / 1000000 +
+					(failure != null ? ", failure=" + failure : "") +
+					'}';
+		}
+	}
+
+	/**
+	 * The outcome of all transactions of one message.
+	 */
+	public static class Result {
+		private final List<Group> groups;
+
+		private Result(final List<Group> groups) {
+			this.groups = Collections.unmodifiableList(groups);
+		}
+
+		/**
+		 * @return the transactions in the order of the domains' first recipients
+		 */
+		public List<Group> getGroups() {
+			return groups;
+		}
+
+		/**
+		 * @return whether every transaction was sent
+		 */
+		public boolean isComplete() {
+			for (Group group : groups)
+				if (!group.isSent())
+					return false;
+			return true;
+		}
+
+		public List<Address> getFailedRecipients() {
+			final List<Address> failed = new ArrayList<>();
+			for (Group group : groups)
+				failed.addAll(group.getFailedRecipients());
+			return failed;
+		}
+
+		@Override
+		public String toString() {
+			return "Result{" +
+					"groups=" + groups +
+					'}';
+		}
+	}
+}
@@ -13,6 +13,11 @@ import java.util.Properties;
 public class MailClient extends AbstractMailClient {
 	public static interface Defaults {
 		public final int BUFFER_SIZE = 65536;
+		/**
+		 * The delay before the first attempt to reopen a folder again, doubled after every failed attempt.
+		 */
+		public final long REOPEN_MIN_DELAY_MILLIS = 100;
+		public final long REOPEN_MAX_DELAY_MILLIS = 30000;
 	}
 
 
@@ -46,7 +51,7 @@ public class MailClient extends AbstractMailClient {
 			if (store == null) {
 				store = session.getStore("imaps");
 			}
-			store.connect(host, authenticator.getUsername(), authenticator.getPassword());
+			store.connect(host, port, authenticator.getUsername(), authenticator.getPassword());
 		} catch (MessagingException e) {
 			throw new ConnectionException("Could not connect", e);
 		}
@@ -72,7 +77,7 @@ public class MailClient extends AbstractMailClient {
 
 	/**
 	 * Checks if the folder is open and in the desired mode.
-	 * Until this is not the case, a reopen is attempted.
+	 * Until this is not the case, a reopen is attempted, with an exponentially growing delay after failed attempts.
 	 * @param folder the folder to check
 	 * @param mode   the desired folder mode
 	 * @throws java.lang.InterruptedException
@@ -83,6 +88,7 @@ public class MailClient extends AbstractMailClient {
 		if (folder == null)
 			throw new IllegalArgumentException("folder must not be null");
 
+		long delay = Defaults.REOPEN_MIN_DELAY_MILLIS;
 		while (!folder.isOpen() || folder.getMode() < mode) {
 			if (Thread.interrupted()) {
 				throw new InterruptedException("Interrupted while reopening folder");
@@ -96,6 +102,8 @@ public class MailClient extends AbstractMailClient {
 			} catch (MessagingException e) {
 				String msg = e.getClass().getName() + " while reopening folder: " + e.getMessage();
 				System.out.println(msg);
+				Thread.sleep(delay); // does not hold a carrier thread when running on a virtual thread
+				delay = Math.min(delay * 2, Defaults.REOPEN_MAX_DELAY_MILLIS);
 			}
 		}
 	}
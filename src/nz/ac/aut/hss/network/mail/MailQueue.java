@@ -0,0 +1,308 @@
+package nz.ac.aut.hss.network.mail;
+
+import nz.ac.aut.hss.network.LatencyStats;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Queued messages that worker threads send in the background, the common part of {@link AsyncMailSender} and
+ * {@link OutboundScheduler}. Subclasses keep the queued tasks in their own collections, guarded by {@link #lock},
+ * and decide which task a worker takes next.
+ * <p>
+ * Queueing a task and {@link #shutdown()} happen under the same lock, so a task is either rejected or queued before
+ * the workers see the shutdown and sent by them. Once the last worker stops, because of the shutdown or because it
+ * was interrupted, the tasks still queued fail with a {@link RejectedExecutionException}.
+ */
+abstract class MailQueue<T extends MailQueue.Task> {
+	/**
+	 * Sends one message.
+	 */
+	protected static interface Delivery {
+		void deliver() throws Exception;
+	}
+
+	private final String name;
+	private final AsyncMailSender.OverflowPolicy overflowPolicy;
+	/**
+	 * Guards the queued tasks, {@link #running} and changes of {@link #shutdown}; workers wait on {@link #queued}.
+	 */
+	protected final ReentrantLock lock = new ReentrantLock();
+	private final Condition queued = lock.newCondition();
+	private final List<Thread> workers = new ArrayList<>();
+	private int running;
+	private volatile boolean shutdown;
+	private final AtomicLong submitted = new AtomicLong(), sent = new AtomicLong(), failed = new AtomicLong(),
+			rejected = new AtomicLong();
+
+	/**
+	 * @param name the name used in exception messages
+	 */
+	protected MailQueue(final String name, final AsyncMailSender.OverflowPolicy overflowPolicy) {
+		this.name = name;
+		if (overflowPolicy == null)
+			throw new IllegalArgumentException("overflowPolicy must not be null");
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	/**
+	 * Starts the workers, once the subclass is initialized.
+	 */
+	protected final void start(final int workers, final ThreadFactory threadFactory) {
+		if (threadFactory == null)
+			throw new IllegalArgumentException("threadFactory must not be null");
+		lock.lock();
+		try {
+			for (int i = 0; i < workers; i++) {
+				final int worker = i;
+				final Thread thread = threadFactory.newThread(() -> work(worker));
+				this.workers.add(thread);
+				running++;
+				thread.start();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Adds the task to the queue of its {@link Task#room}, see {@link #submit(Task)}.
+	 */
+	protected abstract void add(T task);
+
+	/**
+	 * @param worker the index of the worker, from 0
+	 * @return the next task for the worker, or null if none of the queued ones is for it
+	 */
+	protected abstract T poll(int worker);
+
+	/**
+	 * Removes all queued tasks.
+	 */
+	protected abstract Collection<T> drain();
+
+	/**
+	 * @return where the time the task waited in the queue is recorded
+	 */
+	protected abstract LatencyStats queueWait(T task);
+
+	/**
+	 * @return where the time sending the task took is recorded
+	 */
+	protected abstract LatencyStats sendLatency(T task);
+
+	/**
+	 * Waits for room in the task's queue or rejects it according to the {@link AsyncMailSender.OverflowPolicy}, then
+	 * queues it.
+	 * @return completes once the message was sent
+	 * @throws RejectedExecutionException if the queue is full and the policy is
+	 *                                    {@link AsyncMailSender.OverflowPolicy#FAIL_FAST}, or after {@link #shutdown()}
+	 * @throws InterruptedException       if interrupted while waiting for room in the queue
+	 */
+	protected final CompletableFuture<Void> submit(final T task) throws InterruptedException {
+		if (shutdown)
+			throw new RejectedExecutionException(name + " has been shut down");
+		switch (overflowPolicy) {
+			case BLOCK:
+				task.room.acquire();
+				break;
+			case FAIL_FAST:
+				if (!task.room.tryAcquire()) {
+					rejected.incrementAndGet();
+					throw new RejectedExecutionException(task.queueName + " is full");
+				}
+				break;
+			case DROP:
+				if (!task.room.tryAcquire()) {
+					submitted.incrementAndGet();
+					rejected.incrementAndGet();
+					task.future.completeExceptionally(
+							new RejectedExecutionException(task.queueName + " is full, message dropped"));
+					return task.future;
+				}
+				break;
+		}
+		lock.lock();
+		try {
+			if (shutdown) {
+				task.room.release();
+				throw new RejectedExecutionException(name + " has been shut down");
+			}
+			add(task);
+			queued.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		submitted.incrementAndGet();
+		return task.future;
+	}
+
+	private void work(final int worker) {
+		try {
+			while (true) {
+				final T task;
+				try {
+					task = take(worker);
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (task == null)
+					return;
+				task.room.release();
+				queueWait(task).recordSince(task.enqueued);
+				if (task.future.isDone()) // cancelled while waiting
+					continue;
+				final long start = System.nanoTime();
+				try {
+					task.delivery.deliver();
+					sendLatency(task).recordSince(start);
+					sent.incrementAndGet();
+					task.future.complete(null);
+				} catch (InterruptedException e) {
+					failed.incrementAndGet();
+					task.future.completeExceptionally(e);
+					return;
+				} catch (Exception e) {
+					failed.incrementAndGet();
+					task.future.completeExceptionally(e);
+				}
+			}
+		} finally {
+			stopped();
+		}
+	}
+
+	/**
+	 * @return the next task for the worker or null once shut down and nothing is left for it
+	 */
+	private T take(final int worker) throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (true) {
+				final T task = poll(worker);
+				if (task != null)
+					return task;
+				if (shutdown)
+					return null;
+				queued.await();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Called by every worker that stops; the last one fails the tasks nobody is left to send.
+	 */
+	private void stopped() {
+		final Collection<T> stranded;
+		lock.lock();
+		try {
+			if (--running > 0)
+				return;
+			shutdown = true;
+			stranded = drain();
+		} finally {
+			lock.unlock();
+		}
+		for (T task : stranded) {
+			task.room.release();
+			failed.incrementAndGet();
+			task.future.completeExceptionally(
+					new RejectedExecutionException(name + " stopped before the message was sent"));
+		}
+	}
+
+	/**
+	 * Stops accepting messages; the queued ones are still sent.
+	 */
+	public void shutdown() {
+		lock.lock();
+		try {
+			shutdown = true;
+			queued.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits for the workers to stop after {@link #shutdown()}. Messages they could not send have failed by then.
+	 * @return whether the workers stopped in time
+	 */
+	public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for (Thread worker : workers) {
+			final long remaining = deadline - System.nanoTime();
+			if (remaining <= 0)
+				return false;
+			TimeUnit.NANOSECONDS.timedJoin(worker, remaining);
+			if (worker.isAlive())
+				return false;
+		}
+		return true;
+	}
+
+	public AsyncMailSender.OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	protected int getWorkers() {
+		return workers.size();
+	}
+
+	/**
+	 * @return the number of messages accepted, including dropped ones
+	 */
+	public long getSubmitted() {
+		return submitted.get();
+	}
+
+	public long getSent() {
+		return sent.get();
+	}
+
+	/**
+	 * @return the number of messages that could not be sent, including those left queued when the workers stopped
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * @return the number of messages rejected or dropped because their queue was full
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * One queued message.
+	 */
+	protected static class Task {
+		final Delivery delivery;
+		final Semaphore room;
+		final String queueName;
+		final CompletableFuture<Void> future = new CompletableFuture<>();
+		final long enqueued = System.nanoTime();
+
+		/**
+		 * @param room      the permits for the queue the task goes to, released once a worker takes it
+		 * @param queueName the name of that queue in exception messages
+		 */
+		protected Task(final Delivery delivery, final Semaphore room, final String queueName) {
+			this.delivery = delivery;
+			this.room = room;
+			this.queueName = queueName;
+		}
+	}
+}
@@ -2,15 +2,13 @@ package nz.ac.aut.hss.network.mail;
 
 import com.sun.istack.internal.Nullable;
 import nz.ac.aut.hss.network.Application;
+import nz.ac.aut.hss.network.LruCache;
 
-import javax.activation.DataHandler;
-import javax.activation.DataSource;
-import javax.activation.FileDataSource;
 import javax.mail.*;
 import javax.mail.internet.*;
 import java.io.File;
 import java.io.UnsupportedEncodingException;
-import java.util.Date;
+import java.util.Map;
 import java.util.Properties;
 
 /**
@@ -18,11 +16,25 @@ import java.util.Properties;
  * @created 18.07.2014
  */
 public class MailSender extends AbstractMailClient {
+	public static interface Defaults {
+		/**
+		 * How many distinct recipient lists are kept parsed.
+		 */
+		public final int PARSED_RECIPIENTS = 1024;
+	}
+
+	private static final LruCache<String, InternetAddress[]> parsedRecipients =
+			new LruCache<>(Defaults.PARSED_RECIPIENTS);
+
 	private final String address;
 	private final String senderName;
 	@Nullable
 	private final MailAuthenticator authenticator;
 	private Transport transport;
+	@Nullable
+	private volatile RelayRateLimiter rateLimiter;
+	@Nullable
+	private volatile MessageTemplate defaultTemplate;
 
 	/**
 	 * @param authenticator if the authenticator is null, a connect without authentication is attempted
@@ -57,16 +69,22 @@ public class MailSender extends AbstractMailClient {
 			if (transport == null) {
 				transport = session.getTransport("smtp");
 			}
-
-			if (authenticator != null)
-				transport.connect(host, authenticator.getUsername(), authenticator.getPassword());
-			else
-				transport.connect();
+			connect(transport);
 		} catch (MessagingException ex) {
 			throw new ConnectionException(ex);
 		}
 	}
 
+	/**
+	 * Connects and authenticates a transport of this sender's session.
+	 */
+	protected void connect(final Transport transport) throws MessagingException {
+		if (authenticator != null)
+			transport.connect(host, authenticator.getUsername(), authenticator.getPassword());
+		else
+			transport.connect();
+	}
+
 	public void disconnect() throws ConnectionException {
 		try {
 			if (transport != null && transport.isConnected())
@@ -100,15 +118,32 @@ public class MailSender extends AbstractMailClient {
 	 */
 	public void sendMail(String recipientsAddresslist, String subject, BodyPart... bodyParts)
 			throws UnsupportedEncodingException, MessagingException, InterruptedException {
-		// sender and recipient
-		final Address[] recipients;
-		try {
-			recipients = InternetAddress.parse(recipientsAddresslist, false);
-		} catch (AddressException e) {
-			throw new IllegalArgumentException(
-					"Could not parse recipients '" + recipientsAddresslist + "' to internet address");
+		sendMail(parseRecipients(recipientsAddresslist), subject, bodyParts);
+	}
+
+	/**
+	 * Parses the list once; lists parsed before are taken from a cache shared by all senders.
+	 * @return new copies of the addresses, which the caller may modify
+	 * @throws IllegalArgumentException if the list cannot be parsed
+	 * @see javax.mail.internet.InternetAddress#parse(String)
+	 */
+	public static InternetAddress[] parseRecipients(final String recipientsAddresslist) {
+		if (recipientsAddresslist == null)
+			throw new IllegalArgumentException("recipients must not be null");
+		InternetAddress[] recipients = parsedRecipients.get(recipientsAddresslist);
+		if (recipients == null) {
+			try {
+				recipients = InternetAddress.parse(recipientsAddresslist, false);
+			} catch (AddressException e) {
+				throw new IllegalArgumentException(
+						"Could not parse recipients '" + recipientsAddresslist + "' to internet address");
+			}
+			parsedRecipients.put(recipientsAddresslist, recipients);
 		}
-		sendMail(recipients, subject, bodyParts);
+		final InternetAddress[] copy = new InternetAddress[recipients.length];
+		for (int i = 0; i < recipients.length; i++) // InternetAddress is mutable, the cached ones must not change
+			copy[i] = (InternetAddress) recipients[i].clone();
+		return copy;
 	}
 
 	/**
@@ -119,40 +154,115 @@ public class MailSender extends AbstractMailClient {
 	 */
 	public void sendMail(Address[] recipients, String subject, BodyPart... bodyParts)
 			throws UnsupportedEncodingException, MessagingException, InterruptedException {
-		// sender and recipient
-		final Message message = new MimeMessage(session);
-		message.setFrom(new InternetAddress(this.address, this.senderName));
-		message.setRecipients(Message.RecipientType.TO, recipients);
-		// content
-		message.setSubject(subject);
-		final Multipart multipart = new MimeMultipart();
-		for (BodyPart bodyPart : bodyParts) {
-			multipart.addBodyPart(bodyPart);
-		}
-		message.setContent(multipart);
-		// send
-		message.setSentDate(new Date());
+		// the message is saved while it is written to the relay, and sent to the recipients we already have parsed
+		send(createMessage(recipients, subject, bodyParts), recipients);
+	}
+
+	/**
+	 * Sends a text message to the template's recipients with the template's subject.
+	 * @throws IllegalStateException if the template has no fixed recipients or subject
+	 */
+	public void sendMail(final MessageTemplate template, final String text)
+			throws MessagingException, InterruptedException {
+		send(template.createMessage(text), template.getRecipients());
+	}
+
+	/**
+	 * Creates a message from this sender to the recipients, without sending it.
+	 * @throws java.io.UnsupportedEncodingException if our sender address has an unsupported encoding
+	 */
+	public MimeMessage createMessage(Address[] recipients, String subject, BodyPart... bodyParts)
+			throws UnsupportedEncodingException, MessagingException {
+		MessageTemplate template = defaultTemplate;
+		if (template == null)
+			defaultTemplate = template = createTemplate(null, null);
+		return template.createMessage(recipients, subject, bodyParts);
+	}
+
+	/**
+	 * @see #createTemplate(String, String, Map)
+	 */
+	public MessageTemplate createTemplate(@Nullable final String recipientsAddresslist, @Nullable final String subject)
+			throws UnsupportedEncodingException {
+		return createTemplate(recipientsAddresslist, subject, null);
+	}
+
+	/**
+	 * Creates a template for messages from this sender, with the headers parsed and encoded once.
+	 * @param recipientsAddresslist the recipients of every message, or null if they are given per message
+	 * @param subject               the subject of every message, or null if it is given per message
+	 * @param headers               further headers of every message, or null
+	 * @throws java.io.UnsupportedEncodingException if our sender address has an unsupported encoding
+	 * @throws IllegalArgumentException             if the recipients cannot be parsed
+	 */
+	public MessageTemplate createTemplate(@Nullable final String recipientsAddresslist, @Nullable final String subject,
+										  @Nullable final Map<String, String> headers)
+			throws UnsupportedEncodingException {
+		initSession();
+		return new MessageTemplate(session, new InternetAddress(this.address, this.senderName),
+				recipientsAddresslist == null ? null : parseRecipients(recipientsAddresslist), subject, headers);
+	}
+
+	/**
+	 * Sends the message to all of its recipients.
+	 */
+	protected void send(final Message message) throws MessagingException, InterruptedException {
+		send(message, message.getAllRecipients());
+	}
+
+	/**
+	 * Sends the message to the given recipients only, whatever its headers say, paced by the rate limiter if set.
+	 */
+	protected void send(final Message message, final Address[] recipients)
+			throws MessagingException, InterruptedException {
+		final RelayRateLimiter limiter = rateLimiter;
+		if (limiter == null)
+			sendMessage(message, recipients);
+		else
+			limiter.send(() -> sendMessage(message, recipients));
+	}
+
+	/**
+	 * Hands the message to the relay over this sender's transport.
+	 * Subclasses may deliver it differently, e.g. over pooled connections.
+	 * @return how long the relay took to accept the message in nanoseconds, see {@link RelayRateLimiter.Send#send()}
+	 */
+	protected long sendMessage(final Message message, final Address[] recipients)
+			throws MessagingException, InterruptedException {
+		final long start = System.nanoTime();
+		transport.sendMessage(message, recipients);
+		return System.nanoTime() - start;
+	}
 
-		transport.sendMessage(message, message.getAllRecipients());
-		message.saveChanges();
+	/**
+	 * @param rateLimiter paces the messages and retries the ones the relay defers, or null to send at once
+	 */
+	public void setRateLimiter(@Nullable final RelayRateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
 	}
 
+	@Nullable
+	public RelayRateLimiter getRateLimiter() {
+		return rateLimiter;
+	}
+
+	/**
+	 * @see MessageTemplate#createTextPart(String)
+	 */
 	public static MimeBodyPart createBodyPart(String text) throws MessagingException {
-		MimeBodyPart bodyPart = new MimeBodyPart();
-		bodyPart.setText(text);
-		return bodyPart;
+		return MessageTemplate.createTextPart(text);
 	}
 
 	public static MimeBodyPart createBodyPart(File file) throws MessagingException {
 		return createBodyPart(file, file.getName());
 	}
 
+	/**
+	 * @return a part that reads the file through memory mapping and encodes it without buffering it in the heap
+	 * @see MappedFileBodyPart
+	 */
 	public static MimeBodyPart createBodyPart(File file, String filename) throws MessagingException {
-		DataSource source = new FileDataSource(file);
-		MimeBodyPart bodyPart = new MimeBodyPart();
-		bodyPart.setDataHandler(new DataHandler(source));
-		bodyPart.setFileName(filename);
-		return bodyPart;
+		return new MappedFileBodyPart(file, filename);
 	}
 
 	@Override
@@ -0,0 +1,68 @@
+package nz.ac.aut.hss.network.mail;
+
+import com.sun.mail.util.LineOutputStream;
+
+import javax.activation.DataHandler;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeBodyPart;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Enumeration;
+
+/**
+ * A file attachment backed by a {@link MappedFileDataSource}. When the file is Base64 encoded, which JavaMail chooses
+ * for all binary content, the body is encoded from the mapped file straight into the output stream instead of
+ * through JavaMail's stream copies and encoder; the encoding is determined once, not on every save or retry.
+ */
+public final class MappedFileBodyPart extends MimeBodyPart {
+	private static final String TRANSFER_ENCODING = "Content-Transfer-Encoding";
+
+	private final MappedFileDataSource source;
+
+	public MappedFileBodyPart(final File file, final String filename) throws MessagingException {
+		this.source = new MappedFileDataSource(file);
+		setDataHandler(new DataHandler(source));
+		setFileName(filename);
+	}
+
+	public MappedFileDataSource getDataSource() {
+		return source;
+	}
+
+	/**
+	 * @return the length of the file, which is the size of the content before encoding
+	 */
+	@Override
+	public int getSize() {
+		return (int) Math.min(Integer.MAX_VALUE, source.getLength());
+	}
+
+	@Override
+	protected void updateHeaders() throws MessagingException {
+		setCachedEncoding();
+		super.updateHeaders();
+	}
+
+	/**
+	 * Sets the content transfer encoding cached by the data source unless one was set explicitly.
+	 */
+	private void setCachedEncoding() throws MessagingException {
+		if (getHeader(TRANSFER_ENCODING) == null)
+			setHeader(TRANSFER_ENCODING, source.getEncoding());
+	}
+
+	@Override
+	public void writeTo(final OutputStream os) throws IOException, MessagingException {
+		setCachedEncoding();
+		if (!"base64".equalsIgnoreCase(getEncoding())) {
+			super.writeTo(os);
+			return;
+		}
+		final LineOutputStream lines = new LineOutputStream(os);
+		for (Enumeration<?> headers = getAllHeaderLines(); headers.hasMoreElements(); )
+			lines.writeln((String) headers.nextElement());
+		lines.writeln();
+		source.writeBase64(os, false); // like MimeBodyPart, which flushes the encoder without closing it
+	}
+}
@@ -0,0 +1,233 @@
+package nz.ac.aut.hss.network.mail;
+
+import javax.activation.DataSource;
+import javax.activation.FileTypeMap;
+import javax.mail.internet.MimeUtility;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Base64;
+
+/**
+ * A read-only file {@link DataSource} that reads the file through memory-mapped windows instead of stream copies,
+ * and can write it Base64 encoded from the mapping into an output stream in fixed-size chunks, so the heap used for
+ * an attachment does not depend on its size. The content transfer encoding JavaMail chooses for the file
+ * is computed once and cached.
+ * @see MappedFileBodyPart
+ */
+public class MappedFileDataSource implements DataSource {
+	public static interface Defaults {
+		/**
+		 * How much of the file is mapped at once; a multiple of 57 bytes, so that every window but the last encodes
+		 * to whole lines of 76 characters.
+		 */
+		public final int WINDOW_BYTES = 57 << 16;
+		/**
+		 * How much is encoded at once; a multiple of 57 bytes that divides the window size.
+		 */
+		public final int CHUNK_BYTES = 57 << 10;
+	}
+
+	private static final byte[] ALPHABET =
+			"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(StandardCharsets.US_ASCII);
+	/**
+	 * 3-byte groups per line of 76 characters.
+	 */
+	private static final int GROUPS_PER_LINE = 19;
+	private static final Base64.Encoder ENCODER = Base64.getMimeEncoder(76, new byte[]{'\r', '\n'});
+	private static final ThreadLocal<byte[]> CHUNK = ThreadLocal.withInitial(() -> new byte[Defaults.CHUNK_BYTES]),
+			ENCODED = ThreadLocal.withInitial(() -> new byte[Defaults.CHUNK_BYTES / 57 * 78]);
+
+	private final File file;
+	private final String contentType;
+	private volatile String encoding;
+
+	public MappedFileDataSource(final File file) {
+		if (file == null)
+			throw new IllegalArgumentException("file must not be null");
+		this.file = file;
+		this.contentType = FileTypeMap.getDefaultFileTypeMap().getContentType(file);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public long getLength() {
+		return file.length();
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return new MappedInputStream(FileChannel.open(file.toPath(), StandardOpenOption.READ));
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		throw new IOException("MappedFileDataSource is read-only");
+	}
+
+	@Override
+	public String getContentType() {
+		return contentType;
+	}
+
+	@Override
+	public String getName() {
+		return file.getName();
+	}
+
+	/**
+	 * @return the content transfer encoding JavaMail chooses for the file, computed on the first call only
+	 * @see MimeUtility#getEncoding(DataSource)
+	 */
+	public String getEncoding() {
+		String encoding = this.encoding;
+		if (encoding == null)
+			this.encoding = encoding = MimeUtility.getEncoding(this);
+		return encoding;
+	}
+
+	/**
+	 * Writes the file Base64 encoded in lines of 76 characters, each line including the last ending with CRLF, exactly
+	 * as JavaMail's encoder does when it is closed. The mapped file is encoded in chunks through buffers that are
+	 * reused by the calling thread.
+	 * @see MimeUtility#encode(OutputStream, String)
+	 */
+	public void writeBase64(final OutputStream os) throws IOException {
+		writeBase64(os, true);
+	}
+
+	/**
+	 * @param endLastLine whether a partial last line ends with CRLF; {@link javax.mail.internet.MimeBodyPart} only
+	 *                    flushes the encoder, which leaves it open
+	 */
+	void writeBase64(final OutputStream os, final boolean endLastLine) throws IOException {
+		final byte[] chunk = CHUNK.get(), encoded = ENCODED.get();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			final long size = channel.size();
+			for (long position = 0; position < size; position += Defaults.WINDOW_BYTES) {
+				final MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position,
+						Math.min(Defaults.WINDOW_BYTES, size - position));
+				while (window.remaining() >= chunk.length) {
+					window.get(chunk);
+					int count = ENCODER.encode(chunk, encoded); // whole lines, separated but not terminated
+					encoded[count++] = '\r';
+					encoded[count++] = '\n';
+					os.write(encoded, 0, count);
+				}
+				final int rest = window.remaining(); // only in the last window
+				window.get(chunk, 0, rest);
+				os.write(encoded, 0, encodeRest(chunk, rest, encoded, endLastLine));
+			}
+		}
+	}
+
+	/**
+	 * Encodes the last bytes of the file, fewer than a chunk.
+	 * @return the number of encoded bytes
+	 */
+	private static int encodeRest(final byte[] bytes, final int length, final byte[] encoded,
+								  final boolean endLastLine) {
+		int count = 0, groups = 0;
+		for (int i = 0; i < length; i += 3) {
+			final boolean second = i + 1 < length, third = i + 2 < length;
+			final int bits = (bytes[i] & 0xff) << 16 | (second ? (bytes[i + 1] & 0xff) << 8 : 0)
+					| (third ? bytes[i + 2] & 0xff : 0);
+			encoded[count++] = ALPHABET[bits >>> 18];
+			encoded[count++] = ALPHABET[(bits >>> 12) & 0x3f];
+			encoded[count++] = second ? ALPHABET[(bits >>> 6) & 0x3f] : (byte) '=';
+			encoded[count++] = third ? ALPHABET[bits & 0x3f] : (byte) '=';
+			if (++groups == GROUPS_PER_LINE) {
+				encoded[count++] = '\r';
+				encoded[count++] = '\n';
+				groups = 0;
+			}
+		}
+		if (groups != 0 && endLastLine) {
+			encoded[count++] = '\r';
+			encoded[count++] = '\n';
+		}
+		return count;
+	}
+
+	@Override
+	public String toString() {
+		return "MappedFileDataSource{" +
+				"file=" + file +
+				", contentType='" + contentType + '\'' +
+				", encoding='" + encoding + '\'' +
+				'}';
+	}
+
+	/**
+	 * Reads a file window by window; the channel is only needed for mapping and closed with the stream.
+	 */
+	private static class MappedInputStream extends InputStream {
+		private final FileChannel channel;
+		private final long size;
+		private long position;
+		private MappedByteBuffer window;
+
+		private MappedInputStream(final FileChannel channel) throws IOException {
+			this.channel = channel;
+			this.size = channel.size();
+		}
+
+		/**
+		 * @return whether there is anything left to read
+		 */
+		private boolean ensureWindow() throws IOException {
+			if (window != null && window.hasRemaining())
+				return true;
+			if (position >= size)
+				return false;
+			final long length = Math.min(Defaults.WINDOW_BYTES, size - position);
+			window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+			position += length;
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return ensureWindow() ? window.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (!ensureWindow())
+				return -1;
+			final int n = Math.min(len, window.remaining());
+			window.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public long skip(final long n) throws IOException {
+			long skipped = 0;
+			while (skipped < n && ensureWindow()) {
+				final int step = (int) Math.min(n - skipped, window.remaining());
+				window.position(window.position() + step);
+				skipped += step;
+			}
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return window == null ? 0 : window.remaining();
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,216 @@
+package nz.ac.aut.hss.network.mail;
+
+import com.sun.istack.internal.Nullable;
+
+import javax.mail.Address;
+import javax.mail.BodyPart;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MailDateFormat;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.internet.MimeUtility;
+import java.io.UnsupportedEncodingException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The parts of a message that are the same for every message a sender sends to the same recipients: the From header,
+ * optionally the To header and subject, and any further static headers, each parsed and encoded once when the
+ * template is created. Creating a message from a template only fills in the body, the date, which is formatted once
+ * per second, and a Message-ID from a counter instead of a host name lookup.
+ * A template is immutable and can be used by any number of threads at once.
+ * @see MailSender#createTemplate(String, String)
+ */
+public class MessageTemplate {
+	private static final String CONTENT_TYPE_ASCII = "text/plain; charset=us-ascii",
+			CONTENT_TYPE_UTF8 = "text/plain; charset=UTF-8";
+	/**
+	 * The longest line allowed in a 7bit body, without its CRLF.
+	 */
+	private static final int MAX_LINE_LENGTH = 998;
+
+	private final Session session;
+	private final String from;
+	@Nullable
+	private final InternetAddress[] recipients;
+	@Nullable
+	private final String to, subject;
+	private final Map<String, String> headers;
+	private final String messageIdPrefix, messageIdSuffix;
+	private final AtomicLong messageIds = new AtomicLong();
+	private volatile FormattedDate date = new FormattedDate(-1, null);
+
+	/**
+	 * @param recipients the fixed recipients or null if they are given per message
+	 * @param subject    the fixed subject or null if it is given per message
+	 * @param headers    further headers every message gets, or null
+	 * @throws UnsupportedEncodingException if the sender name or subject cannot be encoded
+	 */
+	MessageTemplate(final Session session, final InternetAddress from, @Nullable final InternetAddress[] recipients,
+					@Nullable final String subject, @Nullable final Map<String, String> headers)
+			throws UnsupportedEncodingException {
+		if (session == null)
+			throw new IllegalArgumentException("session must not be null");
+		if (from == null)
+			throw new IllegalArgumentException("from must not be null");
+		if (recipients != null && recipients.length == 0)
+			throw new IllegalArgumentException("recipients must not be empty");
+		this.session = session;
+		this.from = InternetAddress.toString(new Address[]{from}, 6); // folded after "From: "
+		this.recipients = recipients == null ? null : recipients.clone();
+		this.to = recipients == null ? null : InternetAddress.toString(recipients, 4); // folded after "To: "
+		this.subject = subject == null ? null : MimeUtility.fold(9, MimeUtility.encodeText(subject, "UTF-8", null));
+		final Map<String, String> encoded = new LinkedHashMap<>();
+		if (headers != null)
+			for (Map.Entry<String, String> header : headers.entrySet())
+				encoded.put(header.getKey(), MimeUtility.fold(header.getKey().length() + 2,
+						MimeUtility.encodeText(header.getValue(), "UTF-8", null)));
+		this.headers = Collections.unmodifiableMap(encoded);
+
+		final String host = from.getAddress().contains("@")
+				? from.getAddress().substring(from.getAddress().indexOf('@') + 1) : "localhost";
+		this.messageIdPrefix = "<" + Long.toString(System.currentTimeMillis(), 36) + "."
+				+ Integer.toString(System.identityHashCode(this), 36) + ".";
+		this.messageIdSuffix = ".JavaMail@" + host + ">";
+	}
+
+	/**
+	 * @return a copy of the fixed recipients, or null if they are given per message
+	 */
+	@Nullable
+	public InternetAddress[] getRecipients() {
+		return recipients == null ? null : recipients.clone();
+	}
+
+	public boolean hasRecipients() {
+		return recipients != null;
+	}
+
+	public boolean hasSubject() {
+		return subject != null;
+	}
+
+	/**
+	 * Creates a message with a text body to the fixed recipients and with the fixed subject.
+	 * @throws IllegalStateException if the template has no fixed recipients or subject
+	 */
+	public MimeMessage createMessage(final String text) throws MessagingException {
+		if (recipients == null || subject == null)
+			throw new IllegalStateException("template has no fixed recipients or subject");
+		return createMessage(null, null, createTextPart(text));
+	}
+
+	/**
+	 * Creates a message from the template, without sending it.
+	 * @param recipients the recipients, or null for the template's fixed recipients
+	 * @param subject    the subject, or null for the template's fixed subject
+	 * @throws IllegalArgumentException if neither the template nor the caller give recipients
+	 */
+	public MimeMessage createMessage(@Nullable final Address[] recipients, @Nullable final String subject,
+									 final BodyPart... bodyParts) throws MessagingException {
+		if (recipients == null && to == null)
+			throw new IllegalArgumentException("recipients must not be null for a template without recipients");
+		final MimeMessage message = new TemplateMessage(session);
+		message.setHeader("From", from);
+		if (recipients != null)
+			message.setRecipients(MimeMessage.RecipientType.TO, recipients);
+		else
+			message.setHeader("To", to);
+		if (subject != null)
+			message.setSubject(subject);
+		else if (this.subject != null)
+			message.setHeader("Subject", this.subject);
+		for (Map.Entry<String, String> header : headers.entrySet())
+			message.setHeader(header.getKey(), header.getValue());
+		final MimeMultipart multipart = new MimeMultipart();
+		for (BodyPart bodyPart : bodyParts)
+			multipart.addBodyPart(bodyPart);
+		message.setContent(multipart);
+		message.setHeader("Date", formatDate());
+		return message;
+	}
+
+	/**
+	 * Creates a plain text part whose charset and transfer encoding are chosen from one pass over the characters,
+	 * where JavaMail would encode the text once only to decide and then again to send it.
+	 */
+	public static MimeBodyPart createTextPart(final String text) throws MessagingException {
+		int nonAscii = 0, lineLength = 0;
+		boolean longLines = false;
+		for (int i = 0; i < text.length(); i++) {
+			final char c = text.charAt(i);
+			if (c == '\r' || c == '\n') {
+				lineLength = 0;
+				continue;
+			}
+			if (c >= 0x80)
+				nonAscii++;
+			if (++lineLength > MAX_LINE_LENGTH)
+				longLines = true;
+		}
+		final MimeBodyPart part = new MimeBodyPart();
+		part.setContent(text, nonAscii == 0 ? CONTENT_TYPE_ASCII : CONTENT_TYPE_UTF8);
+		final String encoding;
+		if (nonAscii == 0 && !longLines)
+			encoding = "7bit";
+		else if (nonAscii < text.length() - nonAscii)
+			encoding = "quoted-printable";
+		else
+			encoding = "base64";
+		part.setHeader("Content-Transfer-Encoding", encoding);
+		return part;
+	}
+
+	/**
+	 * @return the current time in the format of the Date header, formatted again only when the second changes
+	 */
+	private String formatDate() {
+		final long now = System.currentTimeMillis(), second = TimeUnit.MILLISECONDS.toSeconds(now);
+		FormattedDate date = this.date;
+		if (date.second != second) // MailDateFormat is not thread-safe, so every update gets its own
+			this.date = date = new FormattedDate(second, new MailDateFormat().format(new Date(second * 1000)));
+		return date.value;
+	}
+
+	@Override
+	public String toString() {
+		return "MessageTemplate{" +
+				"from='" + from + '\'' +
+				", to='" + to + '\'' +
+				", subject='" + subject + '\'' +
+				", headers=" + headers +
+				", messages=" + messageIds.get() +
+				'}';
+	}
+
+	private static class FormattedDate {
+		private final long second;
+		private final String value;
+
+		private FormattedDate(final long second, final String value) {
+			this.second = second;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * Takes its Message-ID from the template's counter; JavaMail looks up the local host name for every message.
+	 */
+	private class TemplateMessage extends MimeMessage {
+		private TemplateMessage(final Session session) {
+			super(session);
+		}
+
+		@Override
+		protected void updateMessageID() throws MessagingException {
+			setHeader("Message-ID", messageIdPrefix + messageIds.incrementAndGet() + messageIdSuffix);
+		}
+	}
+}
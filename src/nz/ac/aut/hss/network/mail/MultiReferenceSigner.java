@@ -0,0 +1,449 @@
+package nz.ac.aut.hss.network.mail;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.w3c.dom.events.Event;
+import org.w3c.dom.events.EventListener;
+import org.w3c.dom.events.EventTarget;
+import org.w3c.dom.events.MutationEvent;
+import org.xml.sax.SAXException;
+
+import javax.xml.XMLConstants;
+import javax.xml.crypto.KeySelector;
+import javax.xml.crypto.MarshalException;
+import javax.xml.crypto.dsig.CanonicalizationMethod;
+import javax.xml.crypto.dsig.DigestMethod;
+import javax.xml.crypto.dsig.Reference;
+import javax.xml.crypto.dsig.SignedInfo;
+import javax.xml.crypto.dsig.Transform;
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.crypto.dsig.XMLSignatureException;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.crypto.dsig.dom.DOMSignContext;
+import javax.xml.crypto.dsig.dom.DOMValidateContext;
+import javax.xml.crypto.dsig.keyinfo.KeyInfo;
+import javax.xml.crypto.dsig.keyinfo.KeyInfoFactory;
+import javax.xml.crypto.dsig.spec.C14NMethodParameterSpec;
+import javax.xml.crypto.dsig.spec.TransformParameterSpec;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Signs individual elements of a document, each with its own same-document reference (<code>#id</code>), instead of
+ * a single reference over the whole document. The reference digests are computed in parallel, and a
+ * {@link SignedDocument} tracks edits so that re-signing only recomputes the digests of elements that changed.
+ * The signature is appended to the document element, so the document element itself cannot be referenced.
+ */
+public class MultiReferenceSigner {
+	private static final String GENERATED_ID_PREFIX = "ref-";
+	private static final String SUBTREE_MODIFIED = "DOMSubtreeModified", ATTRIBUTE_MODIFIED = "DOMAttrModified",
+			NODE_INSERTED = "DOMNodeInserted";
+
+	private final PrivateKey privateKey;
+	private final PublicKey publicKey;
+	private final ExecutorService executor;
+	private final SignatureAlgorithm algorithm;
+	private final ThreadLocal<XMLSignatureFactory> sigFactories = new ThreadLocal<XMLSignatureFactory>() {
+		@Override
+		protected XMLSignatureFactory initialValue() {
+			return XMLSignatureFactory.getInstance("DOM");
+		}
+	};
+	private final DocumentBuilderFactory builderFactory;
+
+	public MultiReferenceSigner(final PrivateKey privateKey, final PublicKey publicKey) {
+		this(privateKey, publicKey, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param executor computes the reference digests
+	 */
+	public MultiReferenceSigner(final PrivateKey privateKey, final PublicKey publicKey,
+								final ExecutorService executor) {
+		this(privateKey, publicKey, executor, SignatureAlgorithm.RSA_SHA256);
+	}
+
+	/**
+	 * @param executor  computes the reference digests
+	 * @param algorithm the signature and digest algorithms, must match the type of the keys
+	 */
+	public MultiReferenceSigner(final PrivateKey privateKey, final PublicKey publicKey,
+								final ExecutorService executor, final SignatureAlgorithm algorithm) {
+		this.privateKey = privateKey;
+		if (publicKey == null)
+			throw new IllegalArgumentException("publicKey must not be null");
+		this.publicKey = publicKey;
+		if (executor == null)
+			throw new IllegalArgumentException("executor must not be null");
+		this.executor = executor;
+		if (algorithm == null)
+			throw new IllegalArgumentException("algorithm must not be null");
+		if (!algorithm.isCompatible(publicKey))
+			throw new IllegalArgumentException("A " + publicKey.getAlgorithm() + " key cannot be used with " + algorithm);
+		this.algorithm = algorithm;
+		builderFactory = DocumentBuilderFactory.newInstance();
+		builderFactory.setNamespaceAware(true); // required for XML-Sec
+		try { // lazily expanded nodes cannot be read by several threads at once
+			builderFactory.setFeature("http://apache.org/xml/features/dom/defer-node-expansion", false);
+		} catch (ParserConfigurationException e) { // not a Xerces parser, sign() expands the document instead
+		}
+	}
+
+	public Document parse(final InputStream is) throws SigningException {
+		try {
+			synchronized (builderFactory) {
+				return builderFactory.newDocumentBuilder().parse(is);
+			}
+		} catch (ParserConfigurationException e) {
+			throw new SigningException("DOM parser exception: " + e, e);
+		} catch (SAXException e) {
+			throw new SigningException("SAX exception while parsing: " + e, e);
+		} catch (IOException e) {
+			throw new SigningException("IO exception with file: " + e, e);
+		}
+	}
+
+	/**
+	 * @return the elements whose attribute <code>idAttribute</code> has one of the given values
+	 */
+	public static List<Element> selectById(final Document document, final String idAttribute,
+										   final Collection<String> ids) {
+		final Set<String> wanted = new HashSet<>(ids);
+		final List<Element> elements = new ArrayList<>();
+		final NodeList all = document.getElementsByTagName("*");
+		for (int i = 0; i < all.getLength(); i++) {
+			final Element element = (Element) all.item(i);
+			if (element.hasAttribute(idAttribute) && wanted.contains(element.getAttribute(idAttribute)))
+				elements.add(element);
+		}
+		return elements;
+	}
+
+	/**
+	 * @return the elements selected by the XPath expression, other node types are ignored
+	 */
+	public static List<Element> selectByXPath(final Document document, final String expression)
+			throws SigningException {
+		final NodeList nodes;
+		try {
+			nodes = (NodeList) XPathFactory.newInstance().newXPath().evaluate(expression, document,
+					XPathConstants.NODESET);
+		} catch (XPathExpressionException e) {
+			throw new SigningException("Invalid XPath expression '" + expression + "': " + e, e);
+		}
+		final List<Element> elements = new ArrayList<>(nodes.getLength());
+		for (int i = 0; i < nodes.getLength(); i++)
+			if (nodes.item(i).getNodeType() == Node.ELEMENT_NODE)
+				elements.add((Element) nodes.item(i));
+		return elements;
+	}
+
+	/**
+	 * Signs the given elements of a document. Elements without the id attribute are given a generated one.
+	 * @param idAttribute the (non-namespaced) attribute that identifies the elements, e.g. <code>Id</code>
+	 * @return the signed document which tracks further edits of the signed elements
+	 */
+	public SignedDocument sign(final Document document, final String idAttribute, final List<Element> elements)
+			throws SigningException {
+		if (privateKey == null)
+			throw new IllegalStateException("no private key to sign with");
+		final Set<String> used = new HashSet<>();
+		for (Element element : elements) {
+			if (element == document.getDocumentElement())
+				throw new IllegalArgumentException("the document element cannot be referenced, it holds the signature");
+			if (element.hasAttribute(idAttribute) && !used.add(element.getAttribute(idAttribute)))
+				throw new IllegalArgumentException("duplicate " + idAttribute + " '" + element.getAttribute(idAttribute) + "'");
+		}
+		int generated = 0;
+		for (Element element : elements) {
+			if (!element.hasAttribute(idAttribute)) {
+				String id;
+				do {
+					id = GENERATED_ID_PREFIX + generated++;
+				} while (!used.add(id));
+				element.setAttributeNS(null, idAttribute, id);
+			}
+		}
+		expand(document);
+
+		final SignedDocument signed = new SignedDocument(document, idAttribute, elements);
+		signed.resign();
+		return signed;
+	}
+
+	/**
+	 * Validates a document signed by this signer (after it has been serialized and parsed again, for instance)
+	 * against our public key.
+	 * @param idAttribute the attribute the references point to
+	 */
+	public boolean validate(final Document document, final String idAttribute) throws SigningException {
+		final NodeList signatures = document.getElementsByTagNameNS(XMLSignature.XMLNS, "Signature");
+		if (signatures.getLength() == 0)
+			throw new SigningException("No Signature element");
+		final DOMValidateContext vc = new DOMValidateContext(KeySelector.singletonKeySelector(publicKey),
+				signatures.item(0));
+		// without a schema the id attributes have to be registered for the references to resolve
+		final NodeList all = document.getElementsByTagName("*");
+		for (int i = 0; i < all.getLength(); i++) {
+			final Element element = (Element) all.item(i);
+			if (element.hasAttribute(idAttribute))
+				vc.setIdAttributeNS(element, null, idAttribute);
+		}
+		try {
+			return sigFactories.get().unmarshalXMLSignature(vc).validate(vc);
+		} catch (MarshalException e) {
+			throw new SigningException("Marshal exception while validating: " + e, e);
+		} catch (XMLSignatureException e) {
+			throw new SigningException("Signature exception while validating: " + e, e);
+		}
+	}
+
+	/**
+	 * Canonicalizes an element as dereferenced by <code>#id</code> (without comments) into a digest.
+	 */
+	private byte[] digest(final Element element) throws IOException {
+		final MessageDigest md;
+		try {
+			md = MessageDigest.getInstance(algorithm.getDigestAlgorithm());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("Digest algorithm not available: " + e, e);
+		}
+		final Writer writer = Utf8Writer.toDigest(md);
+		new XMLCanonicalizer(writer, false).canonicalize(element);
+		writer.close();
+		return md.digest();
+	}
+
+	/**
+	 * Visits every node once so a lazily built DOM is fully expanded before several threads read it.
+	 */
+	private static void expand(final Node node) {
+		final NamedNodeMap attributes = node.getAttributes();
+		if (attributes != null)
+			for (int i = 0; i < attributes.getLength(); i++)
+				attributes.item(i).getNodeValue();
+		node.getNodeValue();
+		for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling())
+			expand(child);
+	}
+
+	/**
+	 * @return whether the attribute is a namespace declaration or an <code>xml:</code> attribute, which are inherited
+	 * by the descendants of its element in the canonical form of a referenced element
+	 */
+	private static boolean isInherited(final Node attribute) {
+		final String namespace = attribute.getNamespaceURI(), name = attribute.getNodeName();
+		return XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(namespace) || XMLConstants.XML_NS_URI.equals(namespace)
+				|| name.equals(XMLConstants.XMLNS_ATTRIBUTE) || name.startsWith(XMLConstants.XMLNS_ATTRIBUTE + ":")
+				|| name.startsWith(XMLConstants.XML_NS_PREFIX + ":");
+	}
+
+	/**
+	 * A document signed by a {@link MultiReferenceSigner}. Changes to the signed elements are detected through DOM
+	 * mutation events (or reported with {@link #markChanged}), and {@link #resign()} only recomputes their digests.
+	 * Namespace declarations and <code>xml:</code> attributes changed on an ancestor, and signed elements moved to
+	 * another place, change the canonical form too and are detected as well.
+	 * Like the DOM itself, this class must not be used by several threads at once.
+	 */
+	public class SignedDocument {
+		private final Document document;
+		private final String idAttribute;
+		/**
+		 * Referenced elements by the id they were last signed with.
+		 */
+		private final Map<String, Element> elements = new LinkedHashMap<>();
+		private final Map<Element, byte[]> digests = new ConcurrentHashMap<>();
+		private final Set<Element> changed = ConcurrentHashMap.newKeySet();
+		private final AtomicLong digestsComputed = new AtomicLong();
+		private Element signatureElement;
+
+		private SignedDocument(final Document document, final String idAttribute, final List<Element> elements) {
+			this.document = document;
+			this.idAttribute = idAttribute;
+			for (final Element element : elements) {
+				this.elements.put(element.getAttribute(idAttribute), element);
+				changed.add(element);
+				if (element instanceof EventTarget) {
+					((EventTarget) element).addEventListener(SUBTREE_MODIFIED, new EventListener() {
+						@Override
+						public void handleEvent(final Event event) {
+							changed.add(element);
+						}
+					}, false);
+				}
+			}
+			if (document instanceof EventTarget) { // both events bubble up from any element to the document
+				((EventTarget) document).addEventListener(ATTRIBUTE_MODIFIED, new EventListener() {
+					@Override
+					public void handleEvent(final Event event) {
+						final Node attribute = ((MutationEvent) event).getRelatedNode();
+						if (attribute != null && isInherited(attribute))
+							markContained((Node) event.getTarget());
+					}
+				}, false);
+				((EventTarget) document).addEventListener(NODE_INSERTED, new EventListener() {
+					@Override
+					public void handleEvent(final Event event) {
+						markContained((Node) event.getTarget());
+					}
+				}, false);
+			}
+		}
+
+		/**
+		 * Marks the signed elements that are the node or inside it as changed.
+		 * @return whether there were any
+		 */
+		private boolean markContained(final Node node) {
+			boolean marked = false;
+			for (Element element : elements.values()) {
+				if (element == node
+						|| (node.compareDocumentPosition(element) & Node.DOCUMENT_POSITION_CONTAINED_BY) != 0) {
+					changed.add(element);
+					marked = true;
+				}
+			}
+			return marked;
+		}
+
+		/**
+		 * Marks a signed element (or the signed element containing the node) as changed. Only needed if the DOM
+		 * implementation does not support mutation events. For an ancestor of signed elements, e.g. after changing
+		 * its namespace declarations or <code>xml:</code> attributes, all signed elements below it are marked.
+		 */
+		public void markChanged(final Node node) {
+			for (Node n = node; n != null; n = n.getParentNode()) {
+				if (n.getNodeType() == Node.ELEMENT_NODE && elements.containsValue(n)) {
+					changed.add((Element) n);
+					return;
+				}
+			}
+			if (!markContained(node))
+				throw new IllegalArgumentException("node is neither part of nor above a signed element");
+		}
+
+		/**
+		 * Recomputes the digests of the changed elements in parallel and replaces the signature.
+		 */
+		public void resign() throws SigningException {
+			// an edited id attribute changes the reference URI
+			for (Map.Entry<String, Element> entry : new ArrayList<>(elements.entrySet())) {
+				final Element element = entry.getValue();
+				if (!entry.getKey().equals(element.getAttribute(idAttribute))) {
+					elements.remove(entry.getKey());
+					if (elements.put(element.getAttribute(idAttribute), element) != null)
+						throw new SigningException("duplicate " + idAttribute + " '"
+								+ element.getAttribute(idAttribute) + "'");
+				}
+				if ((element.compareDocumentPosition(document) & Node.DOCUMENT_POSITION_DISCONNECTED) != 0)
+					throw new SigningException("Signed element '" + entry.getKey() + "' has been removed");
+			}
+
+			final List<Element> toDigest = new ArrayList<>(changed);
+			changed.removeAll(toDigest);
+			final List<Future<?>> futures = new ArrayList<>(toDigest.size());
+			for (final Element element : toDigest) {
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						digests.put(element, digest(element));
+						digestsComputed.incrementAndGet();
+						return null;
+					}
+				}));
+			}
+			try {
+				for (Future<?> future : futures)
+					future.get();
+			} catch (InterruptedException e) {
+				changed.addAll(toDigest);
+				Thread.currentThread().interrupt();
+				throw new SigningException("Interrupted while digesting", e);
+			} catch (ExecutionException e) {
+				changed.addAll(toDigest);
+				throw new SigningException("Exception while digesting: " + e.getCause(), e.getCause());
+			}
+
+			replaceSignature();
+		}
+
+		private void replaceSignature() throws SigningException {
+			try {
+				final XMLSignatureFactory sigFactory = sigFactories.get();
+				final DigestMethod digestMethod = algorithm.newDigestMethod(sigFactory);
+				final List<Reference> references = new ArrayList<>(elements.size());
+				for (Map.Entry<String, Element> entry : elements.entrySet()) {
+					final Transform transform = sigFactory.newTransform(CanonicalizationMethod.INCLUSIVE,
+							(TransformParameterSpec) null);
+					references.add(sigFactory.newReference("#" + entry.getKey(), digestMethod,
+							Collections.singletonList(transform), null, null, digests.get(entry.getValue())));
+				}
+				final SignedInfo signedInfo = sigFactory.newSignedInfo(
+						sigFactory.newCanonicalizationMethod(CanonicalizationMethod.INCLUSIVE,
+								(C14NMethodParameterSpec) null),
+						algorithm.newSignatureMethod(sigFactory), references);
+				final KeyInfoFactory kif = sigFactory.getKeyInfoFactory();
+				final KeyInfo keyInfo = kif.newKeyInfo(Collections.singletonList(kif.newKeyValue(publicKey)));
+
+				if (signatureElement != null && signatureElement.getParentNode() != null)
+					signatureElement.getParentNode().removeChild(signatureElement);
+				final Element parent = document.getDocumentElement();
+				sigFactory.newXMLSignature(signedInfo, keyInfo).sign(new DOMSignContext(privateKey, parent));
+				signatureElement = (Element) parent.getLastChild();
+			} catch (GeneralSecurityException e) {
+				throw new SigningException("Signature algorithm not available: " + e, e);
+			} catch (MarshalException e) {
+				throw new SigningException("Marshal exception while signing: " + e, e);
+			} catch (XMLSignatureException e) {
+				throw new SigningException("Signature exception while signing: " + e, e);
+			}
+		}
+
+		public Document getDocument() {
+			return document;
+		}
+
+		/**
+		 * @return the ids of the signed elements, i.e. the reference URIs without <code>#</code>
+		 */
+		public Set<String> getReferenceIds() {
+			return Collections.unmodifiableSet(elements.keySet());
+		}
+
+		/**
+		 * @return the number of reference digests computed so far, including the initial signature
+		 */
+		public long getDigestsComputed() {
+			return digestsComputed.get();
+		}
+	}
+}
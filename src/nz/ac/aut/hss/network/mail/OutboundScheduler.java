@@ -0,0 +1,278 @@
+package nz.ac.aut.hss.network.mail;
+
+import nz.ac.aut.hss.network.LatencyStats;
+
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.activation.FileDataSource;
+import javax.mail.BodyPart;
+import javax.mail.MessagingException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends mail in the background like {@link AsyncMailSender}, but keeps short and urgent messages from waiting behind
+ * large attachments: every message goes to the {@link Lane#EXPRESS} lane if it is {@link Priority#HIGH} or small, and
+ * to the {@link Lane#BULK} lane otherwise. Some workers are reserved for the express lane, the others send bulk
+ * messages first and help with express messages when there are none. Within a lane higher priorities go first,
+ * equal ones in order of submission.
+ * <p>
+ * The workers send through a {@link PooledMailSender} whose pool has a connection for each of them. The reserved
+ * workers only keep express messages from queueing behind bulk ones; they do not hold connections of their own, so
+ * when other users of the same sender take connections an express message can still wait for one in
+ * {@link TransportPool#borrow()}. Queue wait and send time are recorded per lane.
+ */
+public final class OutboundScheduler extends MailQueue<OutboundScheduler.Task> {
+	public static interface Defaults {
+		public final int EXPRESS_WORKERS = 2;
+		public final int SHARED_WORKERS = 2;
+		/**
+		 * Messages up to this estimated size go to the express lane.
+		 */
+		public final long SMALL_MESSAGE_BYTES = 256 << 10;
+		public final int CAPACITY = 1000;
+		public final AsyncMailSender.OverflowPolicy OVERFLOW_POLICY = AsyncMailSender.OverflowPolicy.BLOCK;
+	}
+
+	public static enum Priority {
+		HIGH,
+		NORMAL,
+		/** bulk mail, which goes to the bulk lane even when it is small */
+		LOW
+	}
+
+	public static enum Lane {
+		EXPRESS,
+		BULK
+	}
+
+	private final PooledMailSender sender;
+	private final int expressWorkers;
+	private final long smallMessageBytes;
+	/**
+	 * Guarded by {@link #lock}.
+	 */
+	private final Map<Lane, PriorityQueue<Task>> queues = new EnumMap<>(Lane.class);
+	private final Map<Lane, Semaphore> capacity = new EnumMap<>(Lane.class);
+	private final Map<Lane, LatencyStats> queueWait = new EnumMap<>(Lane.class),
+			sendLatency = new EnumMap<>(Lane.class);
+	private final AtomicLong sequence = new AtomicLong();
+
+	/**
+	 * @param sender a connected sender with a connection for each of the default workers
+	 */
+	public OutboundScheduler(final PooledMailSender sender) {
+		this(sender, Defaults.EXPRESS_WORKERS, Defaults.SHARED_WORKERS, Defaults.SMALL_MESSAGE_BYTES,
+				Defaults.CAPACITY, Defaults.OVERFLOW_POLICY,
+				ExecutionMode.DEFAULT.newThreadFactory("OutboundScheduler worker"));
+	}
+
+	/**
+	 * @param sender            a connected sender whose pool has a connection for every worker
+	 * @param expressWorkers    the workers that only send express messages
+	 * @param sharedWorkers     the workers that send bulk messages and express messages when there is no bulk message
+	 * @param smallMessageBytes the estimated size up to which messages go to the express lane
+	 * @param capacity          the number of messages that may wait in each lane
+	 * @param threadFactory     creates the worker threads, see {@link ExecutionMode}
+	 */
+	public OutboundScheduler(final PooledMailSender sender, final int expressWorkers, final int sharedWorkers,
+							 final long smallMessageBytes, final int capacity,
+							 final AsyncMailSender.OverflowPolicy overflowPolicy, final ThreadFactory threadFactory) {
+		super("OutboundScheduler", overflowPolicy);
+		if (sender == null)
+			throw new IllegalArgumentException("sender must not be null");
+		this.sender = sender;
+		if (expressWorkers < 1 || sharedWorkers < 1)
+			throw new IllegalArgumentException("there must be at least one express and one shared worker");
+		this.expressWorkers = expressWorkers;
+		if (expressWorkers + sharedWorkers > sender.getPoolSize())
+			throw new IllegalArgumentException("the sender's pool of " + sender.getPoolSize()
+					+ " connections is too small for " + (expressWorkers + sharedWorkers) + " workers");
+		if (smallMessageBytes < 0)
+			throw new IllegalArgumentException("smallMessageBytes must not be negative");
+		this.smallMessageBytes = smallMessageBytes;
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity must be greater than zero");
+		for (Lane lane : Lane.values()) {
+			queues.put(lane, new PriorityQueue<Task>());
+			this.capacity.put(lane, new Semaphore(capacity));
+			queueWait.put(lane, new LatencyStats());
+			sendLatency.put(lane, new LatencyStats());
+		}
+		start(expressWorkers + sharedWorkers, threadFactory);
+	}
+
+	/**
+	 * @see MailSender#sendMail(String, String, String)
+	 * @throws RejectedExecutionException if the lane is full and the policy is
+	 *                                    {@link AsyncMailSender.OverflowPolicy#FAIL_FAST}, or after {@link #shutdown()}
+	 * @throws InterruptedException       if interrupted while waiting for room in the lane
+	 */
+	public CompletableFuture<Void> sendMail(final Priority priority, final String recipientsAddresslist,
+											final String subject, final String text)
+			throws MessagingException, InterruptedException {
+		return sendMail(priority, recipientsAddresslist, subject, MailSender.createBodyPart(text));
+	}
+
+	/**
+	 * @see MailSender#sendMail(String, String, BodyPart...)
+	 * @throws RejectedExecutionException if the lane is full and the policy is
+	 *                                    {@link AsyncMailSender.OverflowPolicy#FAIL_FAST}, or after {@link #shutdown()}
+	 * @throws InterruptedException       if interrupted while waiting for room in the lane
+	 */
+	public CompletableFuture<Void> sendMail(final Priority priority, final String recipientsAddresslist,
+											final String subject, final BodyPart... bodyParts)
+			throws MessagingException, InterruptedException {
+		if (priority == null)
+			throw new IllegalArgumentException("priority must not be null");
+		final Lane lane = laneOf(priority, estimateSize(bodyParts));
+		return submit(new Task(lane, priority, sequence.getAndIncrement(), capacity.get(lane),
+				() -> sender.sendMail(recipientsAddresslist, subject, bodyParts)));
+	}
+
+	/**
+	 * @return the lane of a message with the priority and estimated size
+	 */
+	public Lane laneOf(final Priority priority, final long estimatedBytes) {
+		if (priority == Priority.HIGH)
+			return Lane.EXPRESS;
+		if (priority == Priority.LOW)
+			return Lane.BULK;
+		return estimatedBytes <= smallMessageBytes ? Lane.EXPRESS : Lane.BULK;
+	}
+
+	/**
+	 * Estimates the size of the body parts without encoding them: files attached with
+	 * {@link MailSender#createBodyPart(java.io.File)} count with their length, text with its length, other parts with
+	 * their known size or not at all.
+	 * @return the estimated size in bytes before the content transfer encoding
+	 */
+	public static long estimateSize(final BodyPart... bodyParts) throws MessagingException {
+		long size = 0;
+		for (BodyPart part : bodyParts) {
+			final DataHandler handler = part.getDataHandler();
+			final DataSource source = handler == null ? null : handler.getDataSource();
+			if (source instanceof FileDataSource) {
+				size += ((FileDataSource) source).getFile().length();
+				continue;
+			}
+			final int known = part.getSize();
+			if (known >= 0) {
+				size += known;
+				continue;
+			}
+			try {
+				final Object content = part.getContent();
+				if (content instanceof String)
+					size += ((String) content).length();
+			} catch (IOException e) {
+				// unknown size
+			}
+		}
+		return size;
+	}
+
+	@Override
+	protected void add(final Task task) {
+		queues.get(task.lane).add(task);
+	}
+
+	/**
+	 * Reserved workers take express messages only, shared ones bulk messages first.
+	 */
+	@Override
+	protected Task poll(final int worker) {
+		final Task task = worker < expressWorkers ? null : queues.get(Lane.BULK).poll();
+		return task != null ? task : queues.get(Lane.EXPRESS).poll();
+	}
+
+	@Override
+	protected Collection<Task> drain() {
+		final List<Task> drained = new ArrayList<>();
+		for (PriorityQueue<Task> queue : queues.values()) {
+			drained.addAll(queue);
+			queue.clear();
+		}
+		return drained;
+	}
+
+	@Override
+	protected LatencyStats queueWait(final Task task) {
+		return queueWait.get(task.lane);
+	}
+
+	@Override
+	protected LatencyStats sendLatency(final Task task) {
+		return sendLatency.get(task.lane);
+	}
+
+	/**
+	 * @return the number of messages waiting in the lane
+	 */
+	public int getQueueDepth(final Lane lane) {
+		lock.lock();
+		try {
+			return queues.get(lane).size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return how long messages of the lane waited before a worker took them
+	 */
+	public LatencyStats getQueueWait(final Lane lane) {
+		return queueWait.get(lane);
+	}
+
+	/**
+	 * @return how long sending a message of the lane took, for the messages sent successfully
+	 */
+	public LatencyStats getSendLatency(final Lane lane) {
+		return sendLatency.get(lane);
+	}
+
+	@Override
+	public String toString() {
+		return "OutboundScheduler{" +
+				"workers=" + getWorkers() +
+				", expressWorkers=" + expressWorkers +
+				", smallMessageBytes=" + smallMessageBytes +
+				", sent=" + getSent() +
+				", failed=" + getFailed() +
+				", rejected=" + getRejected() +
+				", queueWait=" + queueWait +
+				", sendLatency=" + sendLatency +
+				'}';
+	}
+
+	static class Task extends MailQueue.Task implements Comparable<Task> {
+		private final Lane lane;
+		private final Priority priority;
+		private final long sequence;
+
+		private Task(final Lane lane, final Priority priority, final long sequence, final Semaphore room,
+					 final Delivery delivery) {
+			super(delivery, room, lane + " lane");
+			this.lane = lane;
+			this.priority = priority;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(final Task o) {
+			final int byPriority = priority.compareTo(o.priority);
+			return byPriority != 0 ? byPriority : Long.compare(sequence, o.sequence);
+		}
+	}
+}
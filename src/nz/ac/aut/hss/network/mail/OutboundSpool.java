@@ -0,0 +1,876 @@
+package nz.ac.aut.hss.network.mail;
+
+import com.sun.istack.internal.Nullable;
+import nz.ac.aut.hss.network.LatencyStats;
+
+import javax.mail.Address;
+import javax.mail.BodyPart;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * A durable outbound queue: messages are appended to segment files in a directory and delivered by background
+ * workers through a {@link MailSender}, so a message accepted by {@link #spool(MimeMessage)} survives a crash and is
+ * delivered at least once, and a burst of messages waits on disk instead of in the heap.
+ * <p>
+ * Each record is the MIME message with its id, length and CRC; {@link #spool(MimeMessage)} returns once the record is
+ * on disk, and threads spooling concurrently share one <code>fsync</code>. Delivered ids are appended to an ack log,
+ * a segment is deleted once all of its messages are acknowledged and the ack log is rewritten when it has doubled.
+ * When the spool is opened, a torn record at the end of a segment is cut off and every message that is not in the ack
+ * log is delivered again, so the receiver may see a message twice (with the same Message-ID) after a crash.
+ * <p>
+ * A failed delivery is retried with exponential backoff, without blocking the other messages; a message the server
+ * rejects, or that fails {@link Defaults#MAX_ATTEMPTS} times, is moved to the <code>failed</code> subdirectory.
+ * Errors reading the spool or writing to that directory are retried with the same backoff and counted in
+ * {@link #getIoErrors()}.
+ * With more than one worker the sender has to be a {@link PooledMailSender}. A worker that is interrupted stops and
+ * leaves its message to the others; once none is left, {@link #spool(MimeMessage)} refuses messages.
+ */
+public class OutboundSpool implements Closeable {
+	public static interface Defaults {
+		public final int WORKERS = TransportPool.Defaults.SIZE;
+		public final long SEGMENT_BYTES = 64 << 20;
+		public final int MAX_ATTEMPTS = 8;
+		public final long RETRY_MIN_DELAY_MILLIS = 1000;
+		public final long RETRY_MAX_DELAY_MILLIS = 300000;
+		/**
+		 * The size of the ack log above which it is rewritten with the ids of the remaining segments only, once it is
+		 * also twice as large as after the last rewrite.
+		 */
+		public final long ACK_LOG_COMPACT_BYTES = 1 << 20;
+	}
+
+	private static final String SEGMENT_SUFFIX = ".seg", ACK_LOG = "acks.log", FAILED = "failed";
+	/**
+	 * length, CRC32 of the message, id
+	 */
+	private static final int HEADER_BYTES = 4 + 4 + 8;
+
+	private final Path directory;
+	private final MailSender sender;
+	private final long segmentBytes;
+	/**
+	 * All segments that still contain unacknowledged messages, and the one being appended to, by their first id.
+	 */
+	private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+	private final List<Thread> workers;
+	private final AtomicInteger running = new AtomicInteger();
+
+	/**
+	 * Guards appending to {@link #active} and the ids.
+	 */
+	private final ReentrantLock appendLock = new ReentrantLock();
+	private Segment active;
+	private long nextId;
+	/**
+	 * Guards <code>fsync</code>; the thread holding it makes everything appended so far durable.
+	 */
+	private final ReentrantLock syncLock = new ReentrantLock();
+	private volatile long durableId;
+
+	/**
+	 * Guards the read position, workers wait on {@link #appended} when they have caught up with the writers.
+	 * May be held when taking the ack lock, not the other way round.
+	 */
+	private final ReentrantLock readLock = new ReentrantLock();
+	private final Condition appended = readLock.newCondition();
+	private Segment readSegment;
+	private long readPosition;
+
+	/**
+	 * Guards the ack log and the acknowledged ids of the segments.
+	 */
+	private final ReentrantLock ackLock = new ReentrantLock();
+	private FileChannel ackLog;
+	private final ByteBuffer ackBuffer = ByteBuffer.allocate(8);
+	/**
+	 * The size of the ack log after it was last rewritten.
+	 */
+	private long compactedAckLogBytes;
+
+	private final DelayQueue<Record> retries = new DelayQueue<>();
+	private final LatencyStats sendLatency = new LatencyStats();
+	private final AtomicLong spooled = new AtomicLong(), delivered = new AtomicLong(), retried = new AtomicLong(),
+			failed = new AtomicLong(), syncs = new AtomicLong(), ioErrors = new AtomicLong();
+	private volatile boolean closed;
+
+	/**
+	 * Opens or creates the spool and starts delivering the messages left in it.
+	 * @param sender a connected sender
+	 */
+	public OutboundSpool(final Path directory, final MailSender sender) throws IOException {
+		this(directory, sender, sender instanceof PooledMailSender ? Defaults.WORKERS : 1, Defaults.SEGMENT_BYTES,
+				ExecutionMode.DEFAULT.newThreadFactory("OutboundSpool worker"));
+	}
+
+	/**
+	 * Opens or creates the spool and starts delivering the messages left in it.
+	 * @param sender        a connected sender
+	 * @param workers       the number of threads delivering concurrently
+	 * @param segmentBytes  the size at which a new segment file is started
+	 * @param threadFactory creates the worker threads, see {@link ExecutionMode}
+	 */
+	public OutboundSpool(final Path directory, final MailSender sender, final int workers, final long segmentBytes,
+						 final ThreadFactory threadFactory) throws IOException {
+		if (directory == null)
+			throw new IllegalArgumentException("directory must not be null");
+		this.directory = directory;
+		if (sender == null)
+			throw new IllegalArgumentException("sender must not be null");
+		this.sender = sender;
+		if (workers < 1)
+			throw new IllegalArgumentException("workers must be greater than zero");
+		if (workers > 1 && !(sender instanceof PooledMailSender))
+			throw new IllegalArgumentException("a MailSender cannot be used by several workers, use a PooledMailSender");
+		if (segmentBytes < HEADER_BYTES)
+			throw new IllegalArgumentException("segmentBytes must be at least " + HEADER_BYTES);
+		this.segmentBytes = segmentBytes;
+		if (threadFactory == null)
+			throw new IllegalArgumentException("threadFactory must not be null");
+
+		Files.createDirectories(directory.resolve(FAILED));
+		recover();
+		this.workers = new ArrayList<>(workers);
+		running.set(workers);
+		for (int i = 0; i < workers; i++) {
+			final Thread worker = threadFactory.newThread(this::work);
+			this.workers.add(worker);
+			worker.start();
+		}
+	}
+
+	/**
+	 * Reads the segments and the ack log, cuts off torn records and positions the workers at the first message.
+	 */
+	private void recover() throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+			for (Path file : files) {
+				final String name = file.getFileName().toString();
+				final long firstId = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+				segments.put(firstId, new Segment(file, firstId));
+			}
+		}
+		try {
+			for (Segment segment : segments.values()) {
+				segment.scan();
+				segment.sealed = segment != segments.lastEntry().getValue();
+			}
+			if (segments.isEmpty())
+				segments.put(0L, new Segment(segmentPath(0), 0));
+			active = segments.lastEntry().getValue();
+			nextId = active.firstId + active.records;
+			durableId = nextId - 1;
+
+			ackLog = FileChannel.open(directory.resolve(ACK_LOG), StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+			final ByteBuffer ids = ByteBuffer.allocate((int) (ackLog.size() / 8 * 8));
+			while (ids.hasRemaining())
+				if (ackLog.read(ids) < 0)
+					break;
+			ids.flip();
+			while (ids.remaining() >= 8)
+				markAcknowledged(ids.getLong());
+			ackLog.truncate(ids.limit()); // a torn id
+			ackLog.position(ids.limit());
+			for (Segment segment : new ArrayList<>(segments.values()))
+				deleteIfDone(segment);
+			compactAckLog();
+		} catch (IOException | RuntimeException e) {
+			closeChannels();
+			throw e;
+		}
+		readSegment = segments.firstEntry().getValue();
+		readPosition = 0;
+	}
+
+	private Path segmentPath(final long firstId) {
+		return directory.resolve(String.format("%020d", firstId) + SEGMENT_SUFFIX);
+	}
+
+	/**
+	 * @see MailSender#sendMail(String, String, String)
+	 * @return the id of the spooled message
+	 */
+	public long spoolMail(final String recipientsAddresslist, final String subject, final String text)
+			throws IOException, MessagingException {
+		return spoolMail(recipientsAddresslist, subject, MailSender.createBodyPart(text));
+	}
+
+	/**
+	 * @see MailSender#sendMail(String, String, BodyPart...)
+	 * @return the id of the spooled message
+	 */
+	public long spoolMail(final String recipientsAddresslist, final String subject, final BodyPart... bodyParts)
+			throws IOException, MessagingException {
+		return spoolMail(MailSender.parseRecipients(recipientsAddresslist), subject, bodyParts);
+	}
+
+	/**
+	 * @see MailSender#sendMail(Address[], String, BodyPart...)
+	 * @return the id of the spooled message
+	 */
+	public long spoolMail(final Address[] recipients, final String subject, final BodyPart... bodyParts)
+			throws IOException, MessagingException {
+		return spool(sender.createMessage(recipients, subject, bodyParts));
+	}
+
+	/**
+	 * Appends the message to the spool and returns once it is on disk.
+	 * @return the id of the spooled message
+	 * @throws IllegalStateException if the spool is closed or all workers were interrupted, so nothing would deliver
+	 *                               the message until the spool is opened again
+	 */
+	public long spool(final MimeMessage message) throws IOException, MessagingException {
+		if (closed)
+			throw new IllegalStateException("OutboundSpool is closed");
+		if (running.get() == 0)
+			throw new IllegalStateException("OutboundSpool has no running workers");
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+		message.writeTo(bytes); // saves the changes, which assigns the Message-ID
+		final byte[] data = bytes.toByteArray();
+		final CRC32 crc = new CRC32();
+		crc.update(data);
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		header.putInt(data.length).putInt((int) crc.getValue());
+
+		final long id;
+		final Segment segment;
+		appendLock.lock();
+		try {
+			if (active.size > 0 && active.size + HEADER_BYTES + data.length > segmentBytes)
+				roll();
+			id = nextId;
+			segment = active;
+			header.putLong(id).flip();
+			segment.append(header, ByteBuffer.wrap(data));
+			nextId++; // only now, the ids in a segment have no gaps
+		} finally {
+			appendLock.unlock();
+		}
+		spooled.incrementAndGet();
+		readLock.lock();
+		try {
+			appended.signal();
+		} finally {
+			readLock.unlock();
+		}
+		sync(id);
+		return id;
+	}
+
+	/**
+	 * Seals the active segment and starts the next one. Called with the append lock held.
+	 */
+	private void roll() throws IOException {
+		active.channel.force(false);
+		syncs.incrementAndGet();
+		durableId = nextId - 1;
+		final Segment sealed = active;
+		active = new Segment(segmentPath(nextId), nextId);
+		segments.put(active.firstId, active);
+		sealed.sealed = true;
+		deleteIfDone(sealed);
+	}
+
+	/**
+	 * Waits until the message with the id is on disk; the first waiting thread syncs for all of them.
+	 */
+	private void sync(final long id) throws IOException {
+		if (durableId >= id)
+			return;
+		syncLock.lock();
+		try {
+			if (durableId >= id)
+				return;
+			final Segment segment;
+			final long lastId;
+			appendLock.lock();
+			try {
+				segment = active;
+				lastId = nextId - 1;
+			} finally {
+				appendLock.unlock();
+			}
+			segment.channel.force(false); // earlier segments were synced when they were sealed
+			syncs.incrementAndGet();
+			if (lastId > durableId)
+				durableId = lastId;
+		} finally {
+			syncLock.unlock();
+		}
+	}
+
+	private void work() {
+		try {
+			deliverAll();
+		} finally {
+			final int left = running.decrementAndGet();
+			if (!closed)
+				System.err.println(Thread.currentThread().getName() + " stopped, " + left + " workers left");
+		}
+	}
+
+	private void deliverAll() {
+		int readFailures = 0;
+		while (!closed) {
+			final Record record;
+			try {
+				final Record retry = retries.poll();
+				record = retry != null ? retry : next(100);
+				readFailures = 0;
+			} catch (InterruptedException e) {
+				return;
+			} catch (IOException e) {
+				ioErrors.incrementAndGet();
+				System.err.println(e.getClass().getName() + " while reading the spool: " + e.getMessage());
+				try {
+					backOff(retryDelayNanos(readFailures++)); // the read position is unchanged, read again then
+				} catch (InterruptedException interrupted) {
+					return;
+				}
+				continue;
+			}
+			if (record == null)
+				continue;
+			if (record.failure != null)
+				moveToFailed(record, record.failure);
+			else if (!deliver(record))
+				return;
+		}
+	}
+
+	/**
+	 * Waits for the delay or until the spool is closed.
+	 */
+	private void backOff(long nanos) throws InterruptedException {
+		readLock.lockInterruptibly();
+		try {
+			while (nanos > 0 && !closed)
+				nanos = appended.awaitNanos(nanos);
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	/**
+	 * @return the delay before the next attempt after the given number of failed ones
+	 */
+	private static long retryDelayNanos(final int attempts) {
+		return TimeUnit.MILLISECONDS.toNanos(Math.min(Defaults.RETRY_MAX_DELAY_MILLIS,
+				Defaults.RETRY_MIN_DELAY_MILLIS << Math.min(attempts, 30)));
+	}
+
+	/**
+	 * @return the next message nobody has taken yet or null if there is none within the timeout
+	 */
+	private Record next(final long timeoutMillis) throws InterruptedException, IOException {
+		long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		readLock.lockInterruptibly();
+		try {
+			while (true) {
+				final Segment segment = readSegment;
+				if (readPosition < segment.size) {
+					final ByteBuffer header = segment.read(readPosition, HEADER_BYTES);
+					final int length = header.getInt();
+					header.getInt();
+					final Record record = new Record(segment, readPosition, length, header.getLong());
+					readPosition += HEADER_BYTES + length;
+					if (!isAcknowledged(segment, record.id)) // already delivered before a restart
+						return record;
+				} else if (segment.sealed) {
+					readSegment = segments.higherEntry(segment.firstId).getValue();
+					readPosition = 0;
+				} else {
+					if (nanos <= 0 || closed)
+						return null;
+					nanos = appended.awaitNanos(nanos);
+				}
+			}
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	private boolean isAcknowledged(final Segment segment, final long id) {
+		ackLock.lock();
+		try {
+			return segment.isAcknowledged(id);
+		} finally {
+			ackLock.unlock();
+		}
+	}
+
+	/**
+	 * Sends the message and acknowledges it, or schedules a retry.
+	 * @return false if interrupted
+	 */
+	private boolean deliver(final Record record) {
+		final long start = System.nanoTime();
+		try {
+			sender.initSession();
+			final MimeMessage message = new MimeMessage(sender.session,
+					new SharedByteArrayInputStream(record.segment.readMessage(record)));
+			sender.send(message);
+			sendLatency.recordSince(start);
+			delivered.incrementAndGet();
+			acknowledge(record.id);
+		} catch (InterruptedException e) {
+			retries.add(record); // for the other workers, or delivered again after the next start
+			return false;
+		} catch (IOException | MessagingException | RuntimeException e) {
+			if (e instanceof IOException) // reading the message from the segment
+				ioErrors.incrementAndGet();
+			// rejected by the server unless deferred with a 4xx reply, retrying does not help then
+			final boolean rejected = e instanceof SendFailedException
+					&& !RelayRateLimiter.isTransient((SendFailedException) e);
+			if (rejected || record.attempts + 1 >= Defaults.MAX_ATTEMPTS) {
+				System.err.println("Giving up on spooled message " + record.id + ": " + e.getClass().getName() + ": "
+						+ e.getMessage());
+				moveToFailed(record, e);
+			} else {
+				retried.incrementAndGet();
+				retries.add(record.retry(retryDelayNanos(record.attempts)));
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Copies the message to the failed directory and acknowledges it; if that does not work, it is tried again later.
+	 */
+	private void moveToFailed(final Record record, final Exception cause) {
+		try {
+			Files.write(directory.resolve(FAILED).resolve(record.id + ".eml"), record.segment.readMessage(record));
+		} catch (IOException e) {
+			ioErrors.incrementAndGet();
+			System.err.println(e.getClass().getName() + " while moving message " + record.id + " to "
+					+ FAILED + ": " + e.getMessage());
+			retries.add(record.failed(cause, retryDelayNanos(record.attempts)));
+			return;
+		}
+		failed.incrementAndGet();
+		acknowledge(record.id);
+	}
+
+	private void acknowledge(final long id) {
+		ackLock.lock();
+		try {
+			ackBuffer.clear();
+			ackBuffer.putLong(id).flip();
+			while (ackBuffer.hasRemaining())
+				ackLog.write(ackBuffer);
+			final Segment segment = markAcknowledged(id);
+			if (segment != null)
+				deleteIfDone(segment);
+			final long size = ackLog.size();
+			if (size > Defaults.ACK_LOG_COMPACT_BYTES && size > 2 * compactedAckLogBytes)
+				compactAckLog();
+		} catch (IOException e) {
+			System.err.println(e.getClass().getName() + " while acknowledging message " + id + ": "
+					+ e.getMessage());
+		} finally {
+			ackLock.unlock();
+		}
+	}
+
+	/**
+	 * @return the segment of the id or null if it was deleted already
+	 */
+	private Segment markAcknowledged(final long id) {
+		final Map.Entry<Long, Segment> entry = segments.floorEntry(id);
+		if (entry == null || id - entry.getKey() >= entry.getValue().records)
+			return null;
+		entry.getValue().acknowledge(id);
+		return entry.getValue();
+	}
+
+	/**
+	 * Deletes a sealed segment whose messages are all acknowledged.
+	 */
+	private void deleteIfDone(final Segment segment) throws IOException {
+		ackLock.lock();
+		try {
+			if (!segment.sealed || segment.acknowledged < segment.records)
+				return;
+			segments.remove(segment.firstId, segment);
+			segment.channel.close();
+			Files.deleteIfExists(segment.path);
+		} finally {
+			ackLock.unlock();
+		}
+	}
+
+	/**
+	 * Rewrites the ack log with the acknowledged ids of the remaining segments.
+	 */
+	private void compactAckLog() throws IOException {
+		final Path log = directory.resolve(ACK_LOG), compacted = directory.resolve(ACK_LOG + ".tmp");
+		try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			final ByteBuffer buffer = ByteBuffer.allocate(8192);
+			for (Segment segment : segments.values())
+				for (int i = segment.acknowledgedIds.nextSetBit(0); i >= 0;
+					 i = segment.acknowledgedIds.nextSetBit(i + 1)) {
+					if (!buffer.hasRemaining()) {
+						buffer.flip();
+						while (buffer.hasRemaining())
+							out.write(buffer);
+						buffer.clear();
+					}
+					buffer.putLong(segment.firstId + i);
+				}
+			buffer.flip();
+			while (buffer.hasRemaining())
+				out.write(buffer);
+			out.force(false);
+		}
+		ackLog.close();
+		Files.move(compacted, log, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		ackLog = FileChannel.open(log, StandardOpenOption.WRITE);
+		compactedAckLogBytes = ackLog.size();
+		ackLog.position(compactedAckLogBytes);
+	}
+
+	/**
+	 * Stops the workers once their current message is sent and closes the files.
+	 * Messages not delivered yet stay in the spool and are delivered when it is opened again.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		readLock.lock();
+		try {
+			appended.signalAll(); // wakes workers backing off
+		} finally {
+			readLock.unlock();
+		}
+		try {
+			for (Thread worker : workers)
+				worker.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		appendLock.lock();
+		ackLock.lock();
+		try {
+			active.channel.force(false);
+			ackLog.force(false);
+		} finally {
+			closeChannels();
+			ackLock.unlock();
+			appendLock.unlock();
+		}
+	}
+
+	private void closeChannels() {
+		for (Segment segment : segments.values())
+			closeQuietly(segment.channel);
+		if (ackLog != null)
+			closeQuietly(ackLog);
+	}
+
+	private static void closeQuietly(final FileChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			System.err.println(e.getClass().getName() + " during close: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return the number of spooled messages not delivered or moved to failed yet
+	 */
+	public long getPending() {
+		ackLock.lock();
+		try {
+			long pending = 0;
+			for (Segment segment : segments.values())
+				pending += segment.records - segment.acknowledged;
+			return pending;
+		} finally {
+			ackLock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of workers delivering messages, less than started if some were interrupted
+	 */
+	public int getRunningWorkers() {
+		return running.get();
+	}
+
+	/**
+	 * @return the number of messages spooled since the spool was opened
+	 */
+	public long getSpooled() {
+		return spooled.get();
+	}
+
+	public long getDelivered() {
+		return delivered.get();
+	}
+
+	/**
+	 * @return the number of deliveries that failed and were scheduled again
+	 */
+	public long getRetried() {
+		return retried.get();
+	}
+
+	/**
+	 * @return the number of messages moved to the failed directory
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * @return the number of times reading the spool or writing to the failed directory did not work; the workers
+	 * keep trying, so a count that keeps growing means the disk needs attention
+	 */
+	public long getIoErrors() {
+		return ioErrors.get();
+	}
+
+	/**
+	 * @return the number of <code>fsync</code> calls, less than the spooled messages when threads spool concurrently
+	 */
+	public long getSyncs() {
+		return syncs.get();
+	}
+
+	public int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * @return how long sending a message took, for the messages delivered successfully
+	 */
+	public LatencyStats getSendLatency() {
+		return sendLatency;
+	}
+
+	@Override
+	public String toString() {
+		return "OutboundSpool{" +
+				"directory=" + directory +
+				", workers=" + workers.size() +
+				", running=" + running +
+				", segments=" + segments.size() +
+				", pending=" + getPending() +
+				", spooled=" + spooled +
+				", delivered=" + delivered +
+				", retried=" + retried +
+				", failed=" + failed +
+				", syncs=" + syncs +
+				", ioErrors=" + ioErrors +
+				", sendLatency=" + sendLatency +
+				'}';
+	}
+
+	/**
+	 * A segment file with consecutive ids starting at its first id.
+	 */
+	private static class Segment {
+		private final Path path;
+		private final long firstId;
+		private final FileChannel channel;
+		/**
+		 * Written by the appending thread, read by the workers.
+		 */
+		private volatile long size;
+		private volatile int records;
+		private volatile boolean sealed;
+		/**
+		 * Whether a failed append left bytes after the last record that could not be cut off; the next append tries
+		 * again. Guarded by the append lock.
+		 */
+		private boolean torn;
+		/**
+		 * Offsets of the acknowledged ids, guarded by the ack lock.
+		 */
+		private final BitSet acknowledgedIds = new BitSet();
+		private int acknowledged;
+
+		private Segment(final Path path, final long firstId) throws IOException {
+			this.path = path;
+			this.firstId = firstId;
+			this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+		}
+
+		/**
+		 * Counts the intact records and cuts the file off after the last one. Every segment but the last is sealed.
+		 */
+		private void scan() throws IOException {
+			final long fileSize = channel.size();
+			final CRC32 crc = new CRC32();
+			long position = 0;
+			int count = 0;
+			while (position + HEADER_BYTES <= fileSize) {
+				final ByteBuffer header = read(position, HEADER_BYTES);
+				final int length = header.getInt(), checksum = header.getInt();
+				final long id = header.getLong();
+				if (length < 0 || id != firstId + count || position + HEADER_BYTES + length > fileSize)
+					break;
+				crc.reset();
+				crc.update(read(position + HEADER_BYTES, length));
+				if ((int) crc.getValue() != checksum)
+					break;
+				position += HEADER_BYTES + length;
+				count++;
+			}
+			if (position < fileSize) {
+				System.err.println("Truncating " + path + " after " + count + " messages, " + (fileSize - position)
+						+ " bytes are incomplete");
+				channel.truncate(position);
+				channel.force(true);
+			}
+			size = position;
+			records = count;
+			channel.position(position);
+		}
+
+		/**
+		 * Appends a record. If that fails, the part written is cut off again, so the next record follows the last
+		 * complete one.
+		 */
+		private void append(final ByteBuffer header, final ByteBuffer data) throws IOException {
+			if (torn)
+				cutOff();
+			final ByteBuffer[] buffers = {header, data};
+			final long length = header.remaining() + data.remaining();
+			long written = 0;
+			try {
+				while (written < length)
+					written += channel.write(buffers);
+			} catch (IOException e) {
+				torn = true;
+				try {
+					cutOff();
+				} catch (IOException cutOffFailed) {
+					e.addSuppressed(cutOffFailed);
+				}
+				throw e;
+			}
+			records++;
+			size += length;
+		}
+
+		/**
+		 * Removes what a failed append left after the last record.
+		 */
+		private void cutOff() throws IOException {
+			channel.truncate(size);
+			channel.position(size);
+			torn = false;
+		}
+
+		private ByteBuffer read(final long position, final int length) throws IOException {
+			final ByteBuffer buffer = ByteBuffer.allocate(length);
+			while (buffer.hasRemaining())
+				if (channel.read(buffer, position + buffer.position()) < 0)
+					throw new EOFException(path + " ends at " + (position + buffer.position()));
+			buffer.flip();
+			return buffer;
+		}
+
+		private byte[] readMessage(final Record record) throws IOException {
+			return read(record.position + HEADER_BYTES, record.length).array();
+		}
+
+		private boolean isAcknowledged(final long id) {
+			return acknowledgedIds.get((int) (id - firstId));
+		}
+
+		private void acknowledge(final long id) {
+			final int offset = (int) (id - firstId);
+			if (!acknowledgedIds.get(offset)) {
+				acknowledgedIds.set(offset);
+				acknowledged++;
+			}
+		}
+	}
+
+	/**
+	 * The location of a message that is being delivered or waiting for a retry; the message itself stays on disk.
+	 */
+	private static class Record implements Delayed {
+		private final Segment segment;
+		private final long position;
+		private final int length;
+		private final long id;
+		private final int attempts;
+		private final long due;
+		/**
+		 * Why the message is given up on, if it could not be moved to the failed directory yet.
+		 */
+		@Nullable
+		private final Exception failure;
+
+		private Record(final Segment segment, final long position, final int length, final long id) {
+			this(segment, position, length, id, 0, System.nanoTime(), null);
+		}
+
+		private Record(final Segment segment, final long position, final int length, final long id,
+					   final int attempts, final long due, @Nullable final Exception failure) {
+			this.segment = segment;
+			this.position = position;
+			this.length = length;
+			this.id = id;
+			this.attempts = attempts;
+			this.due = due;
+			this.failure = failure;
+		}
+
+		private Record retry(final long delayNanos) {
+			return new Record(segment, position, length, id, attempts + 1, System.nanoTime() + delayNanos, null);
+		}
+
+		/**
+		 * @return this record, to be moved to the failed directory again after the delay
+		 */
+		private Record failed(final Exception failure, final long delayNanos) {
+			return new Record(segment, position, length, id, attempts + 1, System.nanoTime() + delayNanos, failure);
+		}
+
+		@Override
+		public long getDelay(final TimeUnit unit) {
+			return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public int compareTo(final Delayed o) {
+			return Long.compare(due, ((Record) o).due);
+		}
+	}
+}
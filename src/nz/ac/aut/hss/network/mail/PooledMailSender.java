@@ -0,0 +1,154 @@
+package nz.ac.aut.hss.network.mail;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Transport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@link MailSender} which can be used by many threads at once: every message is sent over a connection borrowed
+ * from a {@link TransportPool}, so N threads send over up to N connections concurrently and each connection is
+ * authenticated and TLS-negotiated only once.
+ * If a pooled connection turns out to be dead while sending, the message is sent again once over a new connection.
+ */
+public class PooledMailSender extends MailSender {
+	private final int poolSize;
+	private final long idleTimeoutMillis;
+	private volatile TransportPool pool;
+	/**
+	 * Guards connecting and disconnecting; not a monitor, so that a virtual thread connecting does not pin its carrier.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	public PooledMailSender(final String host, final int port, final MailAuthenticator authenticator,
+							final String address, final String senderName) {
+		this(host, port, authenticator, address, senderName, TransportPool.Defaults.SIZE,
+				TransportPool.Defaults.IDLE_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 * @param poolSize          the maximum number of concurrent connections
+	 * @param idleTimeoutMillis how long a connection may be idle before it is closed
+	 */
+	public PooledMailSender(final String host, final int port, final MailAuthenticator authenticator,
+							final String address, final String senderName, final int poolSize,
+							final long idleTimeoutMillis) {
+		super(host, port, authenticator, address, senderName);
+		if (poolSize < 1)
+			throw new IllegalArgumentException("poolSize must be greater than zero");
+		this.poolSize = poolSize;
+		if (idleTimeoutMillis < 1)
+			throw new IllegalArgumentException("idleTimeoutMillis must be greater than zero");
+		this.idleTimeoutMillis = idleTimeoutMillis;
+	}
+
+	/**
+	 * Creates the pool and opens its first connection, so that wrong credentials are reported here.
+	 */
+	@Override
+	public void connect() throws ConnectionException {
+		lock.lock();
+		try {
+			initSession();
+			if (pool == null || pool.isClosed())
+				pool = new TransportPool(this::openTransport, poolSize, idleTimeoutMillis,
+						TransportPool.Defaults.BORROW_TIMEOUT_MILLIS);
+			pool.release(pool.borrow(), true);
+		} catch (MessagingException e) {
+			throw new ConnectionException(e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ConnectionException("Interrupted while connecting", e);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private Transport openTransport() throws MessagingException {
+		final Transport transport = session.getTransport("smtp");
+		connect(transport);
+		return transport;
+	}
+
+	/**
+	 * Closes the pool, messages being sent are finished first.
+	 */
+	@Override
+	public void disconnect() {
+		lock.lock();
+		try {
+			if (pool != null)
+				pool.close();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	protected boolean isConnected() {
+		final TransportPool pool = this.pool;
+		return pool != null && !pool.isClosed();
+	}
+
+	@Override
+	protected long sendMessage(final Message message, final Address[] recipients)
+			throws MessagingException, InterruptedException {
+		final TransportPool pool = this.pool;
+		if (pool == null)
+			throw new IllegalStateException("not connected");
+		Transport transport = pool.borrow();
+		// measured after borrowing, so that waiting for a connection does not count as relay latency
+		long start = System.nanoTime();
+		try {
+			transport.sendMessage(message, recipients);
+		} catch (SendFailedException e) { // rejected by the server, the connection is fine
+			pool.release(transport, true);
+			throw e;
+		} catch (MessagingException e) {
+			final boolean dead = !transport.isConnected();
+			pool.release(transport, false);
+			if (!dead)
+				throw e;
+			// the server dropped the connection before accepting the message, send it once more on a fresh one
+			transport = pool.borrow();
+			start = System.nanoTime();
+			try {
+				transport.sendMessage(message, recipients);
+			} catch (MessagingException | RuntimeException retryFailure) {
+				pool.release(transport, retryFailure instanceof SendFailedException);
+				throw retryFailure;
+			}
+		} catch (RuntimeException e) {
+			pool.release(transport, false);
+			throw e;
+		}
+		final long latencyNanos = System.nanoTime() - start;
+		pool.release(transport, true);
+		return latencyNanos;
+	}
+
+	/**
+	 * @return the maximum number of concurrent connections
+	 */
+	public int getPoolSize() {
+		return poolSize;
+	}
+
+	/**
+	 * @return the pool or null if not connected yet
+	 */
+	public TransportPool getPool() {
+		return pool;
+	}
+
+	@Override
+	public String toString() {
+		return "PooledMailSender{" +
+				"poolSize=" + poolSize +
+				", idleTimeoutMillis=" + idleTimeoutMillis +
+				", pool=" + pool +
+				'}';
+	}
+}
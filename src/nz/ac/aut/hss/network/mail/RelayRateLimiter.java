@@ -0,0 +1,326 @@
+package nz.ac.aut.hss.network.mail;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPSenderFailedException;
+import nz.ac.aut.hss.network.LatencyStats;
+
+import javax.mail.MessagingException;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Paces the messages sent to one relay and learns the rate the relay sustains: a token bucket lets messages through
+ * at the current target rate, which grows additively while sends succeed at that rate and is cut by 30% when the relay
+ * defers a message with a 4xx reply (421, 450, 451, 452) or when its response time climbs to twice its usual one
+ * (additive increase, multiplicative decrease). Until the first decrease the rate doubles every second, so the
+ * sustainable rate is found quickly. Deferred messages are sent again after a jittered exponential
+ * backoff. The target and the achieved rate can be compared to see whether the relay or the callers are the limit.
+ * <p>
+ * Set it on a {@link MailSender} with {@link MailSender#setRateLimiter(RelayRateLimiter)}; senders talking to the
+ * same relay should share one limiter.
+ */
+public class RelayRateLimiter {
+	public static interface Defaults {
+		public final double INITIAL_RATE = 10;
+		public final double MIN_RATE = 0.5;
+		public final double MAX_RATE = 10000;
+		/**
+		 * Messages per second the rate grows by per second of sending at the target rate.
+		 */
+		public final double ADDITIVE_INCREASE = 2;
+		public final double MULTIPLICATIVE_DECREASE = 0.7;
+		/**
+		 * How many seconds of the target rate may be sent at once after an idle period.
+		 */
+		public final double BURST_SECONDS = 0.1;
+		/**
+		 * The minimum time between two decreases, so that a burst of deferrals counts once.
+		 */
+		public final long DECREASE_INTERVAL_MILLIS = 1000;
+		/**
+		 * The ratio of the smoothed to the usual response time at which the relay counts as overloaded.
+		 */
+		public final double LATENCY_THRESHOLD = 2;
+		/**
+		 * How much the smoothed response time has to exceed the usual one as well, so that jitter in fast responses
+		 * does not count.
+		 */
+		public final long LATENCY_MIN_INCREASE_MILLIS = 50;
+		public final int MAX_ATTEMPTS = 6;
+		public final long RETRY_MIN_DELAY_MILLIS = 200;
+		public final long RETRY_MAX_DELAY_MILLIS = 30000;
+	}
+
+	/**
+	 * Sends one message.
+	 */
+	public static interface Send {
+		/**
+		 * @return how long the relay took to accept the message in nanoseconds, without any time spent waiting for a
+		 * connection, which would make a busy connection pool look like a slow relay
+		 */
+		long send() throws MessagingException, InterruptedException;
+	}
+
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1),
+			LATENCY_MIN_INCREASE = TimeUnit.MILLISECONDS.toNanos(Defaults.LATENCY_MIN_INCREASE_MILLIS);
+
+	private final String relay;
+	private final double minRate, maxRate;
+	/**
+	 * Guards the bucket and the rate estimation; not a monitor, so waiting virtual threads do not pin a carrier.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+	private double rate;
+	/**
+	 * May be negative: the tokens reserved by callers waiting for their turn.
+	 */
+	private double tokens;
+	private long lastRefill = System.nanoTime();
+	private long lastDecrease;
+	private boolean slowStart = true;
+	private double smoothedLatency, usualLatency;
+	private long windowStart = System.nanoTime();
+	private int windowCount;
+	private volatile double achievedRate;
+
+	private final LatencyStats latency = new LatencyStats();
+	private final AtomicLong sent = new AtomicLong(), deferred = new AtomicLong(), retries = new AtomicLong(),
+			decreases = new AtomicLong();
+
+	/**
+	 * @param relay the name of the relay, e.g. host:port, for reporting
+	 */
+	public RelayRateLimiter(final String relay) {
+		this(relay, Defaults.INITIAL_RATE, Defaults.MIN_RATE, Defaults.MAX_RATE);
+	}
+
+	/**
+	 * @param relay       the name of the relay, e.g. host:port, for reporting
+	 * @param initialRate the messages per second to start with
+	 */
+	public RelayRateLimiter(final String relay, final double initialRate, final double minRate,
+							final double maxRate) {
+		if (relay == null)
+			throw new IllegalArgumentException("relay must not be null");
+		this.relay = relay;
+		if (!(minRate > 0) || maxRate < minRate || initialRate < minRate || initialRate > maxRate)
+			throw new IllegalArgumentException("invalid rates: " + initialRate + " in [" + minRate + ", " + maxRate
+					+ "]");
+		this.minRate = minRate;
+		this.maxRate = maxRate;
+		this.rate = initialRate;
+		this.tokens = capacity();
+		this.lastDecrease = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(Defaults.DECREASE_INTERVAL_MILLIS);
+	}
+
+	/**
+	 * Sends the message at the pace of the relay; a deferred message is sent again after a backoff.
+	 * @throws MessagingException the last deferral after {@link Defaults#MAX_ATTEMPTS} attempts, or any other failure
+	 */
+	public void send(final Send send) throws MessagingException, InterruptedException {
+		for (int attempt = 1; ; attempt++) {
+			acquire();
+			final long latencyNanos;
+			try {
+				latencyNanos = send.send();
+			} catch (MessagingException e) {
+				if (!isTransient(e))
+					throw e;
+				deferred.incrementAndGet();
+				decrease();
+				if (attempt >= Defaults.MAX_ATTEMPTS)
+					throw e;
+				retries.incrementAndGet();
+				Thread.sleep(backoffMillis(attempt));
+				continue;
+			}
+			succeeded(latencyNanos);
+			return;
+		}
+	}
+
+	/**
+	 * @return a random delay between half and all of the exponential backoff of the attempt, so that deferred senders
+	 * do not come back at the same time
+	 */
+	private static long backoffMillis(final int attempt) {
+		final long ceiling = Math.min(Defaults.RETRY_MAX_DELAY_MILLIS,
+				Defaults.RETRY_MIN_DELAY_MILLIS << Math.min(attempt - 1, 30));
+		return ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1);
+	}
+
+	/**
+	 * Waits for a token. Tokens are reserved in order, so callers are paced evenly at the target rate.
+	 */
+	private void acquire() throws InterruptedException {
+		final long waitNanos;
+		lock.lock();
+		try {
+			refill(System.nanoTime());
+			tokens--;
+			waitNanos = tokens >= 0 ? 0 : (long) (-tokens / rate * SECOND);
+		} finally {
+			lock.unlock();
+		}
+		if (waitNanos > 0)
+			TimeUnit.NANOSECONDS.sleep(waitNanos);
+	}
+
+	private void refill(final long now) {
+		tokens = Math.min(capacity(), tokens + (now - lastRefill) * rate / SECOND);
+		lastRefill = now;
+	}
+
+	private double capacity() {
+		return Math.max(1, rate * Defaults.BURST_SECONDS);
+	}
+
+	private void succeeded(final long latencyNanos) {
+		latency.record(latencyNanos);
+		sent.incrementAndGet();
+		lock.lock();
+		try {
+			final long now = System.nanoTime();
+			windowCount++;
+			if (now - windowStart >= SECOND) {
+				achievedRate = windowCount * (double) SECOND / Math.max(1, now - windowStart);
+				windowStart = now;
+				windowCount = 0;
+			}
+			if (usualLatency == 0) {
+				usualLatency = smoothedLatency = latencyNanos;
+			} else {
+				smoothedLatency += (latencyNanos - smoothedLatency) / 8;
+				// follows lower response times at once and higher ones slowly, so that queueing at the relay shows
+				usualLatency = latencyNanos < usualLatency ? latencyNanos
+						: usualLatency + (latencyNanos - usualLatency) / 1000;
+			}
+			if (smoothedLatency > usualLatency * Defaults.LATENCY_THRESHOLD
+					&& smoothedLatency - usualLatency > LATENCY_MIN_INCREASE) {
+				decreaseLocked(now);
+			} else {
+				refill(now);
+				if (tokens < 1) // only grow while the callers use up the rate
+					setRate(rate + (slowStart ? 1 : Defaults.ADDITIVE_INCREASE / Math.max(1, rate)));
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void decrease() {
+		lock.lock();
+		try {
+			decreaseLocked(System.nanoTime());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void decreaseLocked(final long now) {
+		if (now - lastDecrease < TimeUnit.MILLISECONDS.toNanos(Defaults.DECREASE_INTERVAL_MILLIS))
+			return;
+		lastDecrease = now;
+		slowStart = false;
+		decreases.incrementAndGet();
+		refill(now);
+		setRate(rate * Defaults.MULTIPLICATIVE_DECREASE);
+		smoothedLatency = usualLatency;
+		if (tokens > 0)
+			tokens = 0;
+	}
+
+	private void setRate(final double rate) {
+		this.rate = Math.max(minRate, Math.min(maxRate, rate));
+		tokens = Math.min(tokens, capacity());
+	}
+
+	/**
+	 * @return the SMTP reply code of the failure or -1 if it has none
+	 */
+	public static int replyCode(final MessagingException e) {
+		for (Exception cause = e; cause instanceof MessagingException;
+			 cause = ((MessagingException) cause).getNextException()) {
+			if (cause instanceof SMTPSendFailedException)
+				return ((SMTPSendFailedException) cause).getReturnCode();
+			if (cause instanceof SMTPSenderFailedException)
+				return ((SMTPSenderFailedException) cause).getReturnCode();
+			if (cause instanceof SMTPAddressFailedException)
+				return ((SMTPAddressFailedException) cause).getReturnCode();
+		}
+		return -1;
+	}
+
+	/**
+	 * @return whether the relay deferred the message (a 4xx reply), so sending it later may succeed
+	 */
+	public static boolean isTransient(final MessagingException e) {
+		final int code = replyCode(e);
+		return code >= 400 && code < 500;
+	}
+
+	/**
+	 * @return the rate in messages per second messages are currently paced at
+	 */
+	public double getTargetRate() {
+		lock.lock();
+		try {
+			return rate;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the messages per second sent successfully, measured over the last second in which messages were sent
+	 */
+	public double getAchievedRate() {
+		return achievedRate;
+	}
+
+	/**
+	 * @return how long the relay took to accept a message, for the messages sent successfully
+	 */
+	public LatencyStats getLatency() {
+		return latency;
+	}
+
+	public long getSent() {
+		return sent.get();
+	}
+
+	/**
+	 * @return the number of 4xx replies
+	 */
+	public long getDeferred() {
+		return deferred.get();
+	}
+
+	public long getRetries() {
+		return retries.get();
+	}
+
+	/**
+	 * @return how often the rate was decreased, because of deferrals or rising response times
+	 */
+	public long getDecreases() {
+		return decreases.get();
+	}
+
+	public String getRelay() {
+		return relay;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.ENGLISH,
+				"RelayRateLimiter{relay='%s', targetRate=%.1f, achievedRate=%.1f, sent=%d, deferred=%d, retries=%d, "
+						+ "decreases=%d, latency=%s}", relay, getTargetRate(), achievedRate, sent.get(), deferred.get(),
+				retries.get(), decreases.get(), latency);
+	}
+}
@@ -0,0 +1,218 @@
+package nz.ac.aut.hss.network.mail;
+
+import com.sun.istack.internal.Nullable;
+import nz.ac.aut.hss.network.LatencyStats;
+
+import javax.activation.DataHandler;
+import javax.mail.BodyPart;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeBodyPart;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Signs XML documents and mails them as attachments without writing them to disk. Signing and sending are two stages:
+ * signing threads sign each document straight into a {@link ChunkedDataSource}, which becomes the attachment, and
+ * hand the message to an {@link AsyncMailSender}, whose workers send it while the signing threads go on with the next
+ * documents. Callers can submit documents from any number of threads; at most a bounded number of signed documents is
+ * held in memory, further submits wait until one of them has been sent.
+ * <p>
+ * The sender belongs to the caller and may be shared with others; the pipeline never shuts it down.
+ */
+public class SignAndSendPipeline {
+	public static interface Defaults {
+		public final int SIGNING_THREADS = Runtime.getRuntime().availableProcessors();
+		/**
+		 * Number of documents that may be signed or waiting to be sent per signing thread before submitting blocks.
+		 */
+		public final int IN_FLIGHT_PER_THREAD = 4;
+		public final String CONTENT_TYPE = "text/xml; charset=UTF-8";
+	}
+
+	private final XMLSignerVerifier signer;
+	private final AsyncMailSender sender;
+	private final ExecutorService signers;
+	private final int maxInFlight;
+	private final Semaphore inFlight;
+	private final LatencyStats signLatency = new LatencyStats();
+	private final AtomicLong submitted = new AtomicLong(), sent = new AtomicLong(), failed = new AtomicLong(),
+			signedBytes = new AtomicLong();
+	private volatile boolean shutdown;
+
+	/**
+	 * @param sender the sending stage, which has to be running until the pipeline has terminated
+	 */
+	public SignAndSendPipeline(final XMLSignerVerifier signer, final AsyncMailSender sender) {
+		this(signer, sender, Defaults.SIGNING_THREADS, Defaults.SIGNING_THREADS * Defaults.IN_FLIGHT_PER_THREAD);
+	}
+
+	/**
+	 * @param sender         the sending stage, which has to be running until the pipeline has terminated
+	 * @param signingThreads the number of documents signed concurrently
+	 * @param maxInFlight    the number of documents that may be queued, signed or waiting to be sent at once
+	 */
+	public SignAndSendPipeline(final XMLSignerVerifier signer, final AsyncMailSender sender, final int signingThreads,
+							   final int maxInFlight) {
+		if (signer == null)
+			throw new IllegalArgumentException("signer must not be null");
+		this.signer = signer;
+		if (sender == null)
+			throw new IllegalArgumentException("sender must not be null");
+		this.sender = sender;
+		if (signingThreads < 1)
+			throw new IllegalArgumentException("signingThreads must be greater than zero");
+		if (maxInFlight < signingThreads)
+			throw new IllegalArgumentException("maxInFlight must not be less than signingThreads");
+		this.signers = Executors.newFixedThreadPool(signingThreads,
+				ExecutionMode.PLATFORM.newThreadFactory("SignAndSendPipeline signer"));
+		this.maxInFlight = maxInFlight;
+		this.inFlight = new Semaphore(maxInFlight);
+	}
+
+	/**
+	 * Signs the document and mails it as an attachment, with the text as the message body.
+	 * @param document read and closed by a signing thread
+	 * @param filename the name of the attachment
+	 * @return completes once the message was sent, or fails with the {@link SigningException} or
+	 * {@link MessagingException} that stopped it
+	 * @throws RejectedExecutionException after {@link #shutdown()}
+	 * @throws InterruptedException       if interrupted while waiting for room in the pipeline
+	 */
+	public CompletableFuture<Void> submit(final String recipientsAddresslist, final String subject,
+										  @Nullable final String text, final InputStream document,
+										  final String filename) throws InterruptedException {
+		if (document == null)
+			throw new IllegalArgumentException("document must not be null");
+		if (filename == null || filename.isEmpty())
+			throw new IllegalArgumentException("filename must not be null or empty");
+		if (shutdown)
+			throw new RejectedExecutionException("SignAndSendPipeline has been shut down");
+		inFlight.acquire();
+		submitted.incrementAndGet();
+		final CompletableFuture<Void> future;
+		try {
+			future = CompletableFuture.supplyAsync(() -> sign(document, filename), signers)
+					.thenCompose(attachment -> send(recipientsAddresslist, subject, text, attachment));
+		} catch (RejectedExecutionException e) {
+			inFlight.release();
+			throw e;
+		}
+		return future.whenComplete((result, error) -> {
+			(error == null ? sent : failed).incrementAndGet();
+			inFlight.release(); // after counting, so the counts are final once awaitTermination returns
+		});
+	}
+
+	/**
+	 * Signs the document into memory, on a signing thread.
+	 */
+	private BodyPart sign(final InputStream document, final String filename) {
+		final long start = System.nanoTime();
+		final ChunkedDataSource signed = new ChunkedDataSource(filename, Defaults.CONTENT_TYPE);
+		try (InputStream is = document; OutputStream os = signed.getOutputStream()) {
+			signer.signDocument(is, os);
+		} catch (IOException e) {
+			throw new CompletionException(new SigningException("IO exception with document: " + e, e));
+		} catch (SigningException e) {
+			throw new CompletionException(e);
+		}
+		signLatency.recordSince(start);
+		signedBytes.addAndGet(signed.getLength());
+		try {
+			final MimeBodyPart part = new MimeBodyPart();
+			part.setDataHandler(new DataHandler(signed));
+			part.setFileName(filename);
+			part.setHeader("Content-Transfer-Encoding", signed.getTextEncoding());
+			return part;
+		} catch (MessagingException e) {
+			throw new CompletionException(e);
+		}
+	}
+
+	/**
+	 * Queues the message for the sending stage, on a signing thread.
+	 */
+	private CompletableFuture<Void> send(final String recipientsAddresslist, final String subject,
+										 @Nullable final String text, final BodyPart attachment) {
+		try {
+			return text == null ? sender.sendMailAsync(recipientsAddresslist, subject, attachment)
+					: sender.sendMailAsync(recipientsAddresslist, subject, MailSender.createBodyPart(text), attachment);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CompletionException(e);
+		} catch (MessagingException e) {
+			throw new CompletionException(e);
+		}
+	}
+
+	/**
+	 * Signs and sends the documents submitted so far, then stops the signing threads. The sender is left running.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		signers.shutdown();
+	}
+
+	/**
+	 * Waits for the documents submitted before {@link #shutdown()} to be sent or to fail.
+	 * @return whether they all finished in time
+	 */
+	public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		if (!signers.awaitTermination(timeout, unit))
+			return false;
+		// every document holds a permit until it was sent or failed, and no new ones are submitted
+		if (!inFlight.tryAcquire(maxInFlight, Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS))
+			return false;
+		inFlight.release(maxInFlight);
+		return true;
+	}
+
+	/**
+	 * @return the number of documents submitted but not yet sent or failed
+	 */
+	public long getInFlight() {
+		return submitted.get() - sent.get() - failed.get();
+	}
+
+	public long getSubmitted() {
+		return submitted.get();
+	}
+
+	public long getSent() {
+		return sent.get();
+	}
+
+	public long getFailed() {
+		return failed.get();
+	}
+
+	public long getSignedBytes() {
+		return signedBytes.get();
+	}
+
+	public LatencyStats getSignLatency() {
+		return signLatency;
+	}
+
+	@Override
+	public String toString() {
+		return "SignAndSendPipeline{" +
+				"submitted=" + submitted +
+				", sent=" + sent +
+				", failed=" + failed +
+				", signedBytes=" + signedBytes +
+				", signLatency=" + signLatency +
+				", sender=" + sender +
+				'}';
+	}
+}
@@ -0,0 +1,135 @@
+package nz.ac.aut.hss.network.mail;
+
+import javax.xml.crypto.dsig.DigestMethod;
+import javax.xml.crypto.dsig.SignatureMethod;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.security.Signature;
+import java.security.spec.MGF1ParameterSpec;
+import java.security.spec.PSSParameterSpec;
+
+/**
+ * The signature and digest algorithms an XML signer can be configured with.
+ * EC and EdDSA signatures are much cheaper to create than RSA signatures and a fraction of their size. Whether an
+ * algorithm can be used depends on the XML signature provider of the running JVM, see {@link #isSupported}.
+ */
+public enum SignatureAlgorithm {
+	RSA_SHA1(SignatureMethod.RSA_SHA1, DigestMethod.SHA1, "SHA-1", "RSA", "SHA1withRSA"),
+	RSA_SHA256(SignatureMethod.RSA_SHA256, DigestMethod.SHA256, "SHA-256", "RSA", "SHA256withRSA"),
+	/** RSASSA-PSS with SHA-256 and MGF1 */
+	RSA_PSS_SHA256(SignatureMethod.SHA256_RSA_MGF1, DigestMethod.SHA256, "SHA-256", "RSA", "RSASSA-PSS"),
+	/** ECDSA on a NIST curve, usually P-256 */
+	ECDSA_SHA256(SignatureMethod.ECDSA_SHA256, DigestMethod.SHA256, "SHA-256", "EC", "SHA256withECDSA"),
+	ED25519("http://www.w3.org/2021/04/xmldsig-more#eddsa-ed25519", DigestMethod.SHA256, "SHA-256", "Ed25519",
+			"Ed25519");
+
+	private final String signatureUri;
+	private final String digestUri;
+	private final String digestAlgorithm;
+	private final String keyAlgorithm;
+	private final String jcaName;
+
+	SignatureAlgorithm(final String signatureUri, final String digestUri, final String digestAlgorithm,
+					   final String keyAlgorithm, final String jcaName) {
+		this.signatureUri = signatureUri;
+		this.digestUri = digestUri;
+		this.digestAlgorithm = digestAlgorithm;
+		this.keyAlgorithm = keyAlgorithm;
+		this.jcaName = jcaName;
+	}
+
+	/**
+	 * @return the URI of the signature method
+	 */
+	public String getSignatureUri() {
+		return signatureUri;
+	}
+
+	/**
+	 * @return the URI of the digest method used for the references
+	 */
+	public String getDigestUri() {
+		return digestUri;
+	}
+
+	/**
+	 * @return the JCA name of the reference digest, e.g. SHA-256
+	 */
+	public String getDigestAlgorithm() {
+		return digestAlgorithm;
+	}
+
+	/**
+	 * @return the JCA name of the key algorithm, e.g. EC
+	 */
+	public String getKeyAlgorithm() {
+		return keyAlgorithm;
+	}
+
+	/**
+	 * @return the JCA name of the signature algorithm, e.g. SHA256withECDSA
+	 */
+	public String getJcaName() {
+		return jcaName;
+	}
+
+	/**
+	 * @return an uninitialized {@link Signature} computing the same signatures as the XML signature method, for
+	 * signing raw data
+	 */
+	public Signature newSignature() throws NoSuchAlgorithmException {
+		final Signature signature = Signature.getInstance(jcaName);
+		if (this == RSA_PSS_SHA256) {
+			try { // the parameters of http://www.w3.org/2007/05/xmldsig-more#sha256-rsa-MGF1
+				signature.setParameter(new PSSParameterSpec("SHA-256", "MGF1", MGF1ParameterSpec.SHA256, 32, 1));
+			} catch (InvalidAlgorithmParameterException e) {
+				throw new NoSuchAlgorithmException("RSASSA-PSS with SHA-256 not supported: " + e, e);
+			}
+		}
+		return signature;
+	}
+
+	public SignatureMethod newSignatureMethod(final XMLSignatureFactory sigFactory)
+			throws NoSuchAlgorithmException, InvalidAlgorithmParameterException {
+		return sigFactory.newSignatureMethod(signatureUri, null);
+	}
+
+	public DigestMethod newDigestMethod(final XMLSignatureFactory sigFactory)
+			throws NoSuchAlgorithmException, InvalidAlgorithmParameterException {
+		return sigFactory.newDigestMethod(digestUri, null);
+	}
+
+	/**
+	 * @return whether the key is of the kind this algorithm signs with
+	 */
+	public boolean isCompatible(final Key key) {
+		return TrustStoreKeySelector.isCompatible(key, signatureUri);
+	}
+
+	/**
+	 * @return whether the XML signature provider of the factory implements this algorithm
+	 */
+	public boolean isSupported(final XMLSignatureFactory sigFactory) {
+		try {
+			newSignatureMethod(sigFactory);
+			newDigestMethod(sigFactory);
+			return true;
+		} catch (NoSuchAlgorithmException e) {
+			return false;
+		} catch (InvalidAlgorithmParameterException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return the algorithm with the signature method URI or null if there is none
+	 */
+	public static SignatureAlgorithm forSignatureUri(final String signatureUri) {
+		for (SignatureAlgorithm algorithm : values())
+			if (algorithm.signatureUri.equals(signatureUri))
+				return algorithm;
+		return null;
+	}
+}
@@ -0,0 +1,28 @@
+package nz.ac.aut.hss.network.mail;
+
+/**
+ * Thrown when an XML document or its signature could not be parsed, signed, validated or written.
+ */
+public class SigningException extends Exception {
+	private static final long serialVersionUID = 1L;
+
+	public SigningException() {
+	}
+
+	public SigningException(final String message) {
+		super(message);
+	}
+
+	public SigningException(final String message, final Throwable cause) {
+		super(message, cause);
+	}
+
+	public SigningException(final Throwable cause) {
+		super(cause);
+	}
+
+	public SigningException(final String message, final Throwable cause, final boolean enableSuppression,
+							final boolean writableStackTrace) {
+		super(message, cause, enableSuppression, writableStackTrace);
+	}
+}
@@ -0,0 +1,286 @@
+package nz.ac.aut.hss.network.mail;
+
+import com.sun.istack.internal.Nullable;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import javax.xml.crypto.MarshalException;
+import javax.xml.crypto.dsig.CanonicalizationMethod;
+import javax.xml.crypto.dsig.DigestMethod;
+import javax.xml.crypto.dsig.Reference;
+import javax.xml.crypto.dsig.SignedInfo;
+import javax.xml.crypto.dsig.Transform;
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.crypto.dsig.XMLSignatureException;
+import javax.xml.crypto.dsig.XMLSignatureFactory;
+import javax.xml.crypto.dsig.dom.DOMSignContext;
+import javax.xml.crypto.dsig.dom.DOMValidateContext;
+import javax.xml.crypto.dsig.keyinfo.KeyInfo;
+import javax.xml.crypto.dsig.keyinfo.KeyInfoFactory;
+import javax.xml.crypto.dsig.spec.C14NMethodParameterSpec;
+import javax.xml.crypto.dsig.spec.TransformParameterSpec;
+import javax.xml.crypto.KeySelector;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Signs and validates XML documents of any size without building a DOM of them.
+ * The document is canonicalized and digested while it is read with StAX, so memory use does not depend on the
+ * document size. As an enveloped signature cannot be inserted without holding the document, the result is a
+ * detached signature: the document is passed through unchanged and a separate <code>Signature</code> document
+ * references it by URI. Documents whose DTD gives attributes default values are rejected, as the defaulted
+ * attributes are part of the canonical form; they have to be signed with {@link XMLSignerVerifier}.
+ */
+public class StreamingXMLSigner {
+	private static final String CANONICALIZATION = CanonicalizationMethod.INCLUSIVE_WITH_COMMENTS;
+	private static final int COPY_BUFFER_SIZE = 8192;
+
+	private final PrivateKey privateKey;
+	private final PublicKey publicKey;
+	private final SignatureAlgorithm algorithm;
+	private final ThreadLocal<XMLSignatureFactory> sigFactories = new ThreadLocal<XMLSignatureFactory>() {
+		@Override
+		protected XMLSignatureFactory initialValue() {
+			return XMLSignatureFactory.getInstance("DOM");
+		}
+	};
+	private final ThreadLocal<XMLInputFactory> inputFactories = new ThreadLocal<XMLInputFactory>() {
+		@Override
+		protected XMLInputFactory initialValue() {
+			XMLInputFactory factory = XMLInputFactory.newInstance();
+			factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+			return factory;
+		}
+	};
+	private final DocumentBuilderFactory builderFactory;
+	private final TransformerFactory transformerFactory;
+
+	/**
+	 * @param privateKey the RSA key to sign with, may be null if this instance only validates
+	 * @param publicKey  the RSA key signatures are validated with and that is put into the signature's KeyInfo
+	 */
+	public StreamingXMLSigner(final PrivateKey privateKey, final PublicKey publicKey) {
+		this(privateKey, publicKey, SignatureAlgorithm.RSA_SHA256);
+	}
+
+	/**
+	 * @param privateKey the key to sign with, may be null if this instance only validates
+	 * @param publicKey  the key signatures are validated with and that is put into the signature's KeyInfo
+	 * @param algorithm  the signature and digest algorithms, must match the type of the keys
+	 */
+	public StreamingXMLSigner(final PrivateKey privateKey, final PublicKey publicKey,
+							  final SignatureAlgorithm algorithm) {
+		this.privateKey = privateKey;
+		if (publicKey == null)
+			throw new IllegalArgumentException("publicKey must not be null");
+		this.publicKey = publicKey;
+		if (algorithm == null)
+			throw new IllegalArgumentException("algorithm must not be null");
+		if (!algorithm.isCompatible(publicKey))
+			throw new IllegalArgumentException("A " + publicKey.getAlgorithm() + " key cannot be used with " + algorithm);
+		this.algorithm = algorithm;
+		builderFactory = DocumentBuilderFactory.newInstance();
+		builderFactory.setNamespaceAware(true); // required for XML-Sec
+		transformerFactory = TransformerFactory.newInstance();
+	}
+
+	/**
+	 * Signs a document while streaming it.
+	 * @param is           the document to sign
+	 * @param os           receives the unchanged document bytes, may be null if the document is stored elsewhere
+	 * @param referenceUri the URI the detached signature refers to the document with, e.g. its file name
+	 * @param signatureOs  receives the detached signature document
+	 */
+	public void sign(final InputStream is, final OutputStream os, final String referenceUri,
+					 final OutputStream signatureOs) throws SigningException {
+		if (privateKey == null)
+			throw new IllegalStateException("no private key to sign with");
+		final byte[] digest = digest(new PassThroughInputStream(is, os));
+
+		try {
+			final XMLSignatureFactory sigFactory = sigFactories.get();
+			final DigestMethod digestMethod = algorithm.newDigestMethod(sigFactory);
+			final Transform transform = sigFactory.newTransform(CANONICALIZATION, (TransformParameterSpec) null);
+			// the digest is already known, so signing does not dereference the URI again
+			final Reference ref = sigFactory.newReference(referenceUri, digestMethod,
+					Collections.singletonList(transform), null, null, digest);
+			final SignedInfo signedInfo = sigFactory.newSignedInfo(
+					sigFactory.newCanonicalizationMethod(CanonicalizationMethod.INCLUSIVE,
+							(C14NMethodParameterSpec) null),
+					algorithm.newSignatureMethod(sigFactory),
+					Collections.singletonList(ref));
+			final KeyInfoFactory kif = sigFactory.getKeyInfoFactory();
+			final KeyInfo keyInfo = kif.newKeyInfo(Collections.singletonList(kif.newKeyValue(publicKey)));
+
+			final Document signatureDocument = newDocumentBuilder().newDocument();
+			sigFactory.newXMLSignature(signedInfo, keyInfo).sign(new DOMSignContext(privateKey, signatureDocument));
+			final Transformer transformer;
+			synchronized (transformerFactory) {
+				transformer = transformerFactory.newTransformer();
+			}
+			transformer.transform(new DOMSource(signatureDocument), new StreamResult(signatureOs));
+		} catch (GeneralSecurityException e) {
+			throw new SigningException("Signature algorithm not available: " + e, e);
+		} catch (MarshalException e) {
+			throw new SigningException("Marshal exception while signing: " + e, e);
+		} catch (XMLSignatureException e) {
+			throw new SigningException("Signature exception while signing: " + e, e);
+		} catch (TransformerException e) {
+			throw new SigningException("Transformer exception: " + e, e);
+		}
+	}
+
+	/**
+	 * Validates a detached signature created by {@link #sign} against the document, streaming the document.
+	 * @param signatureIs the detached signature document
+	 * @param is          the signed document
+	 * @return whether the signature is valid for the document and was created with the private key matching our
+	 * public key
+	 * @throws SigningException if either document cannot be read or the signature uses unsupported transforms
+	 */
+	public boolean validate(final InputStream signatureIs, final InputStream is) throws SigningException {
+		final Document signatureDocument;
+		try {
+			signatureDocument = newDocumentBuilder().parse(signatureIs);
+		} catch (SAXException e) {
+			throw new SigningException("SAX exception while parsing: " + e, e);
+		} catch (IOException e) {
+			throw new SigningException("IO exception with file: " + e, e);
+		}
+		final NodeList nodeList = signatureDocument.getElementsByTagNameNS(XMLSignature.XMLNS, "Signature");
+		if (nodeList.getLength() == 0)
+			throw new SigningException("No Signature element");
+
+		// the document is trusted only if signed with our key, not with whatever key the signature carries
+		final DOMValidateContext vc = new DOMValidateContext(KeySelector.singletonKeySelector(publicKey),
+				nodeList.item(0));
+		try {
+			final XMLSignature signature = sigFactories.get().unmarshalXMLSignature(vc);
+			final List<?> references = signature.getSignedInfo().getReferences();
+			if (references.size() != 1)
+				throw new SigningException("Expected a single detached reference but found " + references.size());
+			final Reference ref = (Reference) references.get(0);
+			final List<?> transforms = ref.getTransforms();
+			if (transforms.size() != 1 || !CANONICALIZATION.equals(((Transform) transforms.get(0)).getAlgorithm()))
+				throw new SigningException("Unsupported transforms for streaming validation: " + transforms);
+			if (!algorithm.getDigestUri().equals(ref.getDigestMethod().getAlgorithm()))
+				throw new SigningException("Unsupported digest method: " + ref.getDigestMethod().getAlgorithm());
+
+			return MessageDigest.isEqual(digest(new PassThroughInputStream(is, null)), ref.getDigestValue())
+					&& signature.getSignatureValue().validate(vc);
+		} catch (MarshalException e) {
+			throw new SigningException("Marshal exception while validating: " + e, e);
+		} catch (XMLSignatureException e) {
+			throw new SigningException("Signature exception while validating: " + e, e);
+		}
+	}
+
+	/**
+	 * Canonicalizes the document into a message digest while reading it and consumes the stream up to its end.
+	 */
+	private byte[] digest(final InputStream is) throws SigningException {
+		final MessageDigest md;
+		try {
+			md = MessageDigest.getInstance(algorithm.getDigestAlgorithm());
+		} catch (NoSuchAlgorithmException e) {
+			throw new SigningException("Digest algorithm not available: " + e, e);
+		}
+		try {
+			final Writer writer = Utf8Writer.toDigest(md);
+			final XMLStreamReader reader = inputFactories.get().createXMLStreamReader(is);
+			try {
+				new XMLCanonicalizer(writer, true).canonicalize(reader);
+			} finally {
+				reader.close();
+			}
+			writer.close();
+			// read any trailing bytes the parser left so the whole document passes through
+			final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+			int n;
+			do {
+				n = is.read(buffer);
+			} while (n != -1);
+		} catch (XMLStreamException e) {
+			throw new SigningException("StAX exception while parsing: " + e, e);
+		} catch (IOException e) {
+			throw new SigningException("IO exception with file: " + e, e);
+		}
+		return md.digest();
+	}
+
+	private DocumentBuilder newDocumentBuilder() throws SigningException {
+		try {
+			synchronized (builderFactory) {
+				return builderFactory.newDocumentBuilder();
+			}
+		} catch (ParserConfigurationException e) {
+			throw new SigningException("DOM parser exception: " + e, e);
+		}
+	}
+
+	/**
+	 * Copies everything read from the wrapped stream to an optional output stream. Closing is ignored because the
+	 * parser closes its input at the end of the document, before any trailing bytes have been passed through.
+	 */
+	private static class PassThroughInputStream extends FilterInputStream {
+		@Nullable
+		private final OutputStream copy;
+
+		private PassThroughInputStream(final InputStream in, final OutputStream copy) {
+			super(in);
+			this.copy = copy;
+		}
+
+		@Override
+		public int read() throws IOException {
+			final int b = super.read();
+			if (b != -1 && copy != null)
+				copy.write(b);
+			return b;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			final int n = super.read(b, off, len);
+			if (n > 0 && copy != null)
+				copy.write(b, off, n);
+			return n;
+		}
+
+		@Override
+		public void close() {
+		}
+
+		@Override
+		public long skip(final long n) throws IOException {
+			throw new IOException("skip is not supported while copying");
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,247 @@
+package nz.ac.aut.hss.network.mail;
+
+import javax.mail.MessagingException;
+import javax.mail.Transport;
+import java.io.Closeable;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of connected and authenticated transports, so that concurrent senders each get a connection of their
+ * own without a TCP, TLS and authentication handshake per message.
+ * <p>
+ * Idle connections are reused most recently used first. A connection that was idle for longer than
+ * {@link Defaults#VALIDATE_AFTER_MILLIS} is validated on borrow (for SMTP, {@link Transport#isConnected()} sends a
+ * NOOP) and replaced if the server has dropped it. Connections idle for longer than the idle timeout are closed in
+ * the background, so the server does not time them out itself.
+ */
+public class TransportPool implements Closeable {
+	public static interface Defaults {
+		public final int SIZE = 4;
+		public final long IDLE_TIMEOUT_MILLIS = 60000;
+		public final long BORROW_TIMEOUT_MILLIS = 30000;
+		/**
+		 * Connections used more recently than this are handed out without a NOOP round trip.
+		 */
+		public final long VALIDATE_AFTER_MILLIS = 1000;
+	}
+
+	/**
+	 * Opens a new connected transport.
+	 */
+	public static interface TransportFactory {
+		Transport open() throws MessagingException;
+	}
+
+	private final TransportFactory factory;
+	private final int size;
+	private final long idleTimeoutNanos, borrowTimeoutNanos, validateAfterNanos;
+	private final Semaphore permits;
+	/**
+	 * Idle connections, most recently released first.
+	 */
+	private final Deque<Idle> idle = new LinkedBlockingDeque<>();
+	private final ScheduledExecutorService evictor;
+	private final AtomicLong opened = new AtomicLong(), reused = new AtomicLong(), invalidated = new AtomicLong(),
+			evicted = new AtomicLong();
+	private volatile boolean closed;
+
+	public TransportPool(final TransportFactory factory) {
+		this(factory, Defaults.SIZE, Defaults.IDLE_TIMEOUT_MILLIS, Defaults.BORROW_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 * @param size                the maximum number of connections
+	 * @param idleTimeoutMillis   how long a connection may be idle before it is closed
+	 * @param borrowTimeoutMillis how long {@link #borrow()} waits for a connection to become available
+	 */
+	public TransportPool(final TransportFactory factory, final int size, final long idleTimeoutMillis,
+						 final long borrowTimeoutMillis) {
+		if (factory == null)
+			throw new IllegalArgumentException("factory must not be null");
+		this.factory = factory;
+		if (size < 1)
+			throw new IllegalArgumentException("size must be greater than zero");
+		this.size = size;
+		if (idleTimeoutMillis < 1 || borrowTimeoutMillis < 0)
+			throw new IllegalArgumentException("invalid timeouts: " + idleTimeoutMillis + ", " + borrowTimeoutMillis);
+		this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+		this.borrowTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(borrowTimeoutMillis);
+		this.validateAfterNanos = TimeUnit.MILLISECONDS.toNanos(Defaults.VALIDATE_AFTER_MILLIS);
+		this.permits = new Semaphore(size, true);
+		this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+			final Thread thread = new Thread(r, "TransportPool evictor");
+			thread.setDaemon(true);
+			return thread;
+		});
+		final long period = Math.max(1, idleTimeoutMillis / 2);
+		evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Hands out a connected transport for exclusive use until it is given back with {@link #release}.
+	 * @throws MessagingException if no connection became available in time or a new one could not be opened
+	 */
+	public Transport borrow() throws MessagingException, InterruptedException {
+		if (closed)
+			throw new MessagingException("Transport pool is closed");
+		if (!permits.tryAcquire(borrowTimeoutNanos, TimeUnit.NANOSECONDS))
+			throw new MessagingException("No connection available within " +
+					TimeUnit.NANOSECONDS.toMillis(borrowTimeoutNanos) + " ms, all " + size + " are in use");
+		try {
+			Idle candidate;
+			while ((candidate = idle.pollFirst()) != null) {
+				final long idleNanos = System.nanoTime() - candidate.since;
+				if (idleNanos < idleTimeoutNanos
+						&& (idleNanos < validateAfterNanos || candidate.transport.isConnected())) {
+					reused.incrementAndGet();
+					return candidate.transport;
+				}
+				invalidated.incrementAndGet();
+				closeQuietly(candidate.transport);
+			}
+			final Transport transport = factory.open();
+			opened.incrementAndGet();
+			return transport;
+		} catch (MessagingException | RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Gives a borrowed transport back.
+	 * @param reusable false if the connection failed and must not be handed out again
+	 */
+	public void release(final Transport transport, final boolean reusable) {
+		if (transport == null)
+			throw new IllegalArgumentException("transport must not be null");
+		try {
+			if (reusable && !closed)
+				idle.offerFirst(new Idle(transport));
+			else
+				closeQuietly(transport);
+		} finally {
+			permits.release();
+		}
+		if (closed) // a close that raced with this release
+			closeIdle();
+	}
+
+	/**
+	 * Closes connections which have been idle for longer than the idle timeout, least recently used first.
+	 */
+	private void evictIdle() {
+		final long now = System.nanoTime();
+		for (Iterator<Idle> i = idle.descendingIterator(); i.hasNext(); ) {
+			final Idle candidate = i.next();
+			if (now - candidate.since < idleTimeoutNanos)
+				break;
+			if (idle.removeLastOccurrence(candidate)) {
+				evicted.incrementAndGet();
+				closeQuietly(candidate.transport);
+			}
+		}
+	}
+
+	private void closeIdle() {
+		Idle candidate;
+		while ((candidate = idle.pollFirst()) != null)
+			closeQuietly(candidate.transport);
+	}
+
+	private static void closeQuietly(final Transport transport) {
+		try {
+			transport.close();
+		} catch (MessagingException me) {
+			System.err.println(me.getClass().getName() + " during disconnect: " + me.getMessage());
+		}
+	}
+
+	/**
+	 * Closes all idle connections and stops handing out new ones; borrowed connections are closed when they are
+	 * released.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		evictor.shutdownNow();
+		closeIdle();
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * @return the number of connections currently borrowed
+	 */
+	public int getActive() {
+		return size - permits.availablePermits();
+	}
+
+	public int getIdle() {
+		return idle.size();
+	}
+
+	/**
+	 * @return how many connections were opened so far
+	 */
+	public long getOpened() {
+		return opened.get();
+	}
+
+	/**
+	 * @return how many borrows were served by an idle connection
+	 */
+	public long getReused() {
+		return reused.get();
+	}
+
+	/**
+	 * @return how many idle connections were found broken or timed out on borrow
+	 */
+	public long getInvalidated() {
+		return invalidated.get();
+	}
+
+	/**
+	 * @return how many idle connections were closed by the evictor
+	 */
+	public long getEvicted() {
+		return evicted.get();
+	}
+
+	@Override
+	public String toString() {
+		return "TransportPool{" +
+				"size=" + size +
+				", active=" + getActive() +
+				", idle=" + getIdle() +
+				", opened=" + opened +
+				", reused=" + reused +
+				", invalidated=" + invalidated +
+				", evicted=" + evicted +
+				", closed=" + closed +
+				'}';
+	}
+
+	private static class Idle {
+		private final Transport transport;
+		private final long since = System.nanoTime();
+
+		private Idle(final Transport transport) {
+			this.transport = transport;
+		}
+	}
+}
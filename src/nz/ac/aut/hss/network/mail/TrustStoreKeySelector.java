@@ -0,0 +1,298 @@
+package nz.ac.aut.hss.network.mail;
+
+import nz.ac.aut.hss.network.KeyFetcher;
+
+import javax.security.auth.x500.X500Principal;
+import javax.xml.crypto.AlgorithmMethod;
+import javax.xml.crypto.KeySelector;
+import javax.xml.crypto.KeySelectorException;
+import javax.xml.crypto.KeySelectorResult;
+import javax.xml.crypto.XMLCryptoContext;
+import javax.xml.crypto.XMLStructure;
+import javax.xml.crypto.dsig.SignatureMethod;
+import javax.xml.crypto.dsig.keyinfo.KeyInfo;
+import javax.xml.crypto.dsig.keyinfo.KeyName;
+import javax.xml.crypto.dsig.keyinfo.KeyValue;
+import javax.xml.crypto.dsig.keyinfo.X509Data;
+import javax.xml.crypto.dsig.keyinfo.X509IssuerSerial;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.Key;
+import java.security.KeyException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Selects validation keys from a trust store instead of trusting the key a signature carries.
+ * Keys are resolved by KeyName (the trust store alias), by X509Data (certificate, subject name or issuer and serial
+ * number) or by the fingerprint of a KeyValue, which is only accepted if the same key is in the trust store.
+ * The trust store is loaded once and resolved keys are kept in concurrent caches, so validation does not decode keys
+ * or read the trust store again.
+ */
+public class TrustStoreKeySelector extends KeySelector {
+	private static final String FINGERPRINT_ALGORITHM = "SHA-256";
+	private static final String RSA = "RSA", DSA = "DSA", EC = "EC", EDDSA = "EdDSA";
+	/**
+	 * The kind of key each known signature method signs with; keys are never selected for other methods.
+	 */
+	private static final Map<String, String> KEY_KINDS = keyKinds();
+
+	private final KeyStore trustStore;
+	private final Map<String, PublicKey> keysByAlias = new ConcurrentHashMap<>();
+	/**
+	 * Fingerprints of trusted public keys and certificates, built on first use.
+	 */
+	private volatile Index index;
+
+	/**
+	 * Loads the trust store through {@link KeyFetcher#loadKeyStore}.
+	 */
+	public TrustStoreKeySelector(final KeyFetcher keyFetcher, final String trustStoreName, final char[] storepw)
+			throws KeyStoreException, NoSuchAlgorithmException, CertificateException, IOException {
+		this(keyFetcher.loadKeyStore(trustStoreName, storepw));
+	}
+
+	public TrustStoreKeySelector(final KeyStore trustStore) {
+		if (trustStore == null)
+			throw new IllegalArgumentException("trustStore must not be null");
+		this.trustStore = trustStore;
+	}
+
+	@Override
+	public KeySelectorResult select(final KeyInfo keyInfo, final Purpose purpose, final AlgorithmMethod method,
+									final XMLCryptoContext context) throws KeySelectorException {
+		if (keyInfo == null)
+			throw new KeySelectorException("Null KeyInfo object");
+		final String algorithmURI = method.getAlgorithm();
+		for (Object content : keyInfo.getContent()) {
+			final PublicKey key = resolve((XMLStructure) content);
+			if (key != null && isCompatible(key, algorithmURI))
+				return new TrustedKeyResult(key);
+		}
+		throw new KeySelectorException("No trusted key found for KeyInfo " + keyInfo.getId());
+	}
+
+	/**
+	 * @return the trusted key for a KeyInfo entry or null if there is none
+	 */
+	private PublicKey resolve(final XMLStructure structure) throws KeySelectorException {
+		if (structure instanceof KeyName)
+			return getKeyByAlias(((KeyName) structure).getName());
+		if (structure instanceof KeyValue) {
+			try {
+				return getIndex().keysByFingerprint.get(fingerprint(((KeyValue) structure).getPublicKey().getEncoded()));
+			} catch (KeyException e) {
+				throw new KeySelectorException(e);
+			}
+		}
+		if (structure instanceof X509Data) {
+			for (Object data : ((X509Data) structure).getContent()) {
+				PublicKey key = null;
+				if (data instanceof X509Certificate) {
+					try {
+						key = getIndex().keysByCertificate.get(fingerprint(((X509Certificate) data).getEncoded()));
+					} catch (CertificateEncodingException e) {
+						throw new KeySelectorException(e);
+					}
+				} else if (data instanceof String) {
+					key = getIndex().keysBySubject.get(new X500Principal((String) data));
+				} else if (data instanceof X509IssuerSerial) {
+					final X509IssuerSerial issuerSerial = (X509IssuerSerial) data;
+					key = getIndex().keysByIssuerSerial.get(new IssuerSerial(
+							new X500Principal(issuerSerial.getIssuerName()), issuerSerial.getSerialNumber()));
+				}
+				if (key != null)
+					return key;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the key of the certificate stored under the alias or null if there is none
+	 */
+	public PublicKey getKeyByAlias(final String alias) throws KeySelectorException {
+		final String normalized = alias.toLowerCase(Locale.ENGLISH); // aliases are case-insensitive in JKS stores
+		PublicKey key = keysByAlias.get(normalized);
+		if (key == null) {
+			final Certificate certificate;
+			try {
+				certificate = trustStore.getCertificate(normalized);
+			} catch (KeyStoreException e) {
+				throw new KeySelectorException(e);
+			}
+			if (certificate == null)
+				return null;
+			key = certificate.getPublicKey();
+			keysByAlias.put(normalized, key);
+		}
+		return key;
+	}
+
+	private Index getIndex() throws KeySelectorException {
+		Index result = index;
+		if (result == null) {
+			synchronized (this) {
+				result = index;
+				if (result == null) {
+					try {
+						index = result = new Index(trustStore);
+					} catch (KeyStoreException e) {
+						throw new KeySelectorException(e);
+					} catch (CertificateEncodingException e) {
+						throw new KeySelectorException(e);
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	private static Map<String, String> keyKinds() {
+		final Map<String, String> kinds = new HashMap<>();
+		for (String uri : new String[]{SignatureMethod.RSA_SHA1, SignatureMethod.RSA_SHA224,
+				SignatureMethod.RSA_SHA256, SignatureMethod.RSA_SHA384, SignatureMethod.RSA_SHA512,
+				SignatureMethod.SHA1_RSA_MGF1, SignatureMethod.SHA224_RSA_MGF1, SignatureMethod.SHA256_RSA_MGF1,
+				SignatureMethod.SHA384_RSA_MGF1, SignatureMethod.SHA512_RSA_MGF1,
+				"http://www.w3.org/2007/05/xmldsig-more#rsa-pss"})
+			kinds.put(uri, RSA);
+		kinds.put(SignatureMethod.DSA_SHA1, DSA);
+		kinds.put(SignatureMethod.DSA_SHA256, DSA);
+		for (String uri : new String[]{SignatureMethod.ECDSA_SHA1, SignatureMethod.ECDSA_SHA224,
+				SignatureMethod.ECDSA_SHA256, SignatureMethod.ECDSA_SHA384, SignatureMethod.ECDSA_SHA512})
+			kinds.put(uri, EC);
+		kinds.put("http://www.w3.org/2021/04/xmldsig-more#eddsa-ed25519", EDDSA);
+		kinds.put("http://www.w3.org/2021/04/xmldsig-more#eddsa-ed448", EDDSA);
+		return Collections.unmodifiableMap(kinds);
+	}
+
+	/**
+	 * @return the kind of key of the JCA key algorithm or null if no known signature method signs with it
+	 */
+	private static String keyKind(final String keyAlgorithm) {
+		switch (keyAlgorithm) {
+			case "RSA":
+			case "RSASSA-PSS":
+				return RSA;
+			case "DSA":
+				return DSA;
+			case "EC":
+				return EC;
+			case "EdDSA":
+			case "Ed25519":
+			case "Ed448":
+				return EDDSA;
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * @return whether the key can be used with the signature method; false for signature methods that are not known
+	 */
+	public static boolean isCompatible(final Key key, final String signatureMethodURI) {
+		final String kind = KEY_KINDS.get(signatureMethodURI);
+		return kind != null && kind.equals(keyKind(key.getAlgorithm()));
+	}
+
+	private static String fingerprint(final byte[] encoded) {
+		final MessageDigest md;
+		try {
+			md = MessageDigest.getInstance(FINGERPRINT_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("Digest algorithm not available: " + e, e);
+		}
+		final StringBuilder hex = new StringBuilder(64);
+		for (byte b : md.digest(encoded))
+			hex.append(String.format("%02x", b));
+		return hex.toString();
+	}
+
+	/**
+	 * Lookup tables over all certificates of the trust store.
+	 */
+	private static class Index {
+		private final Map<String, PublicKey> keysByFingerprint, keysByCertificate;
+		private final Map<X500Principal, PublicKey> keysBySubject;
+		private final Map<IssuerSerial, PublicKey> keysByIssuerSerial;
+
+		private Index(final KeyStore trustStore) throws KeyStoreException, CertificateEncodingException {
+			final Map<String, PublicKey> byFingerprint = new HashMap<>(), byCertificate = new HashMap<>();
+			final Map<X500Principal, PublicKey> bySubject = new HashMap<>();
+			final Map<IssuerSerial, PublicKey> byIssuerSerial = new HashMap<>();
+			for (Enumeration<String> aliases = trustStore.aliases(); aliases.hasMoreElements(); ) {
+				final Certificate certificate = trustStore.getCertificate(aliases.nextElement());
+				if (certificate == null)
+					continue;
+				final PublicKey key = certificate.getPublicKey();
+				byFingerprint.put(fingerprint(key.getEncoded()), key);
+				byCertificate.put(fingerprint(certificate.getEncoded()), key);
+				if (certificate instanceof X509Certificate) {
+					final X509Certificate x509 = (X509Certificate) certificate;
+					bySubject.put(x509.getSubjectX500Principal(), key);
+					byIssuerSerial.put(new IssuerSerial(x509.getIssuerX500Principal(), x509.getSerialNumber()), key);
+				}
+			}
+			keysByFingerprint = Collections.unmodifiableMap(byFingerprint);
+			keysByCertificate = Collections.unmodifiableMap(byCertificate);
+			keysBySubject = Collections.unmodifiableMap(bySubject);
+			keysByIssuerSerial = Collections.unmodifiableMap(byIssuerSerial);
+		}
+	}
+
+	private static class IssuerSerial {
+		private final X500Principal issuer;
+		private final BigInteger serialNumber;
+
+		private IssuerSerial(final X500Principal issuer, final BigInteger serialNumber) {
+			this.issuer = issuer;
+			this.serialNumber = serialNumber;
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+			if (this == o) return true;
+			if (o == null || getClass() != o.getClass()) return false;
+
+			final IssuerSerial that = (IssuerSerial) o;
+
+			if (!issuer.equals(that.issuer)) return false;
+			if (!serialNumber.equals(that.serialNumber)) return false;
+
+			return true;
+		}
+
+		@Override
+		public int hashCode() {
+			int result = issuer.hashCode();
+			result = 31 * result + serialNumber.hashCode();
+			return result;
+		}
+	}
+
+	private static class TrustedKeyResult implements KeySelectorResult {
+		private final PublicKey key;
+
+		private TrustedKeyResult(final PublicKey key) {
+			this.key = key;
+		}
+
+		@Override
+		public Key getKey() {
+			return key;
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package nz.ac.aut.hss.network.mail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+
+/**
+ * Encodes characters as UTF-8 into a buffer that is handed to a {@link MessageDigest}, an {@link OutputStream} or a
+ * {@link WritableByteChannel} whenever it is full. Unlike an {@link java.io.OutputStreamWriter} no charset encoder
+ * and no intermediate char or byte arrays are involved, and the buffer is borrowed from a per-thread pool and
+ * returned on {@link #close()}, so writing a document allocates nothing per call.
+ * Closing does not close the target.
+ */
+public abstract class Utf8Writer extends Writer {
+	public static interface Defaults {
+		public final int BUFFER_SIZE = 16384;
+	}
+
+	private static final ThreadLocal<byte[]> POOL = new ThreadLocal<>();
+
+	private byte[] buffer;
+	private int count;
+	/**
+	 * A high surrogate waiting for its low surrogate, or 0.
+	 */
+	private char highSurrogate;
+
+	protected Utf8Writer() {
+		buffer = POOL.get();
+		if (buffer == null)
+			buffer = new byte[Defaults.BUFFER_SIZE];
+		else
+			POOL.set(null); // a nested writer on this thread gets its own buffer
+	}
+
+	public static Utf8Writer toDigest(final MessageDigest md) {
+		if (md == null)
+			throw new IllegalArgumentException("md must not be null");
+		return new Utf8Writer() {
+			@Override
+			protected void drain(final byte[] bytes, final int length) {
+				md.update(bytes, 0, length);
+			}
+		};
+	}
+
+	public static Utf8Writer toStream(final OutputStream os) {
+		if (os == null)
+			throw new IllegalArgumentException("os must not be null");
+		return new Utf8Writer() {
+			@Override
+			protected void drain(final byte[] bytes, final int length) throws IOException {
+				os.write(bytes, 0, length);
+			}
+
+			@Override
+			public void flush() throws IOException {
+				super.flush();
+				os.flush();
+			}
+		};
+	}
+
+	public static Utf8Writer toChannel(final WritableByteChannel channel) {
+		if (channel == null)
+			throw new IllegalArgumentException("channel must not be null");
+		return new Utf8Writer() {
+			@Override
+			protected void drain(final byte[] bytes, final int length) throws IOException {
+				final ByteBuffer data = ByteBuffer.wrap(bytes, 0, length);
+				while (data.hasRemaining())
+					channel.write(data);
+			}
+		};
+	}
+
+	/**
+	 * Passes the first bytes of the buffer on to the target.
+	 */
+	protected abstract void drain(byte[] bytes, int length) throws IOException;
+
+	@Override
+	public void write(final int c) throws IOException {
+		encode((char) c);
+	}
+
+	@Override
+	public void write(final char[] chars, final int off, final int len) throws IOException {
+		for (int i = off, end = off + len; i < end; i++)
+			encode(chars[i]);
+	}
+
+	@Override
+	public void write(final String str, final int off, final int len) throws IOException {
+		for (int i = off, end = off + len; i < end; i++)
+			encode(str.charAt(i));
+	}
+
+	@Override
+	public Writer append(final CharSequence csq) throws IOException {
+		final CharSequence chars = csq == null ? "null" : csq;
+		for (int i = 0; i < chars.length(); i++)
+			encode(chars.charAt(i));
+		return this;
+	}
+
+	private void encode(final char c) throws IOException {
+		ensureOpen();
+		if (count > buffer.length - 4)
+			drainBuffer();
+		if (highSurrogate != 0) {
+			final char high = highSurrogate;
+			highSurrogate = 0;
+			if (Character.isLowSurrogate(c)) {
+				final int codePoint = Character.toCodePoint(high, c);
+				buffer[count++] = (byte) (0xf0 | (codePoint >> 18));
+				buffer[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+				buffer[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+				buffer[count++] = (byte) (0x80 | (codePoint & 0x3f));
+				return;
+			}
+			buffer[count++] = '?'; // unpaired surrogate, replaced as OutputStreamWriter does
+			if (count > buffer.length - 4)
+				drainBuffer();
+		}
+		if (c < 0x80) {
+			buffer[count++] = (byte) c;
+		} else if (c < 0x800) {
+			buffer[count++] = (byte) (0xc0 | (c >> 6));
+			buffer[count++] = (byte) (0x80 | (c & 0x3f));
+		} else if (Character.isHighSurrogate(c)) {
+			highSurrogate = c;
+		} else if (Character.isLowSurrogate(c)) {
+			buffer[count++] = '?';
+		} else {
+			buffer[count++] = (byte) (0xe0 | (c >> 12));
+			buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+			buffer[count++] = (byte) (0x80 | (c & 0x3f));
+		}
+	}
+
+	private void drainBuffer() throws IOException {
+		if (count > 0) {
+			drain(buffer, count);
+			count = 0;
+		}
+	}
+
+	private void ensureOpen() throws IOException {
+		if (buffer == null)
+			throw new IOException("Writer closed");
+	}
+
+	/**
+	 * Passes all buffered bytes on to the target. A trailing high surrogate is kept until the next character.
+	 */
+	@Override
+	public void flush() throws IOException {
+		ensureOpen();
+		drainBuffer();
+	}
+
+	/**
+	 * Flushes the writer and returns its buffer to the pool of the calling thread.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (buffer == null)
+			return;
+		if (highSurrogate != 0) {
+			highSurrogate = 0;
+			buffer[count++] = '?';
+		}
+		try {
+			flush();
+		} finally {
+			if (buffer.length == Defaults.BUFFER_SIZE)
+				POOL.set(buffer);
+			buffer = null;
+		}
+	}
+}
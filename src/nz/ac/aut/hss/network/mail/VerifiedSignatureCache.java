@@ -0,0 +1,113 @@
+package nz.ac.aut.hss.network.mail;
+
+import nz.ac.aut.hss.network.LruCache;
+import org.w3c.dom.Element;
+
+import javax.xml.crypto.dsig.CanonicalizationMethod;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Remembers signature values that have already been verified, so a byte-identical signature received again (retries,
+ * fan-out copies, re-forwards) skips the public key operation.
+ * Entries are keyed by a SHA-256 hash over the canonical SignedInfo, the SignatureValue and the validating key, so a
+ * hit guarantees the same SignatureValue was found valid for the same SignedInfo under the same key before.
+ * The content the references point to is not covered and still has to be digested on every validation.
+ */
+public class VerifiedSignatureCache {
+	public static interface Defaults {
+		public final int CAPACITY = 10000;
+	}
+
+	private static final String KEY_DIGEST_ALGORITHM = "SHA-256";
+
+	private final LruCache<ByteBuffer, Boolean> verified;
+
+	public VerifiedSignatureCache() {
+		this(Defaults.CAPACITY);
+	}
+
+	public VerifiedSignatureCache(final int capacity) {
+		this.verified = new LruCache<>(capacity);
+	}
+
+	/**
+	 * Computes the cache key of a signature.
+	 * @param signedInfo            the SignedInfo element of the signature
+	 * @param canonicalizationUri   the canonicalization method of the SignedInfo
+	 * @param signatureValue        the decoded SignatureValue
+	 * @param validatingKey         the key the signature is validated with
+	 */
+	public ByteBuffer keyOf(final Element signedInfo, final String canonicalizationUri, final byte[] signatureValue,
+							final Key validatingKey) throws IOException {
+		final MessageDigest md = newDigest(), canonical = newDigest();
+		final Writer writer = Utf8Writer.toDigest(canonical);
+		new XMLCanonicalizer(writer, isWithComments(canonicalizationUri)).canonicalize(signedInfo);
+		writer.close();
+		// every part is length-prefixed so that no two different inputs concatenate to the same bytes
+		update(md, canonicalizationUri.getBytes(StandardCharsets.UTF_8));
+		update(md, canonical.digest());
+		update(md, signatureValue);
+		update(md, validatingKey.getAlgorithm().getBytes(StandardCharsets.UTF_8));
+		update(md, validatingKey.getEncoded());
+		return ByteBuffer.wrap(md.digest());
+	}
+
+	public boolean isVerified(final ByteBuffer key) {
+		return verified.get(key) != null;
+	}
+
+	/**
+	 * Records that the signature with the given key has been validated successfully.
+	 */
+	public void markVerified(final ByteBuffer key) {
+		verified.put(key, Boolean.TRUE);
+	}
+
+	public void clear() {
+		verified.clear();
+	}
+
+	public int size() {
+		return verified.size();
+	}
+
+	public long getHits() {
+		return verified.getHits();
+	}
+
+	public long getMisses() {
+		return verified.getMisses();
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(KEY_DIGEST_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("Digest algorithm not available: " + e, e);
+		}
+	}
+
+	private static void update(final MessageDigest md, final byte[] bytes) {
+		md.update(ByteBuffer.allocate(8).putLong(0, bytes == null ? -1 : bytes.length).array());
+		if (bytes != null)
+			md.update(bytes);
+	}
+
+	private static boolean isWithComments(final String canonicalizationUri) {
+		return CanonicalizationMethod.INCLUSIVE_WITH_COMMENTS.equals(canonicalizationUri)
+				|| CanonicalizationMethod.EXCLUSIVE_WITH_COMMENTS.equals(canonicalizationUri);
+	}
+
+	@Override
+	public String toString() {
+		return "VerifiedSignatureCache{" +
+				"verified=" + verified +
+				'}';
+	}
+}
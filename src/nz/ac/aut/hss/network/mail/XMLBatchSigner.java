@@ -0,0 +1,154 @@
+package nz.ac.aut.hss.network.mail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Signs many XML documents concurrently with one shared {@link XMLSignerVerifier}.
+ * @see BatchRunner
+ */
+public class XMLBatchSigner {
+	private final XMLSignerVerifier signer;
+	private final BatchRunner runner;
+
+	public XMLBatchSigner(final XMLSignerVerifier signer) {
+		this(signer, BatchRunner.Defaults.THREADS);
+	}
+
+	public XMLBatchSigner(final XMLSignerVerifier signer, final int threads) {
+		if (signer == null)
+			throw new IllegalArgumentException("signer must not be null");
+		this.signer = signer;
+		this.runner = new BatchRunner(threads);
+	}
+
+	/**
+	 * Signs all jobs concurrently and waits for them to finish.
+	 * @param jobs the documents to sign
+	 * @return one result per job in the iteration order of <code>jobs</code>
+	 * @throws InterruptedException if interrupted while waiting, unfinished jobs are cancelled
+	 */
+	public List<Result> signAll(final Collection<? extends Job> jobs) throws InterruptedException {
+		return runner.runAll(jobs, this::sign);
+	}
+
+	/**
+	 * Signs every input file into a file with the same name in <code>outputDirectory</code>.
+	 * @see #signAll(java.util.Collection)
+	 */
+	public List<Result> signFiles(final Collection<Path> inputs, final Path outputDirectory)
+			throws InterruptedException {
+		final List<Job> jobs = new ArrayList<>(inputs.size());
+		for (Path input : inputs)
+			jobs.add(Job.forFiles(input, outputDirectory.resolve(input.getFileName())));
+		return signAll(jobs);
+	}
+
+	private Result sign(final Job job) {
+		final long start = System.nanoTime();
+		SigningException error = null;
+		boolean opened = false;
+		try (InputStream is = job.openInput()) {
+			try (OutputStream os = job.openOutput()) {
+				opened = true;
+				signer.signDocument(is, os);
+				os.flush();
+			}
+		} catch (IOException e) {
+			error = new SigningException("IO exception with file: " + e, e);
+		} catch (SigningException e) {
+			error = e;
+		} catch (RuntimeException e) {
+			error = new SigningException("Unexpected exception while signing: " + e, e);
+		}
+		if (error != null && opened)
+			discardOutput(job, error);
+		return new Result(job, error, System.nanoTime() - start);
+	}
+
+	private static void discardOutput(final Job job, final SigningException error) {
+		try {
+			job.discardOutput();
+		} catch (IOException e) {
+			error.addSuppressed(e);
+		}
+	}
+
+	/**
+	 * Stops the worker threads once all submitted jobs have finished.
+	 */
+	public void shutdown() throws InterruptedException {
+		runner.shutdown();
+	}
+
+	/**
+	 * A single document to sign. The streams are opened by the worker that signs the document and closed afterwards.
+	 */
+	public static abstract class Job extends BatchRunner.Job {
+		protected Job(final String name) {
+			super(name);
+		}
+
+		protected abstract InputStream openInput() throws IOException;
+
+		protected abstract OutputStream openOutput() throws IOException;
+
+		/**
+		 * Called after signing failed, once the streams are closed, to remove what was written so far.
+		 * Does nothing by default.
+		 */
+		protected void discardOutput() throws IOException {
+		}
+
+		/**
+		 * The output file is deleted if signing fails.
+		 */
+		public static Job forFiles(final Path input, final Path output) {
+			return new Job(input.toString()) {
+				@Override
+				protected InputStream openInput() throws IOException {
+					return Files.newInputStream(input);
+				}
+
+				@Override
+				protected OutputStream openOutput() throws IOException {
+					return Files.newOutputStream(output);
+				}
+
+				@Override
+				protected void discardOutput() throws IOException {
+					Files.deleteIfExists(output);
+				}
+			};
+		}
+
+		/**
+		 * Note that both streams are closed once the document has been signed.
+		 */
+		public static Job forStreams(final String name, final InputStream input, final OutputStream output) {
+			return new Job(name) {
+				@Override
+				protected InputStream openInput() {
+					return input;
+				}
+
+				@Override
+				protected OutputStream openOutput() {
+					return output;
+				}
+			};
+		}
+	}
+
+	public static class Result extends BatchRunner.Result<Job> {
+		private Result(final Job job, final SigningException error, final long durationNanos) {
+			super(job, error, durationNanos);
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package nz.ac.aut.hss.network.mail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Validates the signatures of many XML documents concurrently with one shared {@link XMLSignerVerifier}.
+ * If the validator has a {@link VerifiedSignatureCache}, copies of an already validated signature skip the public
+ * key operation.
+ * @see BatchRunner
+ */
+public class XMLBatchValidator {
+	private final XMLSignerVerifier validator;
+	private final BatchRunner runner;
+
+	public XMLBatchValidator(final XMLSignerVerifier validator) {
+		this(validator, BatchRunner.Defaults.THREADS);
+	}
+
+	public XMLBatchValidator(final XMLSignerVerifier validator, final int threads) {
+		if (validator == null)
+			throw new IllegalArgumentException("validator must not be null");
+		this.validator = validator;
+		this.runner = new BatchRunner(threads);
+	}
+
+	/**
+	 * Validates all documents concurrently and waits for them to finish.
+	 * @param jobs the documents to validate
+	 * @return one result per job in the iteration order of <code>jobs</code>
+	 * @throws InterruptedException if interrupted while waiting, unfinished jobs are cancelled
+	 */
+	public List<Result> validateAll(final Collection<? extends Job> jobs) throws InterruptedException {
+		return runner.runAll(jobs, this::validate);
+	}
+
+	/**
+	 * @see #validateAll(java.util.Collection)
+	 */
+	public List<Result> validateFiles(final Collection<Path> files) throws InterruptedException {
+		final List<Job> jobs = new ArrayList<>(files.size());
+		for (Path file : files)
+			jobs.add(Job.forFile(file));
+		return validateAll(jobs);
+	}
+
+	private Result validate(final Job job) {
+		final long start = System.nanoTime();
+		try (InputStream is = job.openInput()) {
+			final boolean valid = validator.validateDocument(is);
+			return new Result(job, valid, null, System.nanoTime() - start);
+		} catch (IOException e) {
+			return new Result(job, false, new SigningException("IO exception with file: " + e, e),
+					System.nanoTime() - start);
+		} catch (SigningException e) {
+			return new Result(job, false, e, System.nanoTime() - start);
+		} catch (RuntimeException e) {
+			return new Result(job, false, new SigningException("Unexpected exception while validating: " + e, e),
+					System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Stops the worker threads once all submitted jobs have finished.
+	 */
+	public void shutdown() throws InterruptedException {
+		runner.shutdown();
+	}
+
+	/**
+	 * A single signed document. The stream is opened by the worker that validates the document and closed afterwards.
+	 */
+	public static abstract class Job extends BatchRunner.Job {
+		protected Job(final String name) {
+			super(name);
+		}
+
+		protected abstract InputStream openInput() throws IOException;
+
+		public static Job forFile(final Path file) {
+			return new Job(file.toString()) {
+				@Override
+				protected InputStream openInput() throws IOException {
+					return Files.newInputStream(file);
+				}
+			};
+		}
+
+		public static Job forBytes(final String name, final byte[] document) {
+			return new Job(name) {
+				@Override
+				protected InputStream openInput() {
+					return new ByteArrayInputStream(document);
+				}
+			};
+		}
+	}
+
+	public static class Result extends BatchRunner.Result<Job> {
+		private final boolean valid;
+
+		private Result(final Job job, final boolean valid, final SigningException error, final long durationNanos) {
+			super(job, error, durationNanos);
+			this.valid = valid;
+		}
+
+		/**
+		 * @return whether the document could be processed and its signature is valid
+		 */
+		public boolean isValid() {
+			return valid;
+		}
+
+		@Override
+		public String toString() {
+			return "Result{" +
+					"job=" + getJob() +
+					", valid=" + valid +
+					", error=" + getError() +
+					", durationNanos=" + getDurationNanos() +
+					'}';
+		}
+	}
+}
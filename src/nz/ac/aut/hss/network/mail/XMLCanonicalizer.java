@@ -0,0 +1,434 @@
+package nz.ac.aut.hss.network.mail;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.ProcessingInstruction;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Incremental Canonical XML 1.0 (inclusive) writer. The document is fed in as a sequence of events, so only the
+ * namespace scopes of the currently open elements are kept in memory, independent of the document size.
+ * @see <a href="http://www.w3.org/TR/2001/REC-xml-c14n-20010315">Canonical XML 1.0</a>
+ */
+public class XMLCanonicalizer {
+	private static final Comparator<Attribute> ATTRIBUTE_ORDER = new Comparator<Attribute>() {
+		@Override
+		public int compare(final Attribute a1, final Attribute a2) {
+			int result = a1.namespaceURI.compareTo(a2.namespaceURI);
+			return result != 0 ? result : a1.localName.compareTo(a2.localName);
+		}
+	};
+	private static final Comparator<String[]> NAMESPACE_ORDER = new Comparator<String[]>() {
+		@Override
+		public int compare(final String[] n1, final String[] n2) {
+			return n1[0].compareTo(n2[0]);
+		}
+	};
+
+	private final Writer out;
+	private final boolean withComments;
+	/**
+	 * Rendered namespace declarations (prefix to URI, "" is the default namespace) of every open element.
+	 */
+	private final Deque<Map<String, String>> scopes = new ArrayDeque<>();
+	private final List<String[]> namespaces = new ArrayList<>();
+	/**
+	 * The attributes of the next start tag, the Attribute objects are reused for every element.
+	 */
+	private Attribute[] attributes = new Attribute[8];
+	private int attributeCount;
+	/**
+	 * The namespace declarations rendered on the current start tag, reused for every element.
+	 */
+	private final List<String[]> rendered = new ArrayList<>();
+	private boolean afterDocumentElement;
+
+	/**
+	 * @param out          the writer receiving the canonical form, the caller is responsible for encoding it as UTF-8
+	 * @param withComments whether comments are part of the canonical form
+	 */
+	public XMLCanonicalizer(final Writer out, final boolean withComments) {
+		if (out == null)
+			throw new IllegalArgumentException("out must not be null");
+		this.out = out;
+		this.withComments = withComments;
+		scopes.push(Collections.<String, String>emptyMap());
+	}
+
+	/**
+	 * Canonicalizes the remainder of the reader's document.
+	 * The reader must replace entity references and must be namespace aware (the defaults).
+	 * @throws XMLStreamException if the internal DTD subset gives attributes default values, which Canonical XML
+	 *                            includes but StAX readers do not all report
+	 */
+	public void canonicalize(final XMLStreamReader reader) throws XMLStreamException, IOException {
+		for (int event = reader.getEventType(); ; event = reader.next()) {
+			switch (event) {
+				case XMLStreamConstants.START_ELEMENT:
+					for (int i = 0; i < reader.getNamespaceCount(); i++)
+						declareNamespace(reader.getNamespacePrefix(i), reader.getNamespaceURI(i));
+					for (int i = 0; i < reader.getAttributeCount(); i++)
+						addAttribute(reader.getAttributePrefix(i), reader.getAttributeLocalName(i),
+								reader.getAttributeNamespace(i), reader.getAttributeValue(i));
+					startElement(qualifiedName(reader.getPrefix(), reader.getLocalName()));
+					break;
+				case XMLStreamConstants.END_ELEMENT:
+					endElement(qualifiedName(reader.getPrefix(), reader.getLocalName()));
+					break;
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.CDATA:
+				case XMLStreamConstants.SPACE:
+					if (scopes.size() > 1) // whitespace outside the document element is not part of the canonical form
+						characters(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+					break;
+				case XMLStreamConstants.COMMENT:
+					comment(reader.getText());
+					break;
+				case XMLStreamConstants.PROCESSING_INSTRUCTION:
+					processingInstruction(reader.getPITarget(), reader.getPIData());
+					break;
+				case XMLStreamConstants.DTD:
+					if (declaresAttributeDefaults(reader.getText()))
+						throw new XMLStreamException("Attribute defaults declared in the DTD are not supported, "
+								+ "the document has to be canonicalized from a DOM", reader.getLocation());
+					break;
+				case XMLStreamConstants.END_DOCUMENT:
+					return;
+				default: // document start and resolved entities do not appear in the canonical form
+			}
+			if (!reader.hasNext())
+				return;
+		}
+	}
+
+	/**
+	 * @param doctype the document type declaration including the internal subset
+	 * @return whether an attribute list declaration in it has a default value, i.e. a quoted literal; such a literal
+	 * can only be a default, as attribute types never contain quotes
+	 */
+	static boolean declaresAttributeDefaults(final String doctype) {
+		for (int start = doctype.indexOf("<!ATTLIST"); start >= 0; start = doctype.indexOf("<!ATTLIST", start + 1)) {
+			for (int i = start; i < doctype.length() && doctype.charAt(i) != '>'; i++) {
+				final char c = doctype.charAt(i);
+				if (c == '"' || c == '\'')
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Canonicalizes a DOM document or the subtree of a DOM node. The document must have been parsed namespace aware.
+	 * An element is canonicalized as a document subset: the namespaces in scope and the <code>xml:</code>
+	 * attributes it inherits from its ancestors are rendered on it, as for a same-document reference to it.
+	 */
+	public void canonicalize(final Node node) throws IOException {
+		if (node.getNodeType() == Node.ELEMENT_NODE) {
+			final Element element = (Element) node;
+			final Map<String, String> inherited = new LinkedHashMap<>();
+			final Map<String, Attr> inheritedXmlAttributes = new LinkedHashMap<>();
+			final List<Element> ancestors = new ArrayList<>();
+			for (Node parent = element.getParentNode(); parent != null && parent.getNodeType() == Node.ELEMENT_NODE;
+				 parent = parent.getParentNode())
+				ancestors.add(0, (Element) parent);
+			for (Element ancestor : ancestors) {
+				final NamedNodeMap attrs = ancestor.getAttributes();
+				for (int i = 0; i < attrs.getLength(); i++) {
+					final Attr attr = (Attr) attrs.item(i);
+					if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attr.getNamespaceURI()))
+						inherited.put(namespacePrefix(attr), attr.getValue());
+					else if (XMLConstants.XML_NS_URI.equals(attr.getNamespaceURI()))
+						inheritedXmlAttributes.put(attr.getLocalName(), attr);
+				}
+			}
+			final NamedNodeMap attrs = element.getAttributes();
+			for (int i = 0; i < attrs.getLength(); i++) {
+				final Attr attr = (Attr) attrs.item(i);
+				if (XMLConstants.XML_NS_URI.equals(attr.getNamespaceURI()))
+					inheritedXmlAttributes.remove(attr.getLocalName());
+			}
+			for (Map.Entry<String, String> namespace : inherited.entrySet())
+				if (element.getAttributeNodeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI,
+						namespace.getKey().isEmpty() ? "xmlns" : namespace.getKey()) == null)
+					declareNamespace(namespace.getKey(), namespace.getValue());
+			for (Attr attr : inheritedXmlAttributes.values())
+				addAttribute(attr.getPrefix(), attr.getLocalName(), attr.getNamespaceURI(), attr.getValue());
+		}
+		canonicalizeNode(node);
+	}
+
+	private void canonicalizeNode(final Node node) throws IOException {
+		switch (node.getNodeType()) {
+			case Node.ELEMENT_NODE:
+				final NamedNodeMap attrs = node.getAttributes();
+				for (int i = 0; i < attrs.getLength(); i++) {
+					final Attr attr = (Attr) attrs.item(i);
+					if (XMLConstants.XMLNS_ATTRIBUTE_NS_URI.equals(attr.getNamespaceURI()))
+						declareNamespace(namespacePrefix(attr), attr.getValue());
+					else
+						addAttribute(attr.getPrefix(), attr.getLocalName() == null ? attr.getName()
+								: attr.getLocalName(), attr.getNamespaceURI(), attr.getValue());
+				}
+				startElement(node.getNodeName());
+				canonicalizeChildren(node);
+				endElement(node.getNodeName());
+				break;
+			case Node.TEXT_NODE:
+			case Node.CDATA_SECTION_NODE:
+				if (scopes.size() > 1)
+					characters(node.getNodeValue());
+				break;
+			case Node.COMMENT_NODE:
+				comment(node.getNodeValue());
+				break;
+			case Node.PROCESSING_INSTRUCTION_NODE:
+				processingInstruction(((ProcessingInstruction) node).getTarget(),
+						((ProcessingInstruction) node).getData());
+				break;
+			case Node.DOCUMENT_NODE:
+			case Node.ENTITY_REFERENCE_NODE:
+				canonicalizeChildren(node);
+				break;
+			default: // document type declarations do not appear in the canonical form
+		}
+	}
+
+	private void canonicalizeChildren(final Node node) throws IOException {
+		for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling())
+			canonicalizeNode(child);
+	}
+
+	private static String namespacePrefix(final Attr namespaceDeclaration) {
+		return "xmlns".equals(namespaceDeclaration.getName()) ? "" : namespaceDeclaration.getLocalName();
+	}
+
+	/**
+	 * Declares a namespace on the next element started. Declarations that are already in scope are not rendered,
+	 * nor is an explicit declaration of the <code>xml</code> prefix, which Canonical XML omits.
+	 * @param prefix the prefix or null/"" for the default namespace
+	 * @param uri    the namespace URI, "" undeclares the default namespace
+	 */
+	public void declareNamespace(final String prefix, final String uri) {
+		if (XMLConstants.XML_NS_PREFIX.equals(prefix) && XMLConstants.XML_NS_URI.equals(uri))
+			return;
+		namespaces.add(new String[]{prefix == null ? "" : prefix, uri == null ? "" : uri});
+	}
+
+	/**
+	 * Adds an attribute to the next element started.
+	 */
+	public void addAttribute(final String prefix, final String localName, final String namespaceURI,
+							 final String value) {
+		if (attributeCount == attributes.length)
+			attributes = Arrays.copyOf(attributes, attributeCount * 2);
+		Attribute attribute = attributes[attributeCount];
+		if (attribute == null)
+			attributes[attributeCount] = attribute = new Attribute();
+		attributeCount++;
+		attribute.prefix = prefix == null ? "" : prefix;
+		attribute.localName = localName;
+		attribute.namespaceURI = namespaceURI == null ? "" : namespaceURI;
+		attribute.value = value;
+	}
+
+	/**
+	 * Writes the start tag with the namespaces and attributes added since the last start tag.
+	 */
+	public void startElement(final String qualifiedName) throws IOException {
+		final Map<String, String> parentScope = scopes.peek();
+		Map<String, String> scope = parentScope;
+		rendered.clear();
+		for (int i = 0; i < namespaces.size(); i++) { // indexed loops do not allocate iterators
+			final String[] namespace = namespaces.get(i);
+			final String prefix = namespace[0], uri = namespace[1];
+			final String inScope = scope.get(prefix);
+			if (uri.equals(inScope) || (inScope == null && prefix.isEmpty() && uri.isEmpty()))
+				continue; // already rendered by an ancestor (or an empty default namespace that was never set)
+			if (scope == parentScope)
+				scope = new HashMap<>(parentScope);
+			scope.put(prefix, uri);
+			rendered.add(namespace);
+		}
+		namespaces.clear();
+		Collections.sort(rendered, NAMESPACE_ORDER);
+		Arrays.sort(attributes, 0, attributeCount, ATTRIBUTE_ORDER);
+
+		out.write('<');
+		out.write(qualifiedName);
+		for (int i = 0; i < rendered.size(); i++) {
+			final String[] namespace = rendered.get(i);
+			out.write(namespace[0].isEmpty() ? " xmlns" : " xmlns:");
+			out.write(namespace[0]);
+			out.write("=\"");
+			writeAttributeValue(namespace[1]);
+			out.write('"');
+		}
+		for (int i = 0; i < attributeCount; i++) {
+			final Attribute attribute = attributes[i];
+			out.write(' ');
+			if (!attribute.prefix.isEmpty()) {
+				out.write(attribute.prefix);
+				out.write(':');
+			}
+			out.write(attribute.localName);
+			out.write("=\"");
+			writeAttributeValue(attribute.value);
+			out.write('"');
+			attribute.value = null;
+		}
+		out.write('>');
+		attributeCount = 0;
+		scopes.push(scope);
+	}
+
+	public void endElement(final String qualifiedName) throws IOException {
+		out.write("</");
+		out.write(qualifiedName);
+		out.write('>');
+		scopes.pop();
+		if (scopes.size() == 1)
+			afterDocumentElement = true;
+	}
+
+	public void characters(final char[] text, final int start, final int length) throws IOException {
+		final int end = start + length;
+		int unescaped = start;
+		for (int i = start; i < end; i++) {
+			final String replacement = textReplacement(text[i]);
+			if (replacement == null)
+				continue;
+			out.write(text, unescaped, i - unescaped);
+			out.write(replacement);
+			unescaped = i + 1;
+		}
+		out.write(text, unescaped, end - unescaped);
+	}
+
+	public void characters(final String text) throws IOException {
+		int unescaped = 0;
+		for (int i = 0; i < text.length(); i++) {
+			final String replacement = textReplacement(text.charAt(i));
+			if (replacement == null)
+				continue;
+			out.write(text, unescaped, i - unescaped);
+			out.write(replacement);
+			unescaped = i + 1;
+		}
+		out.write(text, unescaped, text.length() - unescaped);
+	}
+
+	/**
+	 * @return the escaped form of a character in text content or null if it is written as is
+	 */
+	private static String textReplacement(final char c) {
+		switch (c) {
+			case '&':
+				return "&amp;";
+			case '<':
+				return "&lt;";
+			case '>':
+				return "&gt;";
+			case '\r':
+				return "&#xD;";
+			default:
+				return null;
+		}
+	}
+
+	public void comment(final String text) throws IOException {
+		if (!withComments)
+			return;
+		beforeTopLevelNode();
+		out.write("<!--");
+		out.write(text);
+		out.write("-->");
+		afterTopLevelNode();
+	}
+
+	public void processingInstruction(final String target, final String data) throws IOException {
+		beforeTopLevelNode();
+		out.write("<?");
+		out.write(target);
+		if (data != null && !data.isEmpty()) {
+			out.write(' ');
+			out.write(data);
+		}
+		out.write("?>");
+		afterTopLevelNode();
+	}
+
+	/**
+	 * Nodes after the document element are preceded by a line feed.
+	 */
+	private void beforeTopLevelNode() throws IOException {
+		if (scopes.size() == 1 && afterDocumentElement)
+			out.write('\n');
+	}
+
+	/**
+	 * Nodes before the document element are followed by a line feed.
+	 */
+	private void afterTopLevelNode() throws IOException {
+		if (scopes.size() == 1 && !afterDocumentElement)
+			out.write('\n');
+	}
+
+	private void writeAttributeValue(final String value) throws IOException {
+		int unescaped = 0;
+		for (int i = 0; i < value.length(); i++) {
+			final String replacement;
+			switch (value.charAt(i)) {
+				case '&':
+					replacement = "&amp;";
+					break;
+				case '<':
+					replacement = "&lt;";
+					break;
+				case '"':
+					replacement = "&quot;";
+					break;
+				case '\t':
+					replacement = "&#x9;";
+					break;
+				case '\n':
+					replacement = "&#xA;";
+					break;
+				case '\r':
+					replacement = "&#xD;";
+					break;
+				default:
+					continue;
+			}
+			out.write(value, unescaped, i - unescaped);
+			out.write(replacement);
+			unescaped = i + 1;
+		}
+		out.write(value, unescaped, value.length() - unescaped);
+	}
+
+	private static String qualifiedName(final String prefix, final String localName) {
+		return prefix == null || prefix.isEmpty() ? localName : prefix + ':' + localName;
+	}
+
+	private static class Attribute {
+		private String prefix, localName, namespaceURI, value;
+	}
+}
@@ -16,6 +16,9 @@ import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.Key;
@@ -23,12 +26,14 @@ import java.security.KeyException;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.KeyStoreException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.Provider;
 import java.security.PublicKey;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Scanner; // Java 1.5 equivalent of cs1.Keyboard
@@ -60,33 +65,66 @@ import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.FactoryConfigurationError;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 
 import nz.ac.aut.hss.network.KeyFetcher;
 
 import org.w3c.dom.Document;
-import org.w3c.dom.Node;
+import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
 public class XMLSignerVerifier
 {
-private XMLSignatureFactory sigFactory;
+private Provider sigProvider;
 private PrivateKey privateKey;
 private PublicKey publicKey;
 private DocumentBuilderFactory builderFactory;
+private volatile VerifiedSignatureCache verifiedCache;
+private volatile KeySelector keySelector;
+private String keyAlias;
+private SignatureAlgorithm algorithm;
+private static final String XML_DECLARATION
+   = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>";
+// signing engines are not thread-safe, so each thread builds its own
+// once and then reuses it for every document it signs or validates
+private final ThreadLocal<SignerEngine> engines
+   = new ThreadLocal<SignerEngine>();
 
 public XMLSignerVerifier() throws UnrecoverableKeyException, KeyStoreException, CertificateException, IOException
-{  // obtain an instance of an XML-Sig signature factory
+{  this(SignatureAlgorithm.RSA_SHA1);
+   // get private and public RSA keys from keystore(of sender) and truststore(of receiver) //example used DSA
+   try
+   {  
+	  KeyFetcher keyFetch = new KeyFetcher("keystoreA", "password".toCharArray());
+      keyAlias = "aliasA";
+      privateKey = (PrivateKey) keyFetch.getPrivateKey(keyAlias, "password".toCharArray());
+      keyFetch = new KeyFetcher("truststoreA", "password".toCharArray());
+      publicKey = (PublicKey) keyFetch.getPublicKeySecure("truststoreB", "password".toCharArray(), "aliasA"); //truststoreB should have public cert for A
+   }
+   catch (NoSuchAlgorithmException e)
+   {  System.err.println("Encryption algorithm not available: "+e);
+   }
+}
+
+// sign with the given keys and algorithm, e.g. an EC key pair with
+// ECDSA_SHA256, the key alias is put into the KeyInfo as KeyName
+public XMLSignerVerifier(PrivateKey privateKey, PublicKey publicKey,
+   String keyAlias, SignatureAlgorithm algorithm)
+{  this(algorithm);
+   if (!algorithm.isCompatible(publicKey))
+      throw new IllegalArgumentException("A " + publicKey.getAlgorithm()
+         + " key cannot be used with " + algorithm);
+   this.privateKey = privateKey;
+   this.publicKey = publicKey;
+   this.keyAlias = keyAlias;
+}
+
+private XMLSignerVerifier(SignatureAlgorithm algorithm)
+{  // obtain the XML-Sig provider, per-thread signature factories are
+   // created from it (falls back to the default DOM provider)
    try
-   {  sigFactory = XMLSignatureFactory.getInstance("DOM",
-         (Provider)Class.forName
-         ("org.jcp.xml.dsig.internal.dom.XMLDSigRI").newInstance());
+   {  sigProvider = (Provider)Class.forName
+         ("org.jcp.xml.dsig.internal.dom.XMLDSigRI").newInstance();
    }
    catch (ClassNotFoundException e)
    {  System.err.println("No XML-Sig provider: " + e);
@@ -97,17 +135,7 @@ public XMLSignerVerifier() throws UnrecoverableKeyException, KeyStoreException,
    catch (IllegalAccessException e)
    {  System.err.println("Cannot access XML-Sig provider: " + e);
    }
-   // get private and public RSA keys from keystore(of sender) and truststore(of receiver) //example used DSA
-   try
-   {  
-	  KeyFetcher keyFetch = new KeyFetcher("keystoreA", "password".toCharArray());
-      privateKey = (PrivateKey) keyFetch.getPrivateKey("aliasA", "password".toCharArray());
-      keyFetch = new KeyFetcher("truststoreA", "password".toCharArray());
-      publicKey = (PublicKey) keyFetch.getPublicKeySecure("truststoreB", "password".toCharArray(), "aliasA"); //truststoreB should have public cert for A
-   }
-   catch (NoSuchAlgorithmException e)
-   {  System.err.println("Encryption algorithm not available: "+e);
-   }
+   this.algorithm = algorithm;
    // create a validating DOM document builder using default parser
    builderFactory = DocumentBuilderFactory.newInstance();
    builderFactory.setNamespaceAware(true); // required for XML-Sec
@@ -116,55 +144,69 @@ public XMLSignerVerifier() throws UnrecoverableKeyException, KeyStoreException,
 // sign the XML document given in the input stream and put result
 // in the output stream
 public void sign(InputStream is, OutputStream os)
-{  XMLSignature signature = null;
+{  try
+   {  signDocument(is, os);
+   }
+   catch (SigningException e)
+   {  System.err.println(e.getMessage());
+   }
+}
+
+// sign the XML document given in the input stream and put result
+// in the output stream, reporting any failure to the caller instead
+// of printing it
+public void signDocument(InputStream is, OutputStream os)
+   throws SigningException
+{  Document document = signDocument(is);
+   writeDocument(document, Utf8Writer.toStream(os));
+}
+
+// sign the XML document given in the input stream and write the
+// result to the channel, e.g. a FileChannel
+public void signDocument(InputStream is, WritableByteChannel channel)
+   throws SigningException
+{  Document document = signDocument(is);
+   writeDocument(document, Utf8Writer.toChannel(channel));
+}
+
+// parse and sign the XML document given in the input stream
+private Document signDocument(InputStream is) throws SigningException
+{  SignerEngine engine;
    try
-   {  // specify the algorithms that will be used
-      DigestMethod digestMethod
-         = sigFactory.newDigestMethod(DigestMethod.SHA1, null);
-      Transform transform = sigFactory.newTransform
-         (Transform.ENVELOPED, (TransformParameterSpec)null);
-      Reference ref = sigFactory.newReference("", digestMethod, 
-         Collections.singletonList(transform), null, null);
-      CanonicalizationMethod canMethod
-         = sigFactory.newCanonicalizationMethod
-         (CanonicalizationMethod.INCLUSIVE_WITH_COMMENTS,
-         (C14NMethodParameterSpec)null);
-      SignatureMethod sigMethod = sigFactory.newSignatureMethod
-         (SignatureMethod.RSA_SHA1, null); //example was DSA_SHA1
-      SignedInfo signedInfo = sigFactory.newSignedInfo(canMethod,
-         sigMethod, Collections.singletonList(ref));
-      // create a KeyInfo from the public key
-      KeyInfoFactory kif = sigFactory.getKeyInfoFactory();
-      KeyValue publicKeyValue = kif.newKeyValue(publicKey);
-      KeyInfo publicKeyInfo = kif.newKeyInfo
-         (Collections.singletonList(publicKeyValue));
-      // create the (unsigned) signature
-      signature = sigFactory.newXMLSignature
-         (signedInfo, publicKeyInfo);
+   {  engine = getEngine();
    }
    catch (NoSuchAlgorithmException e)
-   {  System.err.println("Digest algorithm not available: " + e);
+   {  throw new SigningException("Digest algorithm not available: " + e, e);
    }
    catch (InvalidAlgorithmParameterException e)
-   {  System.err.println("Invalid parameters for digest: " + e);
+   {  throw new SigningException("Invalid parameters for digest: " + e, e);
    }
    catch (KeyException e)
-   {  System.err.println("Exception with public key: " + e);
-   }
-   // obtain the XML document
-   Document document = null;
-   try
-   {  DocumentBuilder builder = builderFactory.newDocumentBuilder();
-      document = builder.parse(is);
+   {  throw new SigningException("Exception with public key: " + e, e);
    }
    catch (ParserConfigurationException e)
-   {  System.err.println("DOM parser exception: " + e);
+   {  throw new SigningException("DOM parser exception: " + e, e);
+   }
+   // obtain the XML document and digest it, the canonical form goes
+   // straight into the message digest without being buffered
+   Document document;
+   XMLSignature signature;
+   try
+   {  document = engine.builder.parse(is);
+      // create the (unsigned) signature from the prebuilt template
+      signature = engine.newSignature(engine.digest(document));
    }
    catch (SAXException e)
-   {  System.err.println("SAX exception while parsing: " + e);
+   {  throw new SigningException("SAX exception while parsing: " + e, e);
    }
    catch (IOException e)
-   {  System.err.println("IO exception with file: " + e);
+   {  throw new SigningException("IO exception with file: " + e, e);
+   }
+   catch (NoSuchAlgorithmException e)
+   {  throw new SigningException("Digest algorithm not available: " + e, e);
+   }
+   catch (InvalidAlgorithmParameterException e)
+   {  throw new SigningException("Invalid parameters for digest: " + e, e);
    }
    // sign the document
    try
@@ -173,62 +215,145 @@ public void sign(InputStream is, OutputStream os)
       signature.sign(signContext);
    }
    catch (MarshalException e)
-   {  System.err.println("Marshal exception while signing: " + e);
+   {  throw new SigningException("Marshal exception while signing: " + e, e);
    }
    catch (XMLSignatureException e)
-   {  System.err.println("Signature exception while signing: " + e);
-   }
-   // send the signed document to the output stream
-   try
-   {  TransformerFactory tf = TransformerFactory.newInstance();
-      Transformer trans = tf.newTransformer();
-      trans.transform(new DOMSource(document),new StreamResult(os));
+   {  throw new SigningException("Signature exception while signing: " + e, e);
    }
-   catch (TransformerConfigurationException e)
-   {  System.err.println("Unable to configure transformer: " + e);
+   return document;
+}
+
+// send the signed document to the output, it is written in its
+// canonical form (with comments) which keeps the signature valid
+private void writeDocument(Document document, Utf8Writer out)
+   throws SigningException
+{  try
+   {  out.write(XML_DECLARATION);
+      new XMLCanonicalizer(out, true).canonicalize(document);
+      out.close();
    }
-   catch (TransformerException e)
-   {  System.err.println("Transformer exception: " + e);
+   catch (IOException e)
+   {  throw new SigningException("IO exception with file: " + e, e);
    }
 }
 
 public boolean validate(InputStream is)
+{  try
+   {  return validateDocument(is);
+   }
+   catch (SigningException e)
+   {  System.err.println(e.getMessage());
+      return false;
+   }
+}
+
+// validate the signature of the XML document given in the input
+// stream, reporting any failure to process it to the caller instead
+// of printing it
+public boolean validateDocument(InputStream is) throws SigningException
 {  // obtain the XML document
-   Document document = null;
+   SignerEngine engine;
+   Document document;
    try
-   {  DocumentBuilder builder = builderFactory.newDocumentBuilder();
-      document = builder.parse(is);
+   {  engine = getEngine();
+      document = engine.builder.parse(is);
+   }
+   catch (GeneralSecurityException e)
+   {  throw new SigningException("Signature engine not available: " + e, e);
    }
    catch (ParserConfigurationException e)
-   {  System.err.println("DOM parser exception: " + e);
+   {  throw new SigningException("DOM parser exception: " + e, e);
    }
    catch (SAXException e)
-   {  System.err.println("SAX exception while parsing: " + e);
+   {  throw new SigningException("SAX exception while parsing: " + e, e);
    }
    catch (IOException e)
-   {  System.err.println("IO exception with file: " + e);
+   {  throw new SigningException("IO exception with file: " + e, e);
    }
    // check that the XML document has a Signature node
    NodeList nodeList =  document.getElementsByTagNameNS
       (XMLSignature.XMLNS, "Signature");
    if (nodeList.getLength() == 0)
-      System.err.println("No Signature element");
-   Node signatureNode = nodeList.item(0);
+      throw new SigningException("No Signature element");
+   Element signatureElement = (Element)nodeList.item(0);
    // validate the signature using certificate's public key
+   KeySelector keySelector = this.keySelector;
+   if (keySelector == null)
+      keySelector = new KeyValueKeySelector();
    DOMValidateContext vc = new DOMValidateContext
-      (new KeyValueKeySelector(), signatureNode);
-   boolean validated = false;
+      (keySelector, signatureElement);
    try
-   {  XMLSignature signature = sigFactory.unmarshalXMLSignature(vc);
-      validated = signature.validate(vc);
+   {  XMLSignature signature = engine.sigFactory.unmarshalXMLSignature(vc);
+      VerifiedSignatureCache cache = verifiedCache;
+      if (cache == null)
+         return signature.validate(vc);
+      // look up whether this signature value has been verified before
+      SignedInfo signedInfo = signature.getSignedInfo();
+      Key key = keySelector.select(signature.getKeyInfo(),
+         KeySelector.Purpose.VERIFY, signedInfo.getSignatureMethod(),
+         vc).getKey();
+      Element signedInfoElement = (Element)signatureElement
+         .getElementsByTagNameNS(XMLSignature.XMLNS, "SignedInfo").item(0);
+      ByteBuffer cacheKey = cache.keyOf(signedInfoElement,
+         signedInfo.getCanonicalizationMethod().getAlgorithm(),
+         signature.getSignatureValue().getValue(), key);
+      if (cache.isVerified(cacheKey))
+      {  // only the referenced content remains to be checked
+         for (Object ref : signedInfo.getReferences())
+            if (!((Reference)ref).validate(vc))
+               return false;
+         return true;
+      }
+      boolean validated = signature.validate(vc);
+      if (validated)
+         cache.markVerified(cacheKey);
+      return validated;
    }
    catch (MarshalException e)
-   {  System.err.println("Marshal exception while signing: " + e);
+   {  throw new SigningException("Marshal exception while validating: " + e, e);
    }
    catch (XMLSignatureException e)
-   {  System.err.println("Signature exception while signing: " + e);
+   {  throw new SigningException("Signature exception while validating: " + e, e);
+   }
+   catch (KeySelectorException e)
+   {  throw new SigningException("No key to validate with: " + e, e);
    }
-   return validated;
+   catch (IOException e)
+   {  throw new SigningException("IO exception while canonicalizing: " + e, e);
+   }
+}
+
+// use a cache of already verified signature values when validating,
+// null disables caching
+public void setVerifiedSignatureCache(VerifiedSignatureCache cache)
+{  verifiedCache = cache;
+}
+
+public VerifiedSignatureCache getVerifiedSignatureCache()
+{  return verifiedCache;
+}
+
+// select validation keys with the given selector, e.g. a
+// TrustStoreKeySelector, null trusts the key in the KeyValue element
+public void setKeySelector(KeySelector selector)
+{  keySelector = selector;
+}
+
+public SignatureAlgorithm getSignatureAlgorithm()
+{  return algorithm;
+}
+
+// obtain the signing engine of the calling thread, building it on
+// first use
+private SignerEngine getEngine() throws NoSuchAlgorithmException,
+   InvalidAlgorithmParameterException, KeyException,
+   ParserConfigurationException
+{  SignerEngine engine = engines.get();
+   if (engine == null)
+   {  engine = new SignerEngine();
+      engines.set(engine);
+   }
+   return engine;
 }
 
 public static void main(String[] args) throws UnrecoverableKeyException, KeyStoreException, CertificateException, IOException
@@ -265,6 +390,84 @@ public static void main(String[] args) throws UnrecoverableKeyException, KeyStor
    }
 }
 
+// inner class that holds the signature template, the parser and the
+// reference digest of a single thread, the digest and signature methods and
+// the KeyInfo are built once here instead of for every signed document
+private class SignerEngine
+{
+   private final XMLSignatureFactory sigFactory;
+   private final DigestMethod digestMethod;
+   private final SignatureMethod sigMethod;
+   private final KeyInfo publicKeyInfo;
+   private final DocumentBuilder builder;
+   private final MessageDigest referenceDigest;
+
+   public SignerEngine() throws NoSuchAlgorithmException,
+      InvalidAlgorithmParameterException, KeyException,
+      ParserConfigurationException
+   {  if (sigProvider != null)
+         sigFactory = XMLSignatureFactory.getInstance("DOM", sigProvider);
+      else
+         sigFactory = XMLSignatureFactory.getInstance("DOM");
+      // specify the algorithms that will be used
+      digestMethod = algorithm.newDigestMethod(sigFactory);
+      sigMethod = algorithm.newSignatureMethod(sigFactory); //example was DSA_SHA1
+      // create a KeyInfo from the public key, the key name lets
+      // receivers look the key up in their trust store
+      KeyInfoFactory kif = sigFactory.getKeyInfoFactory();
+      List<XMLStructure> keyInfoContent = new ArrayList<XMLStructure>();
+      if (keyAlias != null)
+         keyInfoContent.add(kif.newKeyName(keyAlias));
+      try
+      {  keyInfoContent.add(kif.newKeyValue(publicKey));
+      }
+      catch (KeyException e)
+      {  // no KeyValue encoding for this key type, receivers have to
+         // resolve the key by its name
+         if (keyAlias == null)
+            throw e;
+      }
+      publicKeyInfo = kif.newKeyInfo(keyInfoContent);
+      // the factories are shared between threads, so only use them
+      // one at a time
+      synchronized (builderFactory)
+      {  builder = builderFactory.newDocumentBuilder();
+      }
+      referenceDigest = MessageDigest.getInstance
+         (algorithm.getDigestAlgorithm());
+   }
+
+   // create a new (unsigned) signature, the transforms bind to the
+   // document they are marshalled into and a Reference holds its
+   // digest once signed, so these cannot be shared between documents
+   public XMLSignature newSignature(byte[] digestValue)
+      throws NoSuchAlgorithmException, InvalidAlgorithmParameterException
+   {  Transform transform = sigFactory.newTransform
+         (Transform.ENVELOPED, (TransformParameterSpec)null);
+      // the digest is already known, so signing does not canonicalize
+      // the document a second time
+      Reference ref = sigFactory.newReference("", digestMethod,
+         Collections.singletonList(transform), null, null, digestValue);
+      CanonicalizationMethod canMethod
+         = sigFactory.newCanonicalizationMethod
+         (CanonicalizationMethod.INCLUSIVE_WITH_COMMENTS,
+         (C14NMethodParameterSpec)null);
+      SignedInfo signedInfo = sigFactory.newSignedInfo(canMethod,
+         sigMethod, Collections.singletonList(ref));
+      return sigFactory.newXMLSignature(signedInfo, publicKeyInfo);
+   }
+
+   // digest the document as the reference to it does, i.e. canonical
+   // without comments, before the signature is inserted
+   public byte[] digest(Document document) throws IOException
+   {  referenceDigest.reset();
+      Utf8Writer out = Utf8Writer.toDigest(referenceDigest);
+      new XMLCanonicalizer(out, false).canonicalize(document);
+      out.close();
+      return referenceDigest.digest();
+   }
+}
+
 // inner class that represents a KeySelector for retrieving
 // public key from KeyValue element in a certificate
 // adapted from Java XML-Sig samples
@@ -288,14 +491,7 @@ private class KeyValueKeySelector extends KeySelector
             {  throw new KeySelectorException(e);
             }
             // make sure algorithm is compatible with method
-            String algorithmURI = sm.getAlgorithm();
-            String algorithmName = pk.getAlgorithm();
-            if ((algorithmName.equalsIgnoreCase("DSA") &&
-               algorithmURI.equalsIgnoreCase
-               (SignatureMethod.DSA_SHA1)) ||
-               (algorithmName.equalsIgnoreCase("RSA") &&
-               algorithmURI.equalsIgnoreCase
-               (SignatureMethod.RSA_SHA1)))
+            if (TrustStoreKeySelector.isCompatible(pk, sm.getAlgorithm()))
                return new SimpleKeySelectorResult(pk);
          }
       }